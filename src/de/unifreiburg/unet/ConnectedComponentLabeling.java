@@ -144,9 +144,34 @@ public class ConnectedComponentLabeling implements PlugIn {
 /*======================================================================*/
   public static ConnectedComponents label(
       ImagePlus imp, int nhood, ProgressMonitor pr) {
+    return label(imp, imp.getNChannels(), false, nhood, pr);
+  }
+
+/*======================================================================*/
+/*!
+ *   2/3-D connected component labeling of the classes of a label image.
+ *
+ *   \param imp      Single-channel label image with values
+ *                   0 = background, 1, ..., nClasses - 1 = class label.
+ *   \param nClasses The number of classes including background
+ *   \param nhood    The neighborhood to use, one of
+ *                   SIMPLE_NEIGHBORHOOD (4- or 6-connected) or
+ *                   COMPLEX_NEIGHBORHOOD (8- or 26-connected)
+ *
+ *   \return The connected components as returned by label() for an image
+ *           with nClasses - 1 channels, where channel c contains the binary
+ *           mask of class c + 1.
+ */
+/*======================================================================*/
+  public static ConnectedComponents labelClasses(
+      ImagePlus imp, int nClasses, int nhood, ProgressMonitor pr) {
+    return label(imp, nClasses - 1, true, nhood, pr);
+  }
+
+  private static ConnectedComponents label(
+      ImagePlus imp, int C, boolean classes, int nhood, ProgressMonitor pr) {
 
     int T = imp.getNFrames();
-    int C = imp.getNChannels();
     int D = imp.getNSlices();
     int H = imp.getHeight();
     int W = imp.getWidth();
@@ -211,10 +236,11 @@ public class ConnectedComponentLabeling implements PlugIn {
         for (int z = 0; z < D; ++z) {
           if (pr != null) pr.count(1);
           ImageProcessor ip = imp.getStack().getProcessor(
-              imp.getStackIndex(c + 1, z + 1, t + 1));
+              imp.getStackIndex(classes ? 1 : (c + 1), z + 1, t + 1));
           for (int y = 0; y < H; ++y) {
             for (int x = 0; x < W; ++x, ++outIdx) {
-              if (ip.getf(x, y) == 0) continue;
+              if (classes ? (ip.getf(x, y) != c + 1) : (ip.getf(x, y) == 0))
+                  continue;
               int val = labels[outIdx];
               for (int nbIdx = 0; nbIdx < dx.length; ++nbIdx) {
                 if (x + dx[nbIdx] < 0 || x + dx[nbIdx] >= W ||
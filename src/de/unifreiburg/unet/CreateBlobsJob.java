@@ -68,6 +68,8 @@ import java.util.Vector;
 import java.util.Map;
 import java.util.HashMap;
 
+import hdf.hdf5lib.exceptions.HDF5Exception;
+
 public class CreateBlobsJob extends Job implements PlugIn {
 
   private final JPanel _elSizePanel = new JPanel(new BorderLayout());
@@ -88,6 +90,10 @@ public class CreateBlobsJob extends Job implements PlugIn {
   private final JCheckBox _showBlobsCheckBox =
       new JCheckBox(
           "Show Blobs", Prefs.get("unet.createblobs.showblobs", false));
+  private final JCheckBox _saveWeightCacheCheckBox =
+      new JCheckBox(
+          "Save weight cache",
+          Prefs.get("unet.createblobs.saveWeightCache", false));
 
   public CreateBlobsJob() {
     super();
@@ -187,6 +193,10 @@ public class CreateBlobsJob extends Job implements PlugIn {
     _showBlobsCheckBox.setToolTipText(
         "Check if you want to see the blobs as ImagePlus windows");
     _configPanel.add(_showBlobsCheckBox);
+    _saveWeightCacheCheckBox.setToolTipText(
+        "Check to save the distance maps next to the output file to " +
+        "re-compute the weights for other weight parameters later");
+    _configPanel.add(_saveWeightCacheCheckBox);
   }
 
   @Override
@@ -278,6 +288,8 @@ public class CreateBlobsJob extends Job implements PlugIn {
     Prefs.set("unet.createblobs.filename", _outFileTextField.getText());
     Prefs.set("unet.createblobs.classes", _classesTextField.getText());
     Prefs.set("unet.createblobs.showblobs", _showBlobsCheckBox.isSelected());
+    Prefs.set("unet.createblobs.saveWeightCache",
+              _saveWeightCacheCheckBox.isSelected());
 
     return true;
   }
@@ -313,14 +325,59 @@ public class CreateBlobsJob extends Job implements PlugIn {
         job._classesTextField.setText(parameters.get("classes"));
     job._showBlobsCheckBox.setSelected(
         parameters.get("showBlobs").equals("1"));
+    job._saveWeightCacheCheckBox.setSelected(
+        "1".equals(parameters.get("saveWeightCache")));
     job.setInteractive(false);
 
     // Run blocking on current thread
     job.run();
   }
 
+/*======================================================================*/
+/*!
+ *   Macro entry point re-computing the weights of a blob file written by
+ *   createBlobs() for the weight parameters of the given model. The weight
+ *   cache written next to the blob file by createBlobs() with
+ *   saveWeightCache=1 is used, so neither the image nor its annotations are
+ *   needed.
+ *
+ *   \param params Comma-separated parameters modelFilename and
+ *     outputFileName (the blob file passed to createBlobs())
+ */
+/*======================================================================*/
+  public static void reweightBlobs(String params) {
+    String[] parameterStrings = params.split(",");
+    Map<String,String> parameters = new HashMap<String,String>();
+    for (int i = 0; i < parameterStrings.length; i++) {
+      String[] param = parameterStrings[i].split("=");
+      parameters.put(param[0], (param.length > 1) ? param[1] : "");
+    }
+    File blobFile = new File(parameters.get("outputFileName"));
+    try {
+      ModelDefinition model = new ModelDefinition();
+      model.load(new File(parameters.get("modelFilename")));
+      TrainingSample.reweightBlobs(
+          blobFile, weightCacheFile(blobFile), model, null);
+    }
+    catch (HDF5Exception e) {
+      IJ.error("U-Net Blob Creation",
+               "Could not re-compute weights of '" + blobFile + "': " +
+               e.getMessage());
+    }
+    catch (InterruptedException e) {
+      IJ.log("Re-computing weights of '" + blobFile + "' canceled");
+    }
+  }
+
+  private static File weightCacheFile(File blobFile) {
+    String cacheName = blobFile.getName().replaceFirst("\\.h5$", "") +
+        ".weightcache.h5";
+    return new File(blobFile.getParentFile(), cacheName);
+  }
+
   @Override
   public void run() {
+    TrainingSample t = null;
     try
     {
       prepareParametersDialog();
@@ -336,23 +393,36 @@ public class CreateBlobsJob extends Job implements PlugIn {
       }
       else model().classNames = new String[] { "Background", "Foreground" };
 
-      TrainingSample t = new TrainingSample(_imp);
-      progressMonitor().push("Converting data", 0.1f, 0.2f);
-      t.createDataBlob(model(), progressMonitor());
-      if (interrupted()) throw new InterruptedException();
-      progressMonitor().pop();
+      t = new TrainingSample(_imp);
+      // Virtual stacks are converted plane-wise while saving, unless the
+      // data blob is requested for display
+      if (!_imp.getStack().isVirtual() || _showBlobsCheckBox.isSelected()) {
+        progressMonitor().push("Converting data", 0.1f, 0.2f);
+        t.createDataBlob(model(), progressMonitor());
+        if (interrupted()) throw new InterruptedException();
+        progressMonitor().pop();
+      }
       progressMonitor().push("Converting labels", 0.2f, 1.0f);
       t.createLabelsAndWeightsBlobs(
           model(), labelsAreClasses, progressMonitor());
 
-      if (!_outFileTextField.getText().isEmpty())
-          t.saveBlobs(
-              new File(
-                  _outFileTextField.getText()), model(), progressMonitor());
+      // saveBlobs() releases the data blob
+      ImagePlus dataBlob = t.dataBlob();
+      if (!_outFileTextField.getText().isEmpty()) {
+        File outFile = new File(_outFileTextField.getText());
+        t.saveBlobs(
+            outFile, model(), Tools.StorageProfile.forHost(false),
+            progressMonitor());
+        // Keep the distance maps next to the blobs to allow re-computing
+        // the weights for other weight parameters using the reweightBlobs()
+        // macro call
+        if (_saveWeightCacheCheckBox.isSelected())
+            t.saveWeightCache(weightCacheFile(outFile), progressMonitor());
+      }
 
       if (_showBlobsCheckBox.isSelected()) {
-        t.dataBlob().show();
-        t.dataBlob().updateAndDraw();
+        dataBlob.show();
+        dataBlob.updateAndDraw();
         t.labelBlob().show();
         t.labelBlob().updateAndDraw();
         t.weightBlob().show();
@@ -381,6 +451,8 @@ public class CreateBlobsJob extends Job implements PlugIn {
             (_labelsAreClassesCheckBox.isSelected() ? "1" : "0") +
             ",classes=" + _classesTextField.getText() +
             ",showBlobs=" + (_showBlobsCheckBox.isSelected() ? "1" : "0") +
+            ",saveWeightCache=" +
+            (_saveWeightCacheCheckBox.isSelected() ? "1" : "0") +
             "');\n";
         Recorder.recordString(command);
       }
@@ -400,6 +472,9 @@ public class CreateBlobsJob extends Job implements PlugIn {
     catch (InterruptedException e) {
       abort();
     }
+    finally {
+      if (t != null) t.dispose();
+    }
   }
 
 };
@@ -98,6 +98,9 @@ public class DetectionJob extends SegmentationJob implements PlugIn {
               catch (IOException e) {
                 showError("Could not load detection result", e);
               }
+              catch (InterruptedException e) {
+                showError("Could not load detection result", e);
+              }
               finishJob();
             }
           };
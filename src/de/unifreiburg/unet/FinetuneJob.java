@@ -153,6 +153,10 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
   private final JCheckBox _labelsAreClassesCheckBox =
       new JCheckBox("Labels are classes",
                     Prefs.get("unet.finetuning.labelsAreClasses", true));
+  private final JCheckBox _singleValidationFileCheckBox =
+      new JCheckBox(
+          "Single validation file",
+          Prefs.get("unet.finetuning.singleValidationFile", true));
 
   // Plot-related variables
   private final Color[] colormap = new Color[] {
@@ -491,6 +495,11 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
         "segmentation and labels are instance labels.");
     _configPanel.add(_labelsAreClassesCheckBox);
 
+    _singleValidationFileCheckBox.setToolTipText(
+        "Check to write all validation tiles of an image into one HDF5 " +
+        "file, otherwise every tile is written to its own file.");
+    _configPanel.add(_singleValidationFileCheckBox);
+
     _downloadWeightsCheckBox.setToolTipText(
         "Check if you want to download the weights from the server. " +
         "The weights file will be placed in the same folder as the new " +
@@ -818,6 +827,8 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
               _outModeldefTextField.getText());
     Prefs.set("unet.finetuning.labelsAreClasses",
               _labelsAreClassesCheckBox.isSelected());
+    Prefs.set("unet.finetuning.singleValidationFile",
+              _singleValidationFileCheckBox.isSelected());
 
     _finetunedModel = model().duplicate();
     _finetunedModel.id += "-" + id();
@@ -1093,7 +1104,8 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
   }
 
   protected final void prepareFinetuning(
-      String[] trainBlobFileNames, Vector<String> validBlobFileNames)
+      String[] trainBlobFileNames, Vector<String> validBlobFileNames,
+      int nValidSamples)
       throws InterruptedException, IOException, JSchException, SftpException {
 
     // Create train and valid file list files
@@ -1296,7 +1308,7 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
     else sb.setSolverMode(Caffe.SolverParameter.SolverMode.GPU);
 
     if (validBlobFileNames.size() != 0) {
-      sb.addTestIter(validBlobFileNames.size()).setTestInterval(
+      sb.addTestIter(nValidSamples).setTestInterval(
           (Integer)_validationStepSpinner.getValue());
     }
 
@@ -1816,6 +1828,7 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
 
         String[] trainBlobFileNames = new String[nTrainImages];
         Vector<String> validBlobFileNames = new Vector<String>();
+        int nValidSamples = 0;
 
         // Get class label information from annotations
         progressMonitor().push("Searching class labels", 0.0f, 0.01f);
@@ -1978,12 +1991,18 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
           else progressMonitor().push(
               "Converting " + imp.getTitle(), 0.0f, 0.5f);
 
-          TrainingSample t = new TrainingSample(imp);
-          t.createDataBlob(_finetunedModel, progressMonitor());
-          t.createLabelsAndWeightsBlobs(
-              _finetunedModel, labelsAreClasses, progressMonitor());
-          Vector<File> createdFiles =
-              t.saveBlobs(outfile, _finetunedModel, progressMonitor());
+          TrainingSample t = TrainingSample.forImage(imp);
+          Vector<File> createdFiles = null;
+          try {
+            t.createLabelsAndWeightsBlobs(
+                _finetunedModel, labelsAreClasses, progressMonitor());
+            createdFiles = t.saveBlobs(
+                outfile, _finetunedModel, storageProfile(),
+                hostConfiguration().uploadScaleDigits(), progressMonitor());
+          }
+          finally {
+            t.release();
+          }
 
           progressMonitor().pop(); // Converting image (real)
 
@@ -2027,13 +2046,19 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
           else progressMonitor().push(
               "Converting " + imp.getTitle(), 0.0f, 1.0f);
 
-          TrainingSample t = new TrainingSample(imp);
-          t.createDataBlob(_finetunedModel, progressMonitor());
-          t.createLabelsAndWeightsBlobs(
-              _finetunedModel, labelsAreClasses, progressMonitor());
-          Vector<File> files = t.saveTiledBlobs(
-              fileNameStub, _finetunedModel, labelsAreClasses,
-              progressMonitor());
+          TrainingSample t = TrainingSample.forImage(imp);
+          Vector<File> files = null;
+          try {
+            t.createLabelsAndWeightsBlobs(
+                _finetunedModel, labelsAreClasses, progressMonitor());
+            files = t.saveTiledBlobs(
+                fileNameStub, _finetunedModel, labelsAreClasses,
+                _singleValidationFileCheckBox.isSelected(), progressMonitor());
+            nValidSamples += t.nTiledSamples(_finetunedModel);
+          }
+          finally {
+            t.release();
+          }
           Vector<File> generatedFiles = new Vector<File>();
           for (File f : files) if (f.isFile()) generatedFiles.add(f);
 
@@ -2056,7 +2081,8 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
                   (float)j / (float)generatedFiles.size(),
                   (float)(j + 1) / (float)generatedFiles.size());
               String outFileName =
-                  processFolder() + id() + "_valid_" + i + "_" + j + ".h5";
+                  processFolder() + id() + "_valid_" + i +
+                  ((generatedFiles.size() == 1) ? "" : ("_" + j)) + ".h5";
               _createdRemoteFolders.addAll(
                   new SftpFileIO(sshSession(), progressMonitor()).put(
                       generatedFiles.get(j), outFileName));
@@ -2078,7 +2104,8 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
         progressMonitor().pop(); // Data conversion (0.01 - 0.1)
         progressMonitor().push("Creating prototxt files", 0.1f, 0.11f);
 
-        prepareFinetuning(trainBlobFileNames, validBlobFileNames);
+        prepareFinetuning(
+            trainBlobFileNames, validBlobFileNames, nValidSamples);
 
         progressMonitor().pop(); // Prototxt generation
         progressMonitor().push("U-Net finetuning", 0.11f, 1.0f);
@@ -65,6 +65,15 @@ public class HostConfigurationPanel extends JPanel {
       Prefs.get("unet.rsaKeyFilename", ""));
   private JTextArea _startupCommandsTextArea = new JTextArea(
       Prefs.get("unet.startupCommands", ""));
+  private JCheckBox _lossyUploadCheckBox = new JCheckBox(
+      "Lossy data upload", Prefs.get("unet.lossyUpload", false));
+  private JSpinner _uploadDigitsSpinner = new JSpinner(
+      new SpinnerNumberModel(
+          Prefs.getInt("unet.uploadScaleDigits", 3), 0, 6, 1));
+  private JCheckBox _reduceOnHostCheckBox = new JCheckBox(
+      "Reduce results on host", Prefs.get("unet.reduceOnHost", false));
+  private JCheckBox _reduceConfidenceCheckBox = new JCheckBox(
+      "with confidence", Prefs.get("unet.reduceOnHostConfidence", true));
   private Session _sshSession = null;
 
   private JButton _weightsFileChooseButton = null;
@@ -166,7 +175,24 @@ public class HostConfigurationPanel extends JPanel {
       "Use this to setup required paths or activate virtual " +
       "environments if necessary.\n" +
       "If you don't know what this is all about, leave the field empty!");
-    
+
+    _lossyUploadCheckBox.setToolTipText(
+        "Store the normalized input data rounded to the given number of " +
+        "decimal digits (HDF5 scale-offset filter).\n" +
+        "This reduces the upload size for 8- or 12-Bit source data " +
+        "several-fold.");
+    final JLabel uploadDigitsLabel = new JLabel("decimal digits");
+    _uploadDigitsSpinner.setToolTipText(
+        "Number of retained decimal digits of the normalized input data");
+    _reduceOnHostCheckBox.setToolTipText(
+        "Reduce the segmentation scores to labels and confidences on the " +
+        "remote host before download.\n" +
+        "Requires java on the remote host. Not used if scores are " +
+        "requested.");
+    _reduceConfidenceCheckBox.setToolTipText(
+        "Also download the maximum softmax score per pixel as 8-Bit " +
+        "confidence image");
+
     GroupLayout layout = new GroupLayout(this);
     setLayout(layout);
     layout.setAutoCreateGaps(true);
@@ -201,7 +227,18 @@ public class HostConfigurationPanel extends JPanel {
         .addGroup(
             layout.createSequentialGroup()
             .addComponent(startupCommandsLabel)
-            .addComponent(_startupCommandsTextArea)));
+            .addComponent(_startupCommandsTextArea))
+        .addGroup(
+            layout.createSequentialGroup()
+            .addComponent(_lossyUploadCheckBox)
+            .addComponent(
+                _uploadDigitsSpinner, GroupLayout.PREFERRED_SIZE,
+                GroupLayout.PREFERRED_SIZE, GroupLayout.PREFERRED_SIZE)
+            .addComponent(uploadDigitsLabel))
+        .addGroup(
+            layout.createSequentialGroup()
+            .addComponent(_reduceOnHostCheckBox)
+            .addComponent(_reduceConfidenceCheckBox)));
     layout.setVerticalGroup(
         layout.createSequentialGroup()
         .addGroup(
@@ -227,7 +264,16 @@ public class HostConfigurationPanel extends JPanel {
         .addGroup(
             layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
             .addComponent(startupCommandsLabel)
-            .addComponent(_startupCommandsTextArea)));
+            .addComponent(_startupCommandsTextArea))
+        .addGroup(
+            layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+            .addComponent(_lossyUploadCheckBox)
+            .addComponent(_uploadDigitsSpinner)
+            .addComponent(uploadDigitsLabel))
+        .addGroup(
+            layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+            .addComponent(_reduceOnHostCheckBox)
+            .addComponent(_reduceConfidenceCheckBox)));
 
     _useRemoteHostCheckBox.addChangeListener(new ChangeListener() {
           @Override
@@ -241,7 +287,35 @@ public class HostConfigurationPanel extends JPanel {
             _userTextField.setEnabled(c.isSelected());
             _authMethodComboBox.setEnabled(c.isSelected());
             authParametersPanel.setEnabled(c.isSelected());
+            _lossyUploadCheckBox.setEnabled(c.isSelected());
+            _uploadDigitsSpinner.setEnabled(
+                c.isSelected() && _lossyUploadCheckBox.isSelected());
+            uploadDigitsLabel.setEnabled(
+                c.isSelected() && _lossyUploadCheckBox.isSelected());
+            _reduceOnHostCheckBox.setEnabled(c.isSelected());
+            _reduceConfidenceCheckBox.setEnabled(
+                c.isSelected() && _reduceOnHostCheckBox.isSelected());
+          }});
+
+    _reduceOnHostCheckBox.addChangeListener(new ChangeListener() {
+          @Override
+          public void stateChanged(ChangeEvent e) {
+            _reduceConfidenceCheckBox.setEnabled(
+                _reduceOnHostCheckBox.isEnabled() &&
+                _reduceOnHostCheckBox.isSelected());
+          }});
+    _reduceConfidenceCheckBox.setEnabled(_reduceOnHostCheckBox.isSelected());
+
+    _lossyUploadCheckBox.addChangeListener(new ChangeListener() {
+          @Override
+          public void stateChanged(ChangeEvent e) {
+            boolean enabled = _lossyUploadCheckBox.isEnabled() &&
+                _lossyUploadCheckBox.isSelected();
+            _uploadDigitsSpinner.setEnabled(enabled);
+            uploadDigitsLabel.setEnabled(enabled);
           }});
+    _uploadDigitsSpinner.setEnabled(_lossyUploadCheckBox.isSelected());
+    uploadDigitsLabel.setEnabled(_lossyUploadCheckBox.isSelected());
 
     rsaKeyChooseButton.addActionListener(new ActionListener() {
           @Override
@@ -284,6 +358,57 @@ public class HostConfigurationPanel extends JPanel {
     return _useRemoteHostCheckBox.isSelected();
   }
 
+/*======================================================================*/
+/*!
+ *   Get the number of decimal digits to retain when uploading input data
+ *   to the remote host.
+ *
+ *   \return The number of retained digits or -1 if the data are uploaded
+ *     lossless
+ */
+/*======================================================================*/
+  public int uploadScaleDigits() {
+    if (!useRemoteHost() || !_lossyUploadCheckBox.isSelected()) return -1;
+    return (Integer)_uploadDigitsSpinner.getValue();
+  }
+
+  public void setUploadScaleDigits(int digits) {
+    _lossyUploadCheckBox.setSelected(digits >= 0);
+    if (digits >= 0) _uploadDigitsSpinner.setValue(digits);
+  }
+
+/*======================================================================*/
+/*!
+ *   Check whether segmentation scores should be reduced to labels and
+ *   confidences on the remote host before download.
+ *
+ *   \return true if a remote host is used and reduction is enabled
+ */
+/*======================================================================*/
+  public boolean reduceOnHost() {
+    return useRemoteHost() && _reduceOnHostCheckBox.isSelected();
+  }
+
+  public void setReduceOnHost(boolean reduce) {
+    _reduceOnHostCheckBox.setSelected(reduce);
+  }
+
+/*======================================================================*/
+/*!
+ *   Check whether the confidences are computed when reducing the
+ *   segmentation scores on the remote host.
+ *
+ *   \return true if the confidences are requested
+ */
+/*======================================================================*/
+  public boolean reduceWithConfidence() {
+    return _reduceConfidenceCheckBox.isSelected();
+  }
+
+  public void setReduceWithConfidence(boolean confidence) {
+    _reduceConfidenceCheckBox.setSelected(confidence);
+  }
+
   public void setUseRemoteHost(boolean select) {
     if (useRemoteHost() == select) return;
     _useRemoteHostCheckBox.setSelected(select);
@@ -489,6 +614,12 @@ public class HostConfigurationPanel extends JPanel {
       Prefs.set("unet.authMethod", authMethod());
       if (authRSAKey())
           Prefs.set("unet.rsaKeyFilename", rsaKeyFile());
+      Prefs.set("unet.lossyUpload", _lossyUploadCheckBox.isSelected());
+      Prefs.set(
+          "unet.uploadScaleDigits", (Integer)_uploadDigitsSpinner.getValue());
+      Prefs.set("unet.reduceOnHost", _reduceOnHostCheckBox.isSelected());
+      Prefs.set("unet.reduceOnHostConfidence",
+                _reduceConfidenceCheckBox.isSelected());
     }
     else Prefs.set("unet.useRemoteHost", false);
 
@@ -536,6 +667,15 @@ public class HostConfigurationPanel extends JPanel {
         parameters.containsKey("startupCommands") ?
         parameters.get("startupCommands").replace("<LF>", "\n") :
         Prefs.get("unet.startupCommands", ""));
+      setUploadScaleDigits(
+          parameters.containsKey("uploadScaleDigits") ?
+          Integer.valueOf(parameters.get("uploadScaleDigits")) : -1);
+      setReduceOnHost(
+          parameters.containsKey("reduceOnHost") &&
+          Boolean.valueOf(parameters.get("reduceOnHost")));
+      setReduceWithConfidence(
+          !parameters.containsKey("reduceConfidence") ||
+          Boolean.valueOf(parameters.get("reduceConfidence")));
     }
     return sshSession(null);
   }
@@ -579,6 +719,12 @@ public class HostConfigurationPanel extends JPanel {
       if (authRSAKey()) res += ",RSAKeyfile=" + rsaKeyFile().replace("\\", "/");
       if (getStartupCommands() != null && !getStartupCommands().isEmpty())
         res += ",startupCommands=" + getStartupCommands().replace("\n", "<LF>");
+      if (uploadScaleDigits() >= 0)
+          res += ",uploadScaleDigits=" + uploadScaleDigits();
+      if (reduceOnHost()) {
+        res += ",reduceOnHost=true";
+        if (!reduceWithConfidence()) res += ",reduceConfidence=false";
+      }
     }
     return res;
   }
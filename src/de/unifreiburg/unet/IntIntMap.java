@@ -0,0 +1,141 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package de.unifreiburg.unet;
+
+/*======================================================================*/
+/*!
+ *   A map from int keys to int values without boxing. Keys in
+ *   [0, denseRange) are stored in a direct lookup table, all other keys
+ *   in an open-addressing hash table with linear probing.
+ */
+/*======================================================================*/
+public class IntIntMap {
+
+  private final int[] _denseValues;
+  private final boolean[] _denseUsed;
+
+  private int[] _keys = new int[16];
+  private int[] _values = new int[16];
+  private boolean[] _used = new boolean[16];
+  private int _hashSize = 0;
+  private int _size = 0;
+
+/*======================================================================*/
+/*!
+ *   Create an empty map.
+ *
+ *   \param denseRange Keys in [0, denseRange) are looked up directly.
+ *     Use 0 if the key range is unknown or large.
+ */
+/*======================================================================*/
+  public IntIntMap(int denseRange) {
+    _denseValues = new int[denseRange];
+    _denseUsed = new boolean[denseRange];
+  }
+
+  public IntIntMap() {
+    this(0);
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  public boolean containsKey(int key) {
+    if (key >= 0 && key < _denseUsed.length) return _denseUsed[key];
+    return _used[slot(key)];
+  }
+
+/*======================================================================*/
+/*!
+ *   Get the value for the given key.
+ *
+ *   \param key The key to look up
+ *   \param defaultValue The value to return if the key is not in the map
+ *
+ *   \return The value stored for key or defaultValue
+ */
+/*======================================================================*/
+  public int get(int key, int defaultValue) {
+    if (key >= 0 && key < _denseUsed.length)
+        return _denseUsed[key] ? _denseValues[key] : defaultValue;
+    int i = slot(key);
+    return _used[i] ? _values[i] : defaultValue;
+  }
+
+  public void put(int key, int value) {
+    if (key >= 0 && key < _denseUsed.length) {
+      if (!_denseUsed[key]) _size++;
+      _denseUsed[key] = true;
+      _denseValues[key] = value;
+      return;
+    }
+    int i = slot(key);
+    if (!_used[i]) {
+      if (2 * (_hashSize + 1) > _keys.length) {
+        grow();
+        i = slot(key);
+      }
+      _used[i] = true;
+      _keys[i] = key;
+      _hashSize++;
+      _size++;
+    }
+    _values[i] = value;
+  }
+
+  // Index of the slot containing key or of the empty slot to insert it
+  private int slot(int key) {
+    int mask = _keys.length - 1;
+    int h = key * 0x9e3779b9;
+    int i = (h ^ (h >>> 16)) & mask;
+    while (_used[i] && _keys[i] != key) i = (i + 1) & mask;
+    return i;
+  }
+
+  private void grow() {
+    int[] keys = _keys;
+    int[] values = _values;
+    boolean[] used = _used;
+    _keys = new int[2 * keys.length];
+    _values = new int[2 * keys.length];
+    _used = new boolean[2 * keys.length];
+    for (int i = 0; i < keys.length; ++i) {
+      if (!used[i]) continue;
+      int j = slot(keys[i]);
+      _used[j] = true;
+      _keys[j] = keys[i];
+      _values[j] = values[i];
+    }
+  }
+
+}
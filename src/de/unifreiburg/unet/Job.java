@@ -136,6 +136,17 @@ public abstract class Job extends Thread {
     return null;
   }
 
+/*======================================================================*/
+/*!
+ *   Get the HDF5 storage profile for blobs written by this job, see
+ *   Tools.StorageProfile.forHost().
+ */
+/*======================================================================*/
+  public Tools.StorageProfile storageProfile()
+      throws JSchException, InterruptedException {
+    return Tools.StorageProfile.forHost(sshSession() != null);
+  }
+
   public void setJobTableModel(JobTableModel model) {
     if (_jobTableModel == model) return;
     if (_jobTableModel != null) {
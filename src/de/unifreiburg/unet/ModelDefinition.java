@@ -88,6 +88,9 @@ public class ModelDefinition {
   public String modelPrototxt = null;
   public String padding = null;
   public int normalizationType = 1;
+  // Lower and upper intensity percentiles in percent that are mapped to
+  // [0, 1] with normalizationType 4
+  public float[] normalizationPercentiles = new float[] { 0.1f, 99.9f };
   public int[] downsampleFactor = null;
   public int[] padInput = null;
   public int[] padOutput = null;
@@ -451,6 +454,8 @@ public class ModelDefinition {
     dup.modelPrototxt = modelPrototxt;
     dup.padding = padding;
     dup.normalizationType = normalizationType;
+    dup.normalizationPercentiles = Arrays.copyOf(
+        normalizationPercentiles, normalizationPercentiles.length);
     if (elementSizeUm() != null) dup.setElementSizeUm(elementSizeUm());
     if (downsampleFactor != null)
         dup.downsampleFactor = Arrays.copyOf(
@@ -512,6 +517,22 @@ public class ModelDefinition {
     modelPrototxt = reader.string().read("/model_prototxt");
     padding = reader.string().read("/unet_param/padding");
     normalizationType = reader.int32().read("/unet_param/normalization_type");
+    try {
+      normalizationPercentiles = reader.float32().readArray(
+          "/unet_param/normalization_percentiles");
+    }
+    catch (HDF5Exception e) {
+      normalizationPercentiles = new float[] { 0.1f, 99.9f };
+    }
+    if (normalizationPercentiles.length != 2 ||
+        !(normalizationPercentiles[0] >= 0.0f) ||
+        !(normalizationPercentiles[0] < normalizationPercentiles[1]) ||
+        !(normalizationPercentiles[1] <= 100.0f)) {
+      IJ.log("Invalid normalization percentiles " +
+             Arrays.toString(normalizationPercentiles) +
+             " in model definition, using [0.1, 99.9]");
+      normalizationPercentiles = new float[] { 0.1f, 99.9f };
+    }
     _nDims = -1;
     setElementSizeUm(reader.float64().readArray("/unet_param/element_size_um"));
     downsampleFactor = reader.int32().readArray("/unet_param/downsampleFactor");
@@ -809,6 +830,8 @@ public class ModelDefinition {
     writer.string().write("/model_prototxt", modelPrototxt);
     writer.string().write("/unet_param/padding", padding);
     writer.int32().write("/unet_param/normalization_type", normalizationType);
+    writer.float32().writeArray(
+        "/unet_param/normalization_percentiles", normalizationPercentiles);
     writer.int32().writeArray("/unet_param/downsampleFactor", downsampleFactor);
     writer.int32().writeArray("/unet_param/padInput", padInput);
     writer.int32().writeArray("/unet_param/padOutput", padOutput);
@@ -1098,6 +1121,8 @@ public class ModelDefinition {
         ((modelPrototxt != null) ? modelPrototxt : "N/A") + "\n" +
         "  padding = " + ((padding != null) ? padding : "N/A") + "\n" +
         "  normalizationType = " + normalizationType + "\n" +
+        "  normalizationPercentiles = " + normalizationPercentiles[0] + " " +
+        normalizationPercentiles[1] + "\n" +
         "  downsampleFactor = ";
     if (downsampleFactor != null) {
       for (int f : downsampleFactor) res += f + " ";
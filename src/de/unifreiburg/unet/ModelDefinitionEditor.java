@@ -123,7 +123,18 @@ public class ModelDefinitionEditor implements PlugIn {
           "(1) -- [min, max] -> [0, 1] (per channel)",
           "(2) -- [mean, stddev] -> [0, 1] (per channel)",
           "(3) -- maximum vector norm -> 1 (across channels)",
+          "(4) -- [lower, upper] percentile -> [0, 1] (across channels)",
       });
+  private final JSpinner[] _normalizationPercentiles = new JSpinner[] {
+      new JSpinner(
+          new SpinnerNumberModel(
+              Prefs.get("unet.newModel.lowerPercentile", 0.1),
+              0.0, 100.0, 0.1)),
+      new JSpinner(
+          new SpinnerNumberModel(
+              Prefs.get("unet.newModel.upperPercentile", 99.9),
+              0.0, 100.0, 0.1))
+  };
   private final JSpinner _diskRadiusPx = new JSpinner(
       new SpinnerNumberModel(
           (int)Prefs.get("unet.newModel.diskRadiusPx", 2), 0, 100, 1));
@@ -387,6 +398,51 @@ public class ModelDefinitionEditor implements PlugIn {
         "selected normalization mode.");
     _normalizationMode.setSelectedIndex(
         (int)Prefs.get("unet.newModel.normalizationMode", 1));
+    JLabel normalizationPercentilesLabel =
+        new JLabel("Normalization percentiles [%]:");
+    JLabel[] normalizationPercentileLabels = new JLabel[] {
+        new JLabel("lower:"), new JLabel("upper:") };
+    for (int i = 0; i < 2; ++i) {
+      ((JSpinner.NumberEditor)_normalizationPercentiles[i].getEditor())
+          .getFormat().applyPattern("##0.0######");
+      _normalizationPercentiles[i].setEnabled(
+          _normalizationMode.getSelectedIndex() == 4);
+    }
+    _normalizationPercentiles[0].setToolTipText(
+        "Intensity percentile mapped to 0 in percentile normalization");
+    _normalizationPercentiles[1].setToolTipText(
+        "Intensity percentile mapped to 1 in percentile normalization");
+    // Keep lower < upper, equal percentiles would give a zero range
+    final SpinnerNumberModel lowerPercentile =
+        (SpinnerNumberModel)_normalizationPercentiles[0].getModel();
+    final SpinnerNumberModel upperPercentile =
+        (SpinnerNumberModel)_normalizationPercentiles[1].getModel();
+    if ((Double)lowerPercentile.getValue() >=
+        (Double)upperPercentile.getValue()) {
+      lowerPercentile.setValue(0.1);
+      upperPercentile.setValue(99.9);
+    }
+    ChangeListener percentileBounds = new ChangeListener() {
+          @Override
+          public void stateChanged(ChangeEvent e) {
+            lowerPercentile.setMaximum(
+                (Double)upperPercentile.getValue() -
+                lowerPercentile.getStepSize().doubleValue());
+            upperPercentile.setMinimum(
+                (Double)lowerPercentile.getValue() +
+                upperPercentile.getStepSize().doubleValue());
+          }};
+    percentileBounds.stateChanged(null);
+    lowerPercentile.addChangeListener(percentileBounds);
+    upperPercentile.addChangeListener(percentileBounds);
+    _normalizationMode.addActionListener(
+        new ActionListener() {
+          @Override
+          public void actionPerformed(ActionEvent e) {
+            for (int i = 0; i < 2; ++i)
+                _normalizationPercentiles[i].setEnabled(
+                    _normalizationMode.getSelectedIndex() == 4);
+          }});
     JLabel diskRadiusPxLabel = new JLabel("Detection disk radius [px]:");
     _diskRadiusPx.setToolTipText("Radius of detection disks in pixels.");
     JLabel borderWeightFactorLabel = new JLabel("Ridge weight:");
@@ -426,6 +482,7 @@ public class ModelDefinitionEditor implements PlugIn {
                 GroupLayout.Alignment.TRAILING)
             .addComponent(elSizeLabel)
             .addComponent(normalizationModeLabel)
+            .addComponent(normalizationPercentilesLabel)
             .addComponent(diskRadiusPxLabel)
             .addComponent(borderWeightFactorLabel)
             .addComponent(borderWeightSigmaPxLabel)
@@ -443,6 +500,12 @@ public class ModelDefinitionEditor implements PlugIn {
                 .addComponent(elSizeDimLabels[2])
                 .addComponent(_elementSizeUm[2]))
             .addComponent(_normalizationMode)
+            .addGroup(
+                preprocessingPanelLayout.createSequentialGroup()
+                .addComponent(normalizationPercentileLabels[0])
+                .addComponent(_normalizationPercentiles[0])
+                .addComponent(normalizationPercentileLabels[1])
+                .addComponent(_normalizationPercentiles[1]))
             .addComponent(_diskRadiusPx)
             .addComponent(_borderWeightFactor)
             .addComponent(_borderWeightSigmaPx)
@@ -462,6 +525,14 @@ public class ModelDefinitionEditor implements PlugIn {
                 GroupLayout.Alignment.BASELINE)
             .addComponent(normalizationModeLabel)
             .addComponent(_normalizationMode))
+        .addGroup(
+            preprocessingPanelLayout.createParallelGroup(
+                GroupLayout.Alignment.BASELINE)
+            .addComponent(normalizationPercentilesLabel)
+            .addComponent(normalizationPercentileLabels[0])
+            .addComponent(_normalizationPercentiles[0])
+            .addComponent(normalizationPercentileLabels[1])
+            .addComponent(_normalizationPercentiles[1]))
         .addGroup(
             preprocessingPanelLayout.createParallelGroup(
                 GroupLayout.Alignment.BASELINE)
@@ -922,6 +993,11 @@ public class ModelDefinitionEditor implements PlugIn {
     }
     model.setElementSizeUm(elSize);
     model.normalizationType = _normalizationMode.getSelectedIndex();
+    model.normalizationPercentiles = new float[] {
+        ((Double)_normalizationPercentiles[0].getModel().getValue())
+        .floatValue(),
+        ((Double)_normalizationPercentiles[1].getModel().getValue())
+        .floatValue() };
     model.diskRadiusPx =
         ((Integer)_diskRadiusPx.getModel().getValue()).intValue();
     model.borderWeightFactor =
@@ -1273,6 +1349,10 @@ public class ModelDefinitionEditor implements PlugIn {
               (Double)_elementSizeUm[2].getModel().getValue());
     Prefs.set("unet.newModel.normalizationMode",
               (int)_normalizationMode.getSelectedIndex());
+    Prefs.set("unet.newModel.lowerPercentile",
+              (Double)_normalizationPercentiles[0].getModel().getValue());
+    Prefs.set("unet.newModel.upperPercentile",
+              (Double)_normalizationPercentiles[1].getModel().getValue());
     Prefs.set("unet.newModel.borderWeightFactor", model.borderWeightFactor);
     Prefs.set("unet.newModel.borderWeightSigmaPx", model.borderWeightSigmaPx);
     Prefs.set("unet.newModel.foregroundBackgroundRatio",
@@ -0,0 +1,76 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+/*======================================================================*/
+/*!
+ *   Plane-wise read access to a 5-D blob of shape (T, C, Z, H, W).
+ *   Implementations may compute planes on the fly, which allows to write
+ *   blobs with Tools.saveBlob() without holding the whole blob in memory.
+ */
+/*======================================================================*/
+public interface PlaneSource {
+
+  public int nFrames();
+
+  public int nChannels();
+
+  public int nSlices();
+
+  public int height();
+
+  public int width();
+
+/*======================================================================*/
+/*!
+ *   The element size in micrometers. For 2-D blobs (nSlices() == 1) this
+ *   is (y, x), otherwise (z, y, x).
+ */
+/*======================================================================*/
+  public double[] elementSizeUm();
+
+/*======================================================================*/
+/*!
+ *   Get the plane at the given position as flat row-major array of
+ *   length height() * width(). The returned array may be reused by
+ *   subsequent calls, so callers must copy the values if they need them
+ *   after the next call.
+ *
+ *   \param t The zero-based frame index
+ *   \param z The zero-based slice index
+ *   \param c The zero-based channel index
+ *
+ *   \return The plane values
+ */
+/*======================================================================*/
+  public float[] getPlane(int t, int z, int c);
+
+}
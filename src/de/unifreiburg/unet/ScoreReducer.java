@@ -0,0 +1,200 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package de.unifreiburg.unet;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/*======================================================================*/
+/*!
+ *   Reduce the class scores of a caffe_unet result file to per-pixel
+ *   labels and optionally the quantized maximum softmax score. Besides
+ *   the plugin jar, this class only needs jhdf5 and its runtime
+ *   dependencies (cisd base and, depending on the jhdf5 version,
+ *   commons-io and commons-lang), so that it can be run on a remote host
+ *   next to caffe_unet:
+ *
+ *     java -cp Unet_Segmentation.jar:jhdf5.jar:base.jar:<commons jars> \
+ *         de.unifreiburg.unet.ScoreReducer <in.h5> <out.h5> [-confidence]
+ *
+ *   For every score dataset (T, C, [Z,] H, W) of the input file the
+ *   output file contains a label dataset LABELS_GROUP/<name> of shape
+ *   (T, 1, [Z,] H, W) holding the argmax class as uint8 (uint16 for more
+ *   than 256 classes) with the number of classes stored in attribute
+ *   "nClasses". If requested, CONFIDENCE_GROUP/<name> contains the
+ *   maximum softmax score scaled to uint8 [0, 255].
+ */
+/*======================================================================*/
+public class ScoreReducer {
+
+  public static final String LABELS_GROUP = "/labels";
+  public static final String CONFIDENCE_GROUP = "/confidence";
+
+  public static void main(String[] args) {
+    if (args.length < 2 || args.length > 3 ||
+        (args.length == 3 && !args[2].equals("-confidence"))) {
+      System.err.println(
+          "Usage: ScoreReducer <in.h5> <out.h5> [-confidence]");
+      System.exit(1);
+    }
+    try {
+      reduce(args[0], args[1], args.length == 3);
+    }
+    catch (Exception e) {
+      System.err.println("ScoreReducer failed: " + e);
+      System.exit(1);
+    }
+  }
+
+/*======================================================================*/
+/*!
+ *   Reduce all score datasets of the given file. An existing output file
+ *   is replaced.
+ *
+ *   \param inFileName The caffe_unet result file
+ *   \param outFileName The reduced output file
+ *   \param confidence If true, also write the quantized maximum softmax
+ *     scores
+ */
+/*======================================================================*/
+  public static void reduce(
+      String inFileName, String outFileName, boolean confidence) {
+    IHDF5Reader reader = HDF5Factory.openForReading(inFileName);
+    IHDF5Writer writer =
+        HDF5Factory.configure(outFileName).overwrite().writer();
+    try {
+      List<String> outputs = reader.getGroupMembers("/");
+      for (String dsName : outputs) {
+        if (!reader.object().isDataSet(dsName)) continue;
+        reduce(reader, writer, dsName, confidence);
+      }
+    }
+    finally {
+      writer.close();
+      reader.close();
+    }
+  }
+
+  private static void reduce(
+      IHDF5Reader reader, IHDF5Writer writer, String dsName,
+      boolean confidence) {
+    HDF5DataSetInformation dsInfo =
+        reader.object().getDataSetInformation(dsName);
+    long[] dims = dsInfo.getDimensions();
+    int nDims    = dims.length - 2;
+    int nFrames  = (int)dims[0];
+    int nClasses = (int)dims[1];
+    int nLevs    = (nDims == 2) ? 1 : (int)dims[2];
+    int nRows    = (int)dims[dims.length - 2];
+    int nCols    = (int)dims[dims.length - 1];
+    int planeSize = nRows * nCols;
+    boolean wide = nClasses > 256;
+
+    long[] outDims = dims.clone();
+    outDims[1] = 1;
+    int[] planeDims = new int[dims.length];
+    Arrays.fill(planeDims, 1);
+    planeDims[dims.length - 2] = nRows;
+    planeDims[dims.length - 1] = nCols;
+    int[] blockDims = planeDims.clone();
+    blockDims[1] = nClasses;
+
+    String labelsName = LABELS_GROUP + "/" + dsName;
+    String confidenceName = CONFIDENCE_GROUP + "/" + dsName;
+    HDF5IntStorageFeatures features =
+        HDF5IntStorageFeatures.createDeflationUnsigned(1);
+    if (wide) writer.uint16().createMDArray(
+        labelsName, outDims, planeDims, features);
+    else writer.uint8().createMDArray(
+        labelsName, outDims, planeDims, features);
+    writer.int32().setAttr(labelsName, "nClasses", nClasses);
+    if (confidence) writer.uint8().createMDArray(
+        confidenceName, outDims, planeDims, features);
+
+    float[] maxScore = new float[planeSize];
+    short[] maxIndex = new short[planeSize];
+    float[] expSum = new float[planeSize];
+    byte[] labels8 = new byte[planeSize];
+    byte[] conf8 = new byte[planeSize];
+    for (int t = 0; t < nFrames; ++t) {
+      for (int z = 0; z < nLevs; ++z) {
+        long[] offset = new long[dims.length];
+        offset[0] = t;
+        if (nDims == 3) offset[2] = z;
+        float[] scores = reader.float32().readMDArrayBlockWithOffset(
+            dsName, blockDims, offset).getAsFlatArray();
+
+        System.arraycopy(scores, 0, maxScore, 0, planeSize);
+        Arrays.fill(maxIndex, (short)0);
+        for (int c = 1; c < nClasses; ++c) {
+          int off = c * planeSize;
+          for (int i = 0; i < planeSize; ++i) {
+            if (scores[off + i] > maxScore[i]) {
+              maxScore[i] = scores[off + i];
+              maxIndex[i] = (short)c;
+            }
+          }
+        }
+        if (wide) writer.uint16().writeMDArrayBlockWithOffset(
+            labelsName, new MDShortArray(maxIndex, planeDims), offset);
+        else {
+          for (int i = 0; i < planeSize; ++i)
+              labels8[i] = (byte)maxIndex[i];
+          writer.uint8().writeMDArrayBlockWithOffset(
+              labelsName, new MDByteArray(labels8, planeDims), offset);
+        }
+
+        if (!confidence) continue;
+        Arrays.fill(expSum, 0.0f);
+        for (int c = 0; c < nClasses; ++c) {
+          int off = c * planeSize;
+          for (int i = 0; i < planeSize; ++i)
+              expSum[i] += (float)Math.exp(scores[off + i] - maxScore[i]);
+        }
+        // The maximum softmax score is exp(0) / expSum
+        for (int i = 0; i < planeSize; ++i)
+            conf8[i] = (byte)Math.round(255.0f / expSum[i]);
+        writer.uint8().writeMDArrayBlockWithOffset(
+            confidenceName, new MDByteArray(conf8, planeDims), offset);
+      }
+    }
+  }
+
+}
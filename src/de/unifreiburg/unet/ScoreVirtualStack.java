@@ -0,0 +1,282 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package de.unifreiburg.unet;
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/*======================================================================*/
+/*!
+ *   A read-only VirtualStack showing the class scores of a caffe_unet
+ *   result dataset (T, C, [Z,] H, W) in ImageJ hyperstack order (c, z, t).
+ *   Planes are read from the HDF5 file on demand and kept in an LRU
+ *   cache. If softmax is requested, the softmax of a (t, z) plane is
+ *   computed when one of its classes is first displayed, and cached for
+ *   all of its classes. The file is kept open until the stack is closed,
+ *   see closeWith(). getPixels() and getProcessor() return copies of the
+ *   cached planes, so that modifications by the caller never alter the
+ *   cache.
+ */
+/*======================================================================*/
+public class ScoreVirtualStack extends VirtualStack {
+
+  private static final long CACHE_BYTES = 256l << 20;
+
+  // Number of open stacks per file and files to delete when their last
+  // stack is closed
+  private static final HashMap<File,Integer> _nOpenStacks =
+      new HashMap<File,Integer>();
+  private static final HashSet<File> _deleteWhenUnused = new HashSet<File>();
+
+  private final File _file;
+  private IHDF5Reader _reader;
+  private final String _dsName;
+  private final boolean _softmax;
+  private final int _nDims;
+  private final int _nFrames;
+  private final int _nClasses;
+  private final int _nLevs;
+  private final int _cacheCapacity;
+  private final LinkedHashMap<Integer,float[]> _cache;
+
+  // Buffers for classifyPlane(), only allocated for softmax stacks
+  private final short[] _labels;
+  private final float[][] _scratch;
+
+/*======================================================================*/
+/*!
+ *   Create a virtual stack for the given result dataset.
+ *
+ *   \param file The HDF5 result file. It is kept open until the stack is
+ *     closed
+ *   \param dsName The score dataset
+ *   \param softmax If true the softmax of the scores is shown instead of
+ *     the raw scores
+ */
+/*======================================================================*/
+  public ScoreVirtualStack(File file, String dsName, boolean softmax) {
+    this(file, HDF5Factory.openForReading(file), dsName, softmax);
+  }
+
+  private ScoreVirtualStack(
+      File file, IHDF5Reader reader, String dsName, boolean softmax) {
+    this(file, reader, dsName, softmax,
+         reader.object().getDataSetInformation(dsName).getDimensions());
+  }
+
+  private ScoreVirtualStack(
+      File file, IHDF5Reader reader, String dsName, boolean softmax,
+      long[] dims) {
+    super((int)dims[dims.length - 1], (int)dims[dims.length - 2], null,
+          null);
+    _file = file;
+    _reader = reader;
+    _dsName = dsName;
+    _softmax = softmax;
+    _nDims = dims.length - 2;
+    _nFrames = (int)dims[0];
+    _nClasses = (int)dims[1];
+    _nLevs = (_nDims == 2) ? 1 : (int)dims[2];
+    _cacheCapacity = (int)Math.max(
+        _nClasses, CACHE_BYTES / (4l * getWidth() * getHeight()));
+    _cache = new LinkedHashMap<Integer,float[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer,float[]> e) {
+        return size() > _cacheCapacity;
+      }
+    };
+    int planeSize = getWidth() * getHeight();
+    _labels = softmax ? new short[planeSize] : null;
+    _scratch = softmax ? new float[2][planeSize] : null;
+    synchronized (_nOpenStacks) {
+      Integer n = _nOpenStacks.get(file);
+      _nOpenStacks.put(file, (n == null) ? 1 : n + 1);
+    }
+  }
+
+/*======================================================================*/
+/*!
+ *   Close the stack when the given image showing it is closed.
+ *
+ *   \param imp The image backed by this stack
+ */
+/*======================================================================*/
+  public void closeWith(final ImagePlus imp) {
+    ImagePlus.addImageListener(
+        new ImageListener() {
+          @Override
+          public void imageOpened(ImagePlus image) {}
+          @Override
+          public void imageClosed(ImagePlus image) {
+            if (image != imp) return;
+            ImagePlus.removeImageListener(this);
+            close();
+          }
+          @Override
+          public void imageUpdated(ImagePlus image) {}
+        });
+  }
+
+/*======================================================================*/
+/*!
+ *   Close the HDF5 file and drop all cached planes. If the file was
+ *   passed to deleteWhenUnused() and this is the last open stack reading
+ *   it, the file is deleted.
+ */
+/*======================================================================*/
+  public void close() {
+    synchronized (this) {
+      if (_reader == null) return;
+      _reader.close();
+      _reader = null;
+      _cache.clear();
+    }
+    synchronized (_nOpenStacks) {
+      int n = _nOpenStacks.get(_file) - 1;
+      if (n > 0) _nOpenStacks.put(_file, n);
+      else {
+        _nOpenStacks.remove(_file);
+        if (_deleteWhenUnused.remove(_file)) _file.delete();
+      }
+    }
+  }
+
+/*======================================================================*/
+/*!
+ *   Delete the given file as soon as no ScoreVirtualStack reads it
+ *   anymore. If no stack is open for it, it is deleted immediately.
+ *
+ *   \param file The file to delete
+ */
+/*======================================================================*/
+  public static void deleteWhenUnused(File file) {
+    synchronized (_nOpenStacks) {
+      if (_nOpenStacks.containsKey(file)) _deleteWhenUnused.add(file);
+      else file.delete();
+    }
+  }
+
+  public int nClasses() {
+    return _nClasses;
+  }
+
+  public int nLevs() {
+    return _nLevs;
+  }
+
+  public int nFrames() {
+    return _nFrames;
+  }
+
+  @Override
+  public int getSize() {
+    return _nFrames * _nLevs * _nClasses;
+  }
+
+  @Override
+  public int getBitDepth() {
+    return 32;
+  }
+
+  @Override
+  public String getSliceLabel(int n) {
+    return "Class " + ((n - 1) % _nClasses);
+  }
+
+  @Override
+  public ImageProcessor getProcessor(int n) {
+    return new FloatProcessor(
+        getWidth(), getHeight(), plane(n - 1).clone());
+  }
+
+  @Override
+  public Object getPixels(int n) {
+    return plane(n - 1).clone();
+  }
+
+  @Override
+  public void setPixels(Object pixels, int n) {}
+
+  @Override
+  public void deleteSlice(int n) {
+    IJ.error("The score stack is read-only");
+  }
+
+  private synchronized float[] plane(int idx) {
+    float[] out = _cache.get(idx);
+    if (out != null) return out;
+
+    int c = idx % _nClasses;
+    int z = (idx / _nClasses) % _nLevs;
+    int t = idx / (_nClasses * _nLevs);
+    int[] blockDims = (_nDims == 2) ?
+        new int[] { 1, _softmax ? _nClasses : 1, getHeight(), getWidth() } :
+        new int[] {
+            1, _softmax ? _nClasses : 1, 1, getHeight(), getWidth() };
+    long[] offset = (_nDims == 2) ?
+        new long[] { t, _softmax ? 0 : c, 0, 0 } :
+        new long[] { t, _softmax ? 0 : c, z, 0, 0 };
+    if (_reader == null) return new float[getWidth() * getHeight()];
+    float[] scores = _reader.float32().readMDArrayBlockWithOffset(
+        _dsName, blockDims, offset).getAsFlatArray();
+    if (!_softmax) {
+      _cache.put(idx, scores);
+      return scores;
+    }
+
+    // All classes of the plane have been read, keep their softmax for
+    // subsequent requests
+    int planeSize = getWidth() * getHeight();
+    float[][] softmax = new float[_nClasses][planeSize];
+    SegmentationJob.classifyPlane(
+        FloatBuffer.wrap(scores), 0, planeSize, _nClasses, _labels, softmax,
+        _scratch);
+    int idx0 = idx - c;
+    for (int i = 0; i < _nClasses; ++i) _cache.put(idx0 + i, softmax[i]);
+    return softmax[c];
+  }
+
+}
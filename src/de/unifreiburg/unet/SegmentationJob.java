@@ -34,6 +34,7 @@ import ij.IJ;
 import ij.Prefs;
 import ij.WindowManager;
 import ij.ImagePlus;
+import ij.CompositeImage;
 import ij.plugin.PlugIn;
 import ij.plugin.frame.Recorder;
 import ij.measure.Calibration;
@@ -63,14 +64,26 @@ import javax.swing.GroupLayout;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.EOFException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Vector;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -86,14 +99,23 @@ import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
 import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
 import ch.systemsx.cisd.base.mdarray.MDFloatArray;
 
 public class SegmentationJob extends CaffeJob implements PlugIn {
 
+  // Folder on the remote host (relative to the home directory) keeping the
+  // jars for reducing the scores on the host across jobs
+  private static final String REMOTE_JAR_FOLDER = ".unet/jars/";
+
   protected File _localTmpFile = null;
 
   protected ImagePlus _imp = null;
 
+  // Element size of the converted data if it differs from the calibration
+  // of _imp (virtual stacks are not converted in memory)
+  protected double[] _dataElementSizeUm = null;
+
   protected final String[] _averagingModes = { "none", "mirror", "rotate" };
   protected JComboBox<String> _averagingComboBox =
       new JComboBox<String>(_averagingModes);
@@ -189,6 +211,9 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
               catch (IOException e) {
                 showError("Could not load segmentation result", e);
               }
+              catch (InterruptedException e) {
+                showError("Could not load segmentation result", e);
+              }
               finishJob();
             }
           };
@@ -643,8 +668,13 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
           "Creating Caffe blobs", 0.0f, (sshSession() != null) ? 0.03f : 0.09f);
 
       TrainingSample t = new TrainingSample(_imp);
-      t.createDataBlob(model(), progressMonitor());
-      if (t.dataBlob() != _imp) {
+      // Virtual stacks are converted plane-wise while saving instead of
+      // loading the whole stack into memory
+      _dataElementSizeUm =
+          _imp.getStack().isVirtual() ? model().elementSizeUm() : null;
+      if (_dataElementSizeUm == null)
+          t.createDataBlob(model(), progressMonitor());
+      if (t.dataBlob() != null && t.dataBlob() != _imp) {
         if (!_keepOriginalCheckBox.isSelected()) {
           _imp.changes = false;
           _imp.close();
@@ -671,7 +701,9 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
           (sshSession() != null) ? 0.04f : 0.1f);
 
       _createdLocalFiles.addAll(
-          t.saveBlobs(_localTmpFile, model(), progressMonitor()));
+          t.saveBlobs(
+              _localTmpFile, model(), storageProfile(),
+              hostConfiguration().uploadScaleDigits(), progressMonitor()));
 
       if (interrupted()) throw new InterruptedException();
       progressMonitor().pop();
@@ -709,7 +741,16 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
 
       if (sshSession() != null) {
         progressMonitor().pop();
-        progressMonitor().push("Downloading segmentation", 0.9f, 1.0f);
+        // Labels and confidences suffice if no scores are requested
+        if (hostConfiguration().reduceOnHost() &&
+            !_outputScoresCheckBox.isSelected() &&
+            !_outputSoftmaxScoresCheckBox.isSelected() &&
+            !(this instanceof DetectionJob)) {
+          progressMonitor().push("Reducing scores on host", 0.9f, 0.91f);
+          remoteFileName = reduceScoresOnHost(remoteFileName);
+          progressMonitor().pop();
+        }
+        progressMonitor().push("Downloading segmentation", 0.91f, 1.0f);
         new SftpFileIO(sshSession(), progressMonitor()).get(
             remoteFileName, _localTmpFile);
       }
@@ -739,8 +780,180 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
     }
   }
 
+/*======================================================================*/
+/*!
+ *   Get the calibration for the segmentation result images. These have the
+ *   shape and element size of the converted data blob.
+ */
+/*======================================================================*/
+  protected Calibration resultCalibration() {
+    Calibration cal = _imp.getCalibration().copy();
+    if (_dataElementSizeUm == null) return cal;
+    cal.setUnit("um");
+    if (_dataElementSizeUm.length == 2) {
+      cal.pixelDepth = 1;
+      cal.pixelHeight = _dataElementSizeUm[0];
+      cal.pixelWidth = _dataElementSizeUm[1];
+    }
+    else {
+      cal.pixelDepth = _dataElementSizeUm[0];
+      cal.pixelHeight = _dataElementSizeUm[1];
+      cal.pixelWidth = _dataElementSizeUm[2];
+    }
+    return cal;
+  }
+
+/*======================================================================*/
+/*!
+ *   Reduce the scores of the given remote result file to labels and
+ *   (if requested in the host configuration) confidences on the remote host
+ *   using ScoreReducer. The plugin and jhdf5 jars are uploaded once to
+ *   REMOTE_JAR_FOLDER in the user's home directory for this purpose. The
+ *   jar names carry a checksum of their content, so that jars of other
+ *   plugin versions are never reused.
+ *
+ *   \param remoteFileName The caffe_unet result file on the remote host
+ *
+ *   \return The name of the reduced remote file or remoteFileName if
+ *     the scores could not be reduced
+ */
+/*======================================================================*/
+  private String reduceScoresOnHost(String remoteFileName)
+      throws JSchException, IOException, InterruptedException, SftpException {
+    // ScoreReducer needs jhdf5 and the cisd base library. Depending on the
+    // jhdf5 version, commons-io and commons-lang are needed as well, they
+    // are shipped if available.
+    Vector<Class<?>> classes = new Vector<Class<?>>(
+        Arrays.asList(
+            ScoreReducer.class, IHDF5Reader.class, MDByteArray.class));
+    for (String name : new String[] {
+            "org.apache.commons.io.IOUtils",
+            "org.apache.commons.lang3.StringUtils",
+            "org.apache.commons.lang.StringUtils" }) {
+      try {
+        classes.add(Class.forName(name));
+      }
+      catch (ClassNotFoundException e) {}
+    }
+
+    Vector<File> jars = new Vector<File>();
+    for (Class<?> c : classes) {
+      File jar = null;
+      try {
+        jar = new File(
+            c.getProtectionDomain().getCodeSource().getLocation().toURI());
+      }
+      catch (Exception e) {}
+      if (jar == null || !jar.isFile()) {
+        IJ.log("Could not locate the jar containing " + c.getName() +
+               ", downloading full scores");
+        return remoteFileName;
+      }
+      if (!jars.contains(jar)) jars.add(jar);
+    }
+
+    String classPath = "";
+    SftpFileIO sftp = new SftpFileIO(sshSession(), progressMonitor());
+    for (File jar : jars) {
+      String remoteJar = REMOTE_JAR_FOLDER +
+          jar.getName().replaceFirst("\\.jar$", "") + "-" +
+          Long.toHexString(Tools.checksum(jar)) + ".jar";
+      if (!sftp.exists(remoteJar)) {
+        // Upload under a job specific name first, so that other jobs never
+        // see partially uploaded jars
+        String tmpJar = remoteJar + "." + id();
+        sftp.put(jar, tmpJar);
+        try {
+          sftp.renameFile(tmpJar, remoteJar);
+        }
+        catch (SftpException e) {
+          // Another job uploaded the jar in the meantime
+          sftp.removeFile(tmpJar);
+          if (!sftp.exists(remoteJar)) throw e;
+        }
+      }
+      classPath += (classPath.isEmpty() ? "" : ":") + remoteJar;
+    }
+
+    String reducedFileName = processFolder() + id() + "_reduced.h5";
+    _createdRemoteFiles.add(reducedFileName);
+    ProcessResult res = Tools.execute(
+        Prefs.get("unet.javaBinary", "java") + " -cp " + classPath +
+        " " + ScoreReducer.class.getName() + " " + remoteFileName + " " +
+        reducedFileName +
+        (hostConfiguration().reduceWithConfidence() ? " -confidence" : ""),
+        sshSession(), progressMonitor());
+    if (res.exitStatus != 0) {
+      IJ.log("Score reduction on host failed, downloading full scores\n" +
+             res.cerr);
+      return remoteFileName;
+    }
+    return reducedFileName;
+  }
+
+/*======================================================================*/
+/*!
+ *   Compute the argmax and optionally the softmax of all classes of one
+ *   plane. The softmax is computed relative to the per-pixel maximum
+ *   score to avoid overflows.
+ *
+ *   \param scores The block containing the class scores of the plane
+ *   \param offset The offset of the first class of the plane in the block
+ *   \param classStride The distance between adjacent classes in the block
+ *   \param nClasses The number of classes
+ *   \param labels The output byte[] or short[] array for the index of the
+ *     maximum class
+ *   \param softmaxOut If not null the softmax scores are written to these
+ *     class planes
+ *   \param scratch Two temporary planes of the plane size. Workers pass
+ *     their own pair to avoid allocations per plane.
+ */
+/*======================================================================*/
+  public static void classifyPlane(
+      FloatBuffer scores, int offset, int classStride, int nClasses,
+      Object labels, float[][] softmaxOut, float[][] scratch) {
+    short[] shortLabels = (labels instanceof short[]) ? (short[])labels : null;
+    byte[] byteLabels = (labels instanceof byte[]) ? (byte[])labels : null;
+    float[] plane = scratch[0];
+    float[] maxScore = scratch[1];
+    int n = (shortLabels != null) ? shortLabels.length : byteLabels.length;
+    for (int c = 0; c < nClasses; ++c) {
+      scores.position(offset + c * classStride);
+      scores.get(plane, 0, n);
+      if (c == 0) {
+        System.arraycopy(plane, 0, maxScore, 0, n);
+        if (shortLabels != null) Arrays.fill(shortLabels, (short)0);
+        else Arrays.fill(byteLabels, (byte)0);
+        continue;
+      }
+      for (int i = 0; i < n; ++i) {
+        if (plane[i] > maxScore[i]) {
+          maxScore[i] = plane[i];
+          if (shortLabels != null) shortLabels[i] = (short)c;
+          else byteLabels[i] = (byte)c;
+        }
+      }
+    }
+    if (softmaxOut == null) return;
+    float[] expSum = plane;
+    Arrays.fill(expSum, 0, n, 0.0f);
+    for (int c = 0; c < nClasses; ++c) {
+      float[] sm = softmaxOut[c];
+      scores.position(offset + c * classStride);
+      scores.get(sm, 0, n);
+      for (int i = 0; i < n; ++i) {
+        sm[i] = (float)Math.exp(sm[i] - maxScore[i]);
+        expSum[i] += sm[i];
+      }
+    }
+    for (int c = 0; c < nClasses; ++c) {
+      float[] sm = softmaxOut[c];
+      for (int i = 0; i < n; ++i) sm[i] /= expSum[i];
+    }
+  }
+
   protected void loadSegmentationToImagePlus()
-      throws HDF5Exception, IOException {
+      throws HDF5Exception, IOException, InterruptedException {
 
     File file = _localTmpFile;
     boolean outputScores = _outputScoresCheckBox.isSelected();
@@ -750,330 +963,485 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
     progressMonitor().reset();
     progressMonitor().push("Creating visualization", 0.0f, 1.0f);
 
-    boolean computeSoftmaxScores = outputSoftmaxScores || generateMarkers;
+    // Score outputs are shown as virtual stacks backed by the result file,
+    // only marker generation needs the softmax scores in memory
+    boolean computeSoftmaxScores = generateMarkers;
+    boolean virtualScores =
+        outputScores || (outputSoftmaxScores && !generateMarkers);
 
     IHDF5Reader reader =
         HDF5Factory.configureForReading(file.getAbsolutePath()).reader();
-    List<String> outputs = reader.getGroupMembers("/");
-
-    int dsIdx = 1;
-    for (String dsName : outputs) {
-
-      progressMonitor().push(
-          "Creating visualization for " + dsName,
-          (float)(dsIdx - 1) / (float)outputs.size(),
-          (float)dsIdx / (float)outputs.size());
-
-      String title = imageName() + " - " + dsName;
-      HDF5DataSetInformation dsInfo =
-          reader.object().getDataSetInformation(dsName);
-      int nDims    = dsInfo.getDimensions().length - 2;
-      int nFrames  = (int)dsInfo.getDimensions()[0];
-      int nClasses = (int)dsInfo.getDimensions()[1];
-      int nLevs    = (nDims == 2) ? 1 : (int)dsInfo.getDimensions()[2];
-      int nRows    = (int)dsInfo.getDimensions()[2 + ((nDims == 2) ? 0 : 1)];
-      int nCols    = (int)dsInfo.getDimensions()[3 + ((nDims == 2) ? 0 : 1)];
-
-      ImagePlus impScores = null;
-      if (outputScores) {
-        impScores = IJ.createHyperStack(
-            title, nCols, nRows, nClasses, nLevs, nFrames, 32);
-        impScores.setDisplayMode(IJ.GRAYSCALE);
-        impScores.setCalibration(_imp.getCalibration().copy());
-      }
-
-      ImagePlus impSoftmaxScores = null;
-      if (computeSoftmaxScores) {
-        impSoftmaxScores = IJ.createHyperStack(
-            title + " (softmax)", nCols, nRows, nClasses, nLevs, nFrames, 32);
-        impSoftmaxScores.setDisplayMode(IJ.GRAYSCALE);
-        impSoftmaxScores.setCalibration(_imp.getCalibration().copy());
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = null;
+    RandomAccessFile rawFile = null;
+    try {
+      if (reader.object().exists(ScoreReducer.LABELS_GROUP)) {
+        loadReducedSegmentation(reader);
+        progressMonitor().end();
+        return;
       }
+      List<String> outputs = reader.getGroupMembers("/");
+      pool = Executors.newFixedThreadPool(nThreads);
+
+      int dsIdx = 1;
+      for (String dsName : outputs) {
+
+        progressMonitor().push(
+            "Creating visualization for " + dsName,
+            (float)(dsIdx - 1) / (float)outputs.size(),
+            (float)dsIdx / (float)outputs.size());
+
+        String title = imageName() + " - " + dsName;
+        HDF5DataSetInformation dsInfo =
+            reader.object().getDataSetInformation(dsName);
+        int nDims    = dsInfo.getDimensions().length - 2;
+        int nFrames  = (int)dsInfo.getDimensions()[0];
+        int nClasses = (int)dsInfo.getDimensions()[1];
+        int nLevs    = (nDims == 2) ? 1 : (int)dsInfo.getDimensions()[2];
+        int nRows    = (int)dsInfo.getDimensions()[2 + ((nDims == 2) ? 0 : 1)];
+        int nCols    = (int)dsInfo.getDimensions()[3 + ((nDims == 2) ? 0 : 1)];
+
+        ImagePlus impScores = null;
+        if (outputScores)
+            impScores = createVirtualScoreImage(title, file, dsName, false);
+
+        ImagePlus impSoftmaxScores = null;
+        if (outputSoftmaxScores && !computeSoftmaxScores)
+            impSoftmaxScores = createVirtualScoreImage(
+                title + " (softmax)", file, dsName, true);
+        if (computeSoftmaxScores) {
+          impSoftmaxScores = IJ.createHyperStack(
+              title + " (softmax)", nCols, nRows, nClasses, nLevs, nFrames, 32);
+          impSoftmaxScores.setDisplayMode(IJ.GRAYSCALE);
+          impSoftmaxScores.setCalibration(resultCalibration());
+        }
 
-      ImagePlus impClassification = IJ.createHyperStack(
-          title + " (segmentation)", nCols, nRows, 1, nLevs, nFrames, 16);
-      impClassification.setDisplayMode(IJ.GRAYSCALE);
-      impClassification.setCalibration(_imp.getCalibration().copy());
-
-      int[] blockDims = (nDims == 2) ?
-          (new int[] { 1, 1, nRows, nCols }) :
-          (new int[] { 1, 1, 1, nRows, nCols });
-      long[] blockIdx = (nDims == 2) ?
-          (new long[] { 0, 0, 0, 0 }) : (new long[] { 0, 0, 0, 0, 0 });
-
-      int nOperations = nFrames * nLevs * nClasses;
-      if (generateMarkers) nOperations += 4 * nFrames * nLevs * (nClasses - 1);
-      progressMonitor().init(nOperations);
-      dsIdx++;
+        // Use the narrowest pixel type that can hold all class labels
+        ImagePlus impClassification = IJ.createHyperStack(
+            title + " (segmentation)", nCols, nRows, 1, nLevs, nFrames,
+            (nClasses <= 256) ? 8 : 16);
+        impClassification.setDisplayMode(IJ.GRAYSCALE);
+        impClassification.setCalibration(resultCalibration());
+
+        // Blocks of several frames (2-D) or slices (3-D) with all classes
+        // are read per HDF5 call. Contiguous uncompressed results bypass the
+        // HDF5 library: each block is memory-mapped and classified directly
+        // on the mapping. For 3-D data the mapping spans the block's slices
+        // of all classes. On Windows a mapping keeps the file locked until
+        // it is garbage collected, which prevents deleting the result file,
+        // so blocks are read into a reused buffer with positional reads
+        // instead.
+        int nBlockAxis = (nDims == 2) ? nFrames : nLevs;
+        long bytesPerPlane = 4l * nClasses * nRows * nCols;
+        long planeBytes = 4l * nRows * nCols;
+        int nBlockPlanes = Tools.planesPerBlock(bytesPerPlane, nBlockAxis, 1);
+        long dataOffset = -1;
+        if (bytesPerPlane * nBlockPlanes <= Integer.MAX_VALUE)
+            dataOffset = Tools.contiguousDataOffset(reader, file, dsName);
+        long mappedBytes = (nDims == 2) ? bytesPerPlane * nBlockPlanes :
+            planeBytes * ((long)(nClasses - 1) * nLevs + nBlockPlanes);
+        boolean mapScores = dataOffset >= 0 && !IJ.isWindows() &&
+            mappedBytes <= Integer.MAX_VALUE;
+        ByteBuffer rawBlock = null;
+        if (dataOffset >= 0) {
+          if (rawFile == null) rawFile = new RandomAccessFile(file, "r");
+          if (!mapScores)
+              rawBlock = ByteBuffer.allocate(
+                  (int)(bytesPerPlane * nBlockPlanes)).order(
+                      ByteOrder.nativeOrder());
+        }
 
-      for (int t = 0; t < nFrames; ++t) {
-        blockIdx[0] = t;
-        for (int z = 0; z < nLevs; ++z) {
-          if (nDims == 3) blockIdx[2] = z;
-          float[] maxScore = new float[nRows * nCols];
-          float[] expScoreSum =
-              computeSoftmaxScores ? new float[nRows * nCols] : null;
-          ImageProcessor ipC = impClassification.getStack().getProcessor(
-              impClassification.getStackIndex(1, z + 1, t + 1));
-          short[] maxIndex = (short[])ipC.getPixels();
-          int c = 0;
-          blockIdx[1] = c;
-          progressMonitor().count(
-              "Classification t=" + (t + 1) + "/" + nFrames +
-              ", z=" + (z + 1) + "/" + nLevs + ", class=" + c + "/" +
-              (nClasses - 1), 1);
-          float[] score = reader.float32().readMDArrayBlock(
-              dsName, blockDims, blockIdx).getAsFlatArray();
-          if (outputScores)
-              System.arraycopy(
-                  score, 0,
-                  impScores.getStack().getProcessor(
-                      impScores.getStackIndex(c + 1, z + 1, t + 1)).getPixels(),
-                  0, nRows * nCols);
-          if (computeSoftmaxScores) {
-            float[] smscores =
-                (float[])impSoftmaxScores.getStack().getProcessor(
-                    impSoftmaxScores.getStackIndex(
-                        c + 1, z + 1, t + 1)).getPixels();
-            for (int i = 0; i < nRows * nCols; ++i) {
-              smscores[i] = (float)Math.exp((double)score[i]);
-              expScoreSum[i] = smscores[i];
+        // Scratch planes for classifyPlane(), at most one pair per worker
+        final int planeSize = nRows * nCols;
+        final ArrayBlockingQueue<float[][]> scratchPool =
+            new ArrayBlockingQueue<float[][]>(nThreads);
+
+        int nOperations = nFrames * nLevs * nClasses;
+        if (generateMarkers)
+            nOperations += 3 * nFrames * nLevs * (nClasses - 1);
+        progressMonitor().init(nOperations);
+        dsIdx++;
+
+        // The planes of each block are classified in parallel, blocks are
+        // read by this thread
+        int nBlocksPerFrame = (nDims == 2) ? 1 :
+            (nLevs + nBlockPlanes - 1) / nBlockPlanes;
+        for (int t = 0; t < nFrames; t += (nDims == 2) ? nBlockPlanes : 1) {
+          for (int b = 0; b < nBlocksPerFrame; ++b) {
+            int blockPos = (nDims == 2) ? t : b * nBlockPlanes;
+            int z = (nDims == 2) ? 0 : blockPos;
+            final int blockSize = Math.min(nBlockPlanes, nBlockAxis - blockPos);
+            FloatBuffer score;
+            // Distance between the classes of a 3-D block
+            int classStride3D = blockSize * nRows * nCols;
+            if (mapScores) {
+              long pos = (nDims == 2) ?
+                  dataOffset + bytesPerPlane * t :
+                  dataOffset + planeBytes * ((long)t * nClasses * nLevs + z);
+              long size = (nDims == 2) ? bytesPerPlane * blockSize :
+                  planeBytes * ((long)(nClasses - 1) * nLevs + blockSize);
+              score = rawFile.getChannel().map(
+                  FileChannel.MapMode.READ_ONLY, pos, size).order(
+                      ByteOrder.nativeOrder()).asFloatBuffer();
+              classStride3D = nLevs * nRows * nCols;
             }
-          }
-          System.arraycopy(score, 0, maxScore, 0, nRows * nCols);
-          Arrays.fill(maxIndex, (short) c);
-          ++c;
-          for (; c < nClasses; ++c) {
-            blockIdx[1] = c;
-            progressMonitor().count(
-                "Classification t=" + (t + 1) + "/" + nFrames +
-                ", z=" + (z + 1) + "/" + nLevs + ", class=" + c + "/" +
-                (nClasses - 1), 1);
-            score = reader.float32().readMDArrayBlock(
-                dsName, blockDims, blockIdx).getAsFlatArray();
-            if (outputScores)
-                System.arraycopy(
-                    score, 0, impScores.getStack().getProcessor(
-                        impScores.getStackIndex(
-                            c + 1, z + 1, t + 1)).getPixels(),
-                    0, nRows * nCols);
-            if (computeSoftmaxScores) {
-              float[] smscores =
-                  (float[])impSoftmaxScores.getStack().getProcessor(
-                  impSoftmaxScores.getStackIndex(
-                      c + 1, z + 1, t + 1)).getPixels();
-              for (int i = 0; i < nRows * nCols; ++i) {
-                smscores[i] = (float)Math.exp((double)score[i]);
-                expScoreSum[i] += smscores[i];
+            else if (rawBlock != null) {
+              // Same layout as the HDF5 block read: 2-D blocks are contiguous,
+              // 3-D blocks consist of one contiguous run of slices per class
+              int nRuns = (nDims == 2) ? 1 : nClasses;
+              long runBytes = (nDims == 2) ?
+                  bytesPerPlane * blockSize : planeBytes * blockSize;
+              rawBlock.clear();
+              for (int c = 0; c < nRuns; ++c) {
+                long pos = (nDims == 2) ?
+                    dataOffset + bytesPerPlane * t :
+                    dataOffset + planeBytes * (
+                        ((long)t * nClasses + c) * nLevs + z);
+                int start = rawBlock.position();
+                rawBlock.limit(start + (int)runBytes);
+                while (rawBlock.hasRemaining())
+                    if (rawFile.getChannel().read(
+                            rawBlock, pos + rawBlock.position() - start) < 0)
+                        throw new EOFException(file.getPath());
               }
+              rawBlock.flip();
+              score = rawBlock.asFloatBuffer();
             }
-            for (int i = 0; i < nRows * nCols; ++i) {
-              if (score[i] > maxScore[i]) {
-                maxScore[i] = score[i];
-                maxIndex[i] = (short) c;
-              }
+            else score = FloatBuffer.wrap(
+                (nDims == 2) ?
+                reader.float32().readMDArrayBlockWithOffset(
+                    dsName, new int[] { blockSize, nClasses, nRows, nCols },
+                    new long[] { t, 0, 0, 0 }).getAsFlatArray() :
+                reader.float32().readMDArrayBlockWithOffset(
+                    dsName,
+                    new int[] { 1, nClasses, blockSize, nRows, nCols },
+                    new long[] { t, 0, z, 0, 0 }).getAsFlatArray());
+
+            Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+            for (int i0 = 0; i0 < blockSize; ++i0) {
+              int tt = (nDims == 2) ? t + i0 : t;
+              int zz = (nDims == 2) ? 0 : z + i0;
+              final float[][] softmaxOut =
+                  computeSoftmaxScores ? new float[nClasses][] : null;
+              for (int c = 0; c < nClasses && computeSoftmaxScores; ++c)
+                  softmaxOut[c] =
+                      (float[])impSoftmaxScores.getStack().getPixels(
+                          impSoftmaxScores.getStackIndex(
+                              c + 1, zz + 1, tt + 1));
+              final Object labels = impClassification.getStack().getPixels(
+                  impClassification.getStackIndex(1, zz + 1, tt + 1));
+              final FloatBuffer blockScores = score.duplicate();
+              final int planeOffset = ((nDims == 2) ? i0 * nClasses : i0) *
+                  nRows * nCols;
+              final int classStride =
+                  (nDims == 2) ? nRows * nCols : classStride3D;
+              tasks.add(
+                  new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                      float[][] scratch = scratchPool.poll();
+                      if (scratch == null) scratch = new float[2][planeSize];
+                      classifyPlane(
+                          blockScores, planeOffset, classStride, nClasses,
+                          labels, softmaxOut, scratch);
+                      scratchPool.offer(scratch);
+                      return null;
+                    }
+                  });
             }
-          }
-          if (computeSoftmaxScores) {
-            for (c = 0; c < nClasses; ++c) {
-              float[] smscores =
-                  (float[])impSoftmaxScores.getStack().getProcessor(
-                      impSoftmaxScores.getStackIndex(
-                          c + 1, z + 1, t + 1)).getPixels();
-              for (int i = 0; i < nRows * nCols; ++i)
-                  smscores[i] /= expScoreSum[i];
+            try {
+              for (Future<Void> f : pool.invokeAll(tasks)) f.get();
+            }
+            catch (ExecutionException e) {
+              throw new RuntimeException(e.getCause());
             }
+            progressMonitor().count(
+                "Classification t=" + (t + 1) + "/" + nFrames +
+                ", z=" + (z + 1) + "/" + nLevs, blockSize * nClasses);
           }
         }
-      }
 
-      if (outputScores) {
-        for (int i = 0; i < impScores.getStackSize(); ++i) {
-          impScores.setSlice(i + 1);
+        // Virtual stacks only load the displayed plane
+        if (outputScores) {
           impScores.resetDisplayRange();
+          impScores.show();
         }
-        impScores.setSlice(1);
-        impScores.show();
-      }
-      if (outputSoftmaxScores) {
-        for (int i = 0; i < impSoftmaxScores.getStackSize(); ++i) {
-          impSoftmaxScores.setSlice(i + 1);
-          impSoftmaxScores.setDisplayRange(0.0, 1.0);
-        }
-        impSoftmaxScores.setSlice(1);
-        impSoftmaxScores.show();
-      }
-      if (impClassification.getStackSize() > 1) {
-        for (int i = 0; i < impClassification.getStackSize(); ++i) {
-          impClassification.setSlice(i + 1);
-          impClassification.resetDisplayRange();
-        }
-        impClassification.setSlice(1);
-      }
-      else impClassification.resetDisplayRange();
-      impClassification.show();
-
-      if (generateMarkers) {
-
-        // Create multi-channel image of per class binary masks
-        ImagePlus impMCClassification = IJ.createHyperStack(
-            title + " (classes)", nCols, nRows, nClasses - 1,
-            nLevs, nFrames, 8);
-        impMCClassification.setCalibration(_imp.getCalibration().copy());
-
-        for (int t = 0; t < nFrames; ++t) {
-          for (int z = 0; z < nLevs; ++z) {
-            short[] cl = (short[])impClassification.getStack().getProcessor(
-                impClassification.getStackIndex(1, z + 1, t + 1)).getPixels();
-            byte[][] mccl = new byte[nClasses - 1][];
-            for (int c = 0; c < nClasses - 1; ++c)
-            {
-              progressMonitor().count(
-                  "Generating masks t=" + (t + 1) + "/" + nFrames +
-                  ", z=" + (z + 1) + "/" + nLevs + ", class=" + (c + 1) + "/" +
-                  (nClasses - 1), 1);
-              ImageProcessor impMccl =
-                  impMCClassification.getStack().getProcessor(
-                      impMCClassification.getStackIndex(c + 1, z + 1, t + 1));
-              impMccl.setValue(0);
-              impMccl.fill();
-              mccl[c] = (byte[])impMccl.getPixels();
+        if (outputSoftmaxScores) {
+          if (computeSoftmaxScores) {
+            for (int i = 0; i < impSoftmaxScores.getStackSize(); ++i) {
+              impSoftmaxScores.setSlice(i + 1);
+              impSoftmaxScores.setDisplayRange(0.0, 1.0);
             }
-            for (int i = 0; i < nRows * nCols; ++i)
-                if (cl[i] != 0) mccl[cl[i] - 1][i] = (byte)255;
+            impSoftmaxScores.setSlice(1);
           }
+          else impSoftmaxScores.setDisplayRange(0.0, 1.0);
+          impSoftmaxScores.show();
         }
-
-        // Connected component labeling
-        progressMonitor().count("Connected component labeling", 0);
-        ConnectedComponentLabeling.ConnectedComponents connComps =
-            ConnectedComponentLabeling.label(
-                impMCClassification,
-                ConnectedComponentLabeling.SIMPLE_NEIGHBORHOOD,
-                progressMonitor());
-
-        // Compute centers of mass of connected components
-        float[][][] centerPosUm = new float[nFrames * (nClasses - 1)][][];
-        float[][] weightSum = new float[nFrames * (nClasses - 1)][];
-        int[][] nPixels = new int[nFrames * (nClasses - 1)][];
-        for (int i = 0; i < nFrames * (nClasses - 1); ++i) {
-          centerPosUm[i] = new float[connComps.nComponents[i]][nDims];
-          weightSum[i] = new float[connComps.nComponents[i]];
-          nPixels[i] = new int[connComps.nComponents[i]];
-          for (int j = 0; j < connComps.nComponents[i]; ++j) {
-            for (int d = 0; d < nDims; ++d) centerPosUm[i][j][d] = 0.0f;
-            weightSum[i][j] = 0.0f;
-            nPixels[i][j] = 0;
+        // Map the class labels to the full gray value range
+        impClassification.setDisplayRange(0, Math.max(1, nClasses - 1));
+        impClassification.show();
+
+        if (generateMarkers) {
+
+          // Connected component labeling directly on the class labels
+          progressMonitor().count("Connected component labeling", 0);
+          ConnectedComponentLabeling.ConnectedComponents connComps =
+              ConnectedComponentLabeling.labelClasses(
+                  impClassification, nClasses,
+                  ConnectedComponentLabeling.SIMPLE_NEIGHBORHOOD,
+                  progressMonitor());
+
+          // Compute centers of mass of connected components
+          float[][][] centerPosUm = new float[nFrames * (nClasses - 1)][][];
+          float[][] weightSum = new float[nFrames * (nClasses - 1)][];
+          int[][] nPixels = new int[nFrames * (nClasses - 1)][];
+          for (int i = 0; i < nFrames * (nClasses - 1); ++i) {
+            centerPosUm[i] = new float[connComps.nComponents[i]][nDims];
+            weightSum[i] = new float[connComps.nComponents[i]];
+            nPixels[i] = new int[connComps.nComponents[i]];
+            for (int j = 0; j < connComps.nComponents[i]; ++j) {
+              for (int d = 0; d < nDims; ++d) centerPosUm[i][j][d] = 0.0f;
+              weightSum[i][j] = 0.0f;
+              nPixels[i][j] = 0;
+            }
           }
-        }
-        int[] labels = (int[])connComps.labels.data();
-        double[] elSize = connComps.labels.elementSizeUm();
-        int lblIdx = 0;
-        for (int t = 0; t < nFrames; ++t) {
-          for (int c = 0; c < nClasses - 1; ++c) {
-            float[][] cPosUm = centerPosUm[t * (nClasses - 1) + c];
-            float[] ws = weightSum[t * (nClasses - 1) + c];
-            int[] np = nPixels[t * (nClasses - 1) + c];
-            for (int z = 0; z < nLevs; ++z) {
-              progressMonitor().count(
-                  "Computing positions t=" + (t + 1) + "/" + nFrames +
-                  ", z=" + (z + 1) + "/" + nLevs + ", class=" + (c + 1) + "/" +
-                  (nClasses - 1), 1);
-              float[] smscore = (float[])
-                  impSoftmaxScores.getStack().getProcessor(
-                      impSoftmaxScores.getStackIndex(
-                          c + 2, z + 1, t + 1)).getPixels();
-              int smIdx = 0;
-              for (int y = 0; y < nRows; ++y) {
-                for (int x = 0; x < nCols; ++x, ++lblIdx, ++smIdx) {
-                  if (labels[lblIdx] == 0) continue;
-                  if (nDims == 2) {
-                    cPosUm[labels[lblIdx] - 1][0] +=
-                        smscore[smIdx] * y * elSize[0];
-                    cPosUm[labels[lblIdx] - 1][1] +=
-                        smscore[smIdx] * x * elSize[1];
+          int[] labels = (int[])connComps.labels.data();
+          double[] elSize = connComps.labels.elementSizeUm();
+          int lblIdx = 0;
+          for (int t = 0; t < nFrames; ++t) {
+            for (int c = 0; c < nClasses - 1; ++c) {
+              float[][] cPosUm = centerPosUm[t * (nClasses - 1) + c];
+              float[] ws = weightSum[t * (nClasses - 1) + c];
+              int[] np = nPixels[t * (nClasses - 1) + c];
+              for (int z = 0; z < nLevs; ++z) {
+                progressMonitor().count(
+                    "Computing positions t=" + (t + 1) + "/" + nFrames +
+                    ", z=" + (z + 1) + "/" + nLevs + ", class=" + (c + 1) +
+                    "/" + (nClasses - 1), 1);
+                float[] smscore = (float[])
+                    impSoftmaxScores.getStack().getProcessor(
+                        impSoftmaxScores.getStackIndex(
+                            c + 2, z + 1, t + 1)).getPixels();
+                int smIdx = 0;
+                for (int y = 0; y < nRows; ++y) {
+                  for (int x = 0; x < nCols; ++x, ++lblIdx, ++smIdx) {
+                    if (labels[lblIdx] == 0) continue;
+                    if (nDims == 2) {
+                      cPosUm[labels[lblIdx] - 1][0] +=
+                          smscore[smIdx] * y * elSize[0];
+                      cPosUm[labels[lblIdx] - 1][1] +=
+                          smscore[smIdx] * x * elSize[1];
+                    }
+                    else {
+                      cPosUm[labels[lblIdx] - 1][0] +=
+                          smscore[smIdx] * z * elSize[0];
+                      cPosUm[labels[lblIdx] - 1][1] +=
+                          smscore[smIdx] * y * elSize[1];
+                      cPosUm[labels[lblIdx] - 1][2] +=
+                          smscore[smIdx] * x * elSize[2];
+                    }
+                    ws[labels[lblIdx] - 1] += smscore[smIdx];
+                    np[labels[lblIdx] - 1]++;
                   }
-                  else {
-                    cPosUm[labels[lblIdx] - 1][0] +=
-                        smscore[smIdx] * z * elSize[0];
-                    cPosUm[labels[lblIdx] - 1][1] +=
-                        smscore[smIdx] * y * elSize[1];
-                    cPosUm[labels[lblIdx] - 1][2] +=
-                        smscore[smIdx] * x * elSize[2];
-                  }
-                  ws[labels[lblIdx] - 1] += smscore[smIdx];
-                  np[labels[lblIdx] - 1]++;
                 }
               }
             }
           }
-        }
 
-        Overlay overlay = new Overlay();
-        ResultsTable table = new ResultsTable();
-        int volIdx = 0;
-        for (int t = 0; t < nFrames; ++t) {
-          for (int c = 0; c < nClasses - 1; ++c, ++volIdx) {
-            PointRoi[] detections = new PointRoi[nLevs];
-            for (int j = 0; j < connComps.nComponents[volIdx]; ++j) {
-              table.incrementCounter();
-              table.addValue("frame", t + 1);
-              for (int d = 0; d < nDims; ++d)
-                  centerPosUm[volIdx][j][d] /= weightSum[volIdx][j];
-              if (nDims == 2) {
-                table.addValue("x [µm]", centerPosUm[volIdx][j][1]);
-                table.addValue("y [µm]", centerPosUm[volIdx][j][0]);
-                if (detections[0] == null) {
-                  detections[0] = new PointRoi(
+          Overlay overlay = new Overlay();
+          ResultsTable table = new ResultsTable();
+          int volIdx = 0;
+          for (int t = 0; t < nFrames; ++t) {
+            for (int c = 0; c < nClasses - 1; ++c, ++volIdx) {
+              PointRoi[] detections = new PointRoi[nLevs];
+              for (int j = 0; j < connComps.nComponents[volIdx]; ++j) {
+                table.incrementCounter();
+                table.addValue("frame", t + 1);
+                for (int d = 0; d < nDims; ++d)
+                    centerPosUm[volIdx][j][d] /= weightSum[volIdx][j];
+                if (nDims == 2) {
+                  table.addValue("x [µm]", centerPosUm[volIdx][j][1]);
+                  table.addValue("y [µm]", centerPosUm[volIdx][j][0]);
+                  if (detections[0] == null) {
+                    detections[0] = new PointRoi(
+                        centerPosUm[volIdx][j][1] / elSize[1],
+                        centerPosUm[volIdx][j][0] / elSize[0]);
+                    detections[0].setPosition(t + 1);
+                  }
+                  else detections[0].addPoint(
                       centerPosUm[volIdx][j][1] / elSize[1],
                       centerPosUm[volIdx][j][0] / elSize[0]);
-                  detections[0].setPosition(t + 1);
                 }
-                else detections[0].addPoint(
-                    centerPosUm[volIdx][j][1] / elSize[1],
-                    centerPosUm[volIdx][j][0] / elSize[0]);
-              }
-              else {
-                table.addValue("x [µm]", centerPosUm[volIdx][j][2]);
-                table.addValue("y [µm]", centerPosUm[volIdx][j][1]);
-                table.addValue("z [µm]", centerPosUm[volIdx][j][0]);
-                int z = (int)Math.round(centerPosUm[volIdx][j][0] / elSize[0]);
-                if (z < 0) z = 0;
-                if (z >= nLevs) z = nLevs - 1;
-                if (detections[z] == null) {
-                  detections[z] = new PointRoi(
+                else {
+                  table.addValue("x [µm]", centerPosUm[volIdx][j][2]);
+                  table.addValue("y [µm]", centerPosUm[volIdx][j][1]);
+                  table.addValue("z [µm]", centerPosUm[volIdx][j][0]);
+                  int z = (int)Math.round(
+                      centerPosUm[volIdx][j][0] / elSize[0]);
+                  if (z < 0) z = 0;
+                  if (z >= nLevs) z = nLevs - 1;
+                  if (detections[z] == null) {
+                    detections[z] = new PointRoi(
+                        centerPosUm[volIdx][j][2] / elSize[2],
+                        centerPosUm[volIdx][j][1] / elSize[1]);
+                    if (nFrames > 1)
+                        detections[z].setPosition(1, z + 1, t + 1);
+                    else
+                        detections[z].setPosition(z + 1);
+                  }
+                  else detections[z].addPoint(
                       centerPosUm[volIdx][j][2] / elSize[2],
                       centerPosUm[volIdx][j][1] / elSize[1]);
-                  if (nFrames > 1)
-                      detections[z].setPosition(1, z + 1, t + 1);
-                  else
-                      detections[z].setPosition(z + 1);
                 }
-                else detections[z].addPoint(
-                    centerPosUm[volIdx][j][2] / elSize[2],
-                    centerPosUm[volIdx][j][1] / elSize[1]);
+                if (model().classNames != null)
+                    table.addValue("class", model().classNames[c + 1]);
+                else table.addValue("class", c + 1);
+                table.addValue(
+                    "confidence", weightSum[volIdx][j] / nPixels[volIdx][j]);
+              }
+              for (int z = 0; z < nLevs; ++z) {
+                if (detections[z] != null) overlay.add(
+                    detections[z], (model().classNames != null) ?
+                    model().classNames[c + 1] : ("Class " + (c + 1)));
               }
-              if (model().classNames != null)
-                  table.addValue("class", model().classNames[c + 1]);
-              else table.addValue("class", c + 1);
-              table.addValue(
-                  "confidence", weightSum[volIdx][j] / nPixels[volIdx][j]);
-            }
-            for (int z = 0; z < nLevs; ++z) {
-              if (detections[z] != null) overlay.add(
-                  detections[z], (model().classNames != null) ?
-                  model().classNames[c + 1] : ("Class " + (c + 1)));
             }
           }
+
+          table.show(title + " (detections)");
+          impClassification.setOverlay(overlay);
         }
+        progressMonitor().pop(); // Process dataset
+      }
+    }
+    finally {
+      if (pool != null) pool.shutdownNow();
+      if (rawFile != null) rawFile.close();
+      reader.close();
+    }
 
-        table.show(title + " (detections)");
-        impClassification.setOverlay(overlay);
+    // The virtual score stacks read from the result file, it is deleted
+    // when the last of them is closed
+    if (virtualScores && _createdLocalFiles.remove(file))
+        ScoreVirtualStack.deleteWhenUnused(file);
+    progressMonitor().end();
+  }
+
+/*======================================================================*/
+/*!
+ *   Create a hyperstack showing the scores of the given result dataset
+ *   without loading them into memory.
+ *
+ *   \param title The image title
+ *   \param file The HDF5 result file
+ *   \param dsName The score dataset
+ *   \param softmax If true, show the softmax of the scores
+ *
+ *   \return The new ImagePlus backed by a ScoreVirtualStack
+ */
+/*======================================================================*/
+  private ImagePlus createVirtualScoreImage(
+      String title, File file, String dsName, boolean softmax) {
+    ScoreVirtualStack stack = new ScoreVirtualStack(file, dsName, softmax);
+    ImagePlus imp = new ImagePlus(title, stack);
+    imp.setDimensions(stack.nClasses(), stack.nLevs(), stack.nFrames());
+    imp.setOpenAsHyperStack(true);
+    if (stack.nClasses() > 1) imp = new CompositeImage(imp, IJ.GRAYSCALE);
+    imp.setCalibration(resultCalibration());
+    stack.closeWith(imp);
+    return imp;
+  }
+
+/*======================================================================*/
+/*!
+ *   Create the segmentation and confidence images from a result file
+ *   that was reduced on the remote host by ScoreReducer.
+ */
+/*======================================================================*/
+  private void loadReducedSegmentation(IHDF5Reader reader) {
+    List<String> outputs = reader.getGroupMembers(ScoreReducer.LABELS_GROUP);
+
+    int dsIdx = 1;
+    for (String dsName : outputs) {
+
+      progressMonitor().push(
+          "Creating visualization for " + dsName,
+          (float)(dsIdx - 1) / (float)outputs.size(),
+          (float)dsIdx / (float)outputs.size());
+      dsIdx++;
+
+      String title = imageName() + " - " + dsName;
+      String labelsName = ScoreReducer.LABELS_GROUP + "/" + dsName;
+      String confidenceName = ScoreReducer.CONFIDENCE_GROUP + "/" + dsName;
+      HDF5DataSetInformation dsInfo =
+          reader.object().getDataSetInformation(labelsName);
+      long[] dims = dsInfo.getDimensions();
+      int nDims   = dims.length - 2;
+      int nFrames = (int)dims[0];
+      int nLevs   = (nDims == 2) ? 1 : (int)dims[2];
+      int nRows   = (int)dims[dims.length - 2];
+      int nCols   = (int)dims[dims.length - 1];
+      boolean wide = dsInfo.getTypeInformation().getElementSize() == 2;
+      int nClasses = reader.int32().getAttr(labelsName, "nClasses");
+      boolean hasConfidence = reader.object().exists(confidenceName);
+
+      ImagePlus impClassification = IJ.createHyperStack(
+          title + " (segmentation)", nCols, nRows, 1, nLevs, nFrames,
+          wide ? 16 : 8);
+      impClassification.setDisplayMode(IJ.GRAYSCALE);
+      impClassification.setCalibration(resultCalibration());
+
+      ImagePlus impConfidence = null;
+      if (hasConfidence) {
+        impConfidence = IJ.createHyperStack(
+            title + " (confidence)", nCols, nRows, 1, nLevs, nFrames, 8);
+        impConfidence.setDisplayMode(IJ.GRAYSCALE);
+        Calibration cal = resultCalibration();
+        cal.setFunction(
+            Calibration.STRAIGHT_LINE, new double[] { 0.0, 1.0 / 255.0 },
+            "softmax");
+        impConfidence.setCalibration(cal);
+      }
+
+      int[] planeDims = new int[dims.length];
+      Arrays.fill(planeDims, 1);
+      planeDims[dims.length - 2] = nRows;
+      planeDims[dims.length - 1] = nCols;
+      progressMonitor().init(nFrames * nLevs);
+      for (int t = 0; t < nFrames; ++t) {
+        for (int z = 0; z < nLevs; ++z) {
+          progressMonitor().count(
+              "Loading labels t=" + (t + 1) + "/" + nFrames +
+              ", z=" + (z + 1) + "/" + nLevs, 1);
+          long[] offset = new long[dims.length];
+          offset[0] = t;
+          if (nDims == 3) offset[2] = z;
+          System.arraycopy(
+              wide ?
+              reader.uint16().readMDArrayBlockWithOffset(
+                  labelsName, planeDims, offset).getAsFlatArray() :
+              reader.uint8().readMDArrayBlockWithOffset(
+                  labelsName, planeDims, offset).getAsFlatArray(),
+              0, impClassification.getStack().getPixels(
+                  impClassification.getStackIndex(1, z + 1, t + 1)),
+              0, nRows * nCols);
+          if (hasConfidence) System.arraycopy(
+              reader.uint8().readMDArrayBlockWithOffset(
+                  confidenceName, planeDims, offset).getAsFlatArray(),
+              0, impConfidence.getStack().getPixels(
+                  impConfidence.getStackIndex(1, z + 1, t + 1)),
+              0, nRows * nCols);
+        }
+      }
+
+      // Map the class labels to the full gray value range
+      impClassification.setDisplayRange(0, Math.max(1, nClasses - 1));
+      impClassification.show();
+      if (hasConfidence) {
+        impConfidence.setDisplayRange(0.0, 255.0);
+        impConfidence.show();
       }
       progressMonitor().pop(); // Process dataset
     }
-    reader.close();
-    progressMonitor().end();
   }
 
 };
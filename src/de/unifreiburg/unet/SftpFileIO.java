@@ -63,6 +63,36 @@ public class SftpFileIO {
           _pr = progressMonitor;
         }
 
+/*======================================================================*/
+/*!
+ *   Check whether the given path exists on the remote host.
+ *
+ *   \param path The file path on the remote host. Relative paths are
+ *     interpreted relative to the user home directory.
+ *
+ *   \exception JSchException if the SSH session is not open
+ *   \exception SftpException if the Sftp connection fails
+ *
+ *   \return true if the path exists, false otherwise
+ */
+/*======================================================================*/
+  public boolean exists(String path) throws JSchException, SftpException {
+    ChannelSftp channel = (ChannelSftp)_session.openChannel("sftp");
+    channel.connect();
+    try {
+      channel.cd(channel.getHome());
+      channel.stat(path);
+      return true;
+    }
+    catch (SftpException e) {
+      if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) return false;
+      throw e;
+    }
+    finally {
+      channel.disconnect();
+    }
+  }
+
 /*======================================================================*/
 /*!
  *   Remove the file with given path from the remote host via sftp.
@@ -0,0 +1,71 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.PlugIn;
+
+import java.io.IOException;
+
+/*======================================================================*/
+/*!
+ *   Write the current image with every HDF5 storage profile and log the
+ *   throughput and compression ratio. The preferred profile can then be
+ *   stored in the ImageJ preference "unet.storageProfile".
+ */
+/*======================================================================*/
+public class StorageProfileCalibration implements PlugIn {
+
+  @Override
+  public void run(String arg) {
+    ImagePlus imp = IJ.getImage();
+    if (imp == null) {
+      IJ.noImage();
+      return;
+    }
+    if (imp.getBitDepth() == 24) {
+      IJ.error("HDF5 storage profile calibration",
+               "RGB images are not supported");
+      return;
+    }
+    try
+    {
+      ProgressMonitor pr = new ProgressMonitor(null);
+      pr.push("HDF5 storage profile calibration", 0.0f, 1.0f);
+      Tools.calibrateStorageProfiles(Tools.planeSource(imp), pr);
+      pr.end();
+    }
+    catch (IOException|InterruptedException e) {
+      IJ.error(e.toString());
+    }
+  }
+
+}
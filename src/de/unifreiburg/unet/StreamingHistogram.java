@@ -0,0 +1,254 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package de.unifreiburg.unet;
+
+import java.util.Arrays;
+
+/*======================================================================*/
+/*!
+ *   A histogram with a fixed number of bins that is built in a single pass
+ *   over the data without knowing the value range in advance. Bins have
+ *   a width of 2^e and are aligned to multiples of the bin width. When new
+ *   values fall outside the current bin range, the range is shifted or
+ *   neighboring bins are merged (doubling the bin width) until all values
+ *   fit. Because of the common alignment, histograms built independently,
+ *   e.g. by different threads, can be merged exactly.
+ *
+ *   Percentiles are accurate up to the final bin width, which is at most
+ *   four times (max - min) / nBins.
+ */
+/*======================================================================*/
+public class StreamingHistogram {
+
+  private final long[] _counts;
+  private long _total = 0;
+  private int _exp = 0;
+  private long _offset = 0;
+  private double _minValue = Double.POSITIVE_INFINITY;
+  private double _maxValue = Double.NEGATIVE_INFINITY;
+
+/*======================================================================*/
+/*!
+ *   Create an empty histogram.
+ *
+ *   \param nBins The number of bins. Must be at least 2.
+ */
+/*======================================================================*/
+  public StreamingHistogram(int nBins) {
+    _counts = new long[nBins];
+  }
+
+  public long count() {
+    return _total;
+  }
+
+/*======================================================================*/
+/*!
+ *   Add the finite values in the given array range to the histogram.
+ *   Non-finite values are ignored.
+ *
+ *   \param values The values to add
+ *   \param from The index of the first value to add
+ *   \param to The index after the last value to add
+ */
+/*======================================================================*/
+  public void add(float[] values, int from, int to) {
+    double minValue = Double.POSITIVE_INFINITY;
+    double maxValue = Double.NEGATIVE_INFINITY;
+    for (int i = from; i < to; ++i) {
+      float v = values[i];
+      if (v < minValue) minValue = v;
+      if (v > maxValue) maxValue = v;
+    }
+    if (Double.isInfinite(minValue) || Double.isInfinite(maxValue)) {
+      // Infinite values present, filter them
+      minValue = Double.POSITIVE_INFINITY;
+      maxValue = Double.NEGATIVE_INFINITY;
+      for (int i = from; i < to; ++i) {
+        float v = values[i];
+        if (Float.isInfinite(v)) continue;
+        if (v < minValue) minValue = v;
+        if (v > maxValue) maxValue = v;
+      }
+    }
+    if (minValue > maxValue) return;
+    ensureRange(minValue, maxValue);
+    double scale = Math.scalb(1.0, -_exp);
+    for (int i = from; i < to; ++i) {
+      float v = values[i];
+      if (Float.isNaN(v) || Float.isInfinite(v)) continue;
+      _counts[(int)((long)Math.floor(v * scale) - _offset)]++;
+      _total++;
+    }
+  }
+
+/*======================================================================*/
+/*!
+ *   Add all values of the other histogram to this histogram. The other
+ *   histogram may be modified (coarsened) in the process.
+ *
+ *   \param other The histogram to merge into this one
+ */
+/*======================================================================*/
+  public void merge(StreamingHistogram other) {
+    if (other._total == 0) return;
+    if (_total == 0) {
+      System.arraycopy(other._counts, 0, _counts, 0, _counts.length);
+      _total = other._total;
+      _exp = other._exp;
+      _offset = other._offset;
+      _minValue = other._minValue;
+      _maxValue = other._maxValue;
+      return;
+    }
+    if (other._exp > _exp)
+        rebin(other._exp, shiftRight(_offset, other._exp - _exp));
+    ensureRange(other._minValue, other._maxValue);
+    if (other._exp < _exp)
+        other.rebin(_exp, shiftRight(other._offset, _exp - other._exp));
+    for (int b = 0; b < other._counts.length; ++b) {
+      if (other._counts[b] == 0) continue;
+      _counts[(int)(other._offset + b - _offset)] += other._counts[b];
+    }
+    _total += other._total;
+  }
+
+/*======================================================================*/
+/*!
+ *   Get the value below which the given percentage of values lies. The
+ *   value is linearly interpolated within the bin containing the
+ *   requested rank.
+ *
+ *   \param percent The percentile in [0, 100]
+ *
+ *   \return The percentile value or NaN if the histogram is empty
+ */
+/*======================================================================*/
+  public double percentile(double percent) {
+    if (_total == 0) return Double.NaN;
+    double rank = Math.min(Math.max(percent, 0.0), 100.0) / 100.0 * _total;
+    double binWidth = Math.scalb(1.0, _exp);
+    long cumulative = 0;
+    for (int b = 0; b < _counts.length; ++b) {
+      if (_counts[b] == 0) continue;
+      if (cumulative + _counts[b] >= rank) {
+        double value = (_offset + b +
+                        (rank - cumulative) / _counts[b]) * binWidth;
+        return Math.min(Math.max(value, _minValue), _maxValue);
+      }
+      cumulative += _counts[b];
+    }
+    return _maxValue;
+  }
+
+/*======================================================================*/
+/*!
+ *   Make sure that the values in [minValue, maxValue] map to valid bins.
+ */
+/*======================================================================*/
+  private void ensureRange(double minValue, double maxValue) {
+    int nBins = _counts.length;
+    if (_total == 0) {
+      // Choose the smallest bin width that covers the range with half of
+      // the bins to leave room for subsequent values. Constant data of
+      // value 0 (or subnormal) gets bins of width 1, otherwise 2^-exp
+      // would overflow.
+      double range = maxValue - minValue;
+      double magnitude = Math.max(Math.abs(minValue), Math.abs(maxValue));
+      int exp = 0;
+      if (range > 0) exp = Math.getExponent(range / (nBins / 2)) + 1;
+      else if (magnitude >= Double.MIN_NORMAL)
+          exp = Math.getExponent(magnitude) - 16;
+      // 2^-exp must be finite and bin indices must not exceed the long
+      // range
+      exp = Math.max(exp, Math.max(
+          Double.MIN_EXPONENT, Math.getExponent(magnitude) - 52));
+      _exp = exp;
+      _offset = (long)Math.floor(minValue * Math.scalb(1.0, -_exp)) -
+          (nBins - (long)Math.floor(range * Math.scalb(1.0, -_exp))) / 4;
+      Arrays.fill(_counts, 0);
+    }
+    else {
+      // Coarsen first if the new values exceed the long bin index range
+      int minExp = Math.getExponent(
+          Math.max(Math.abs(minValue), Math.abs(maxValue))) - 52;
+      if (minExp > _exp) rebin(minExp, shiftRight(_offset, minExp - _exp));
+    }
+    double scale = Math.scalb(1.0, -_exp);
+    long low = (long)Math.floor(minValue * scale);
+    long high = (long)Math.floor(maxValue * scale);
+    if (low >= _offset && high < _offset + nBins) {
+      _minValue = Math.min(_minValue, minValue);
+      _maxValue = Math.max(_maxValue, maxValue);
+      return;
+    }
+    // Only the occupied range must be preserved
+    low = Math.min(low, (long)Math.floor(_minValue * scale));
+    high = Math.max(high, (long)Math.floor(_maxValue * scale));
+    int exp = _exp;
+    while (high - low >= nBins) {
+      low >>= 1;
+      high >>= 1;
+      exp++;
+    }
+    // Center the occupied range within the bins
+    rebin(exp, low - (nBins - 1 - (high - low)) / 2);
+    _minValue = Math.min(_minValue, minValue);
+    _maxValue = Math.max(_maxValue, maxValue);
+  }
+
+/*======================================================================*/
+/*!
+ *   Move the counts to bins of width 2^exp starting at bin index offset.
+ *   exp must not be smaller than the current exponent and all occupied
+ *   bins must fall into the new bin range.
+ */
+/*======================================================================*/
+  private void rebin(int exp, long offset) {
+    int shift = exp - _exp;
+    if (shift == 0 && offset == _offset) return;
+    long[] counts = new long[_counts.length];
+    for (int b = 0; b < _counts.length; ++b) {
+      if (_counts[b] == 0) continue;
+      counts[(int)(shiftRight(_offset + b, shift) - offset)] += _counts[b];
+    }
+    System.arraycopy(counts, 0, _counts, 0, counts.length);
+    _exp = exp;
+    _offset = offset;
+  }
+
+  // floor(value / 2^shift), Java masks shift distances to 6 bits
+  private static long shiftRight(long value, int shift) {
+    return value >> Math.min(shift, 63);
+  }
+
+}
@@ -0,0 +1,294 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package de.unifreiburg.unet;
+
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+import ij.io.TiffDecoder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*======================================================================*/
+/*!
+ *   Plane-wise read access to the raw pixel values of a TIFF file without
+ *   creating an ImagePlus. Planes are read from disk on request and
+ *   converted to float. Color images (RGB or indexed color) are split into
+ *   three channels (red, green, blue).
+ *
+ *   Hyperstack dimensions and voxel depth are taken from the ImageJ image
+ *   description if present, otherwise all images of the file are treated
+ *   as slices of a single-channel, single-frame stack.
+ */
+/*======================================================================*/
+public class TiffPlaneSource implements PlaneSource {
+
+  private final File _file;
+  private final FileInfo[] _info;
+  private final int _nImages;
+  private final boolean _isColor;
+  private final byte[][] _lut;
+  private final int _T, _C, _Z, _H, _W;
+  private final double[] _elementSizeUm;
+
+  private final float[] _plane;
+
+  // The last image read from file. Color images provide all channels of
+  // a plane, so they are only read once for all channels.
+  private int _cachedImageIdx = -1;
+  private Object _cachedPixels = null;
+
+/*======================================================================*/
+/*!
+ *   Open the given TIFF file and read its structure.
+ *
+ *   \param file The TIFF file
+ *
+ *   \exception IOException if the file cannot be read or contains an
+ *     unsupported pixel type
+ */
+/*======================================================================*/
+  public TiffPlaneSource(File file) throws IOException {
+    _file = file;
+    TiffDecoder decoder = new TiffDecoder(
+        file.getAbsoluteFile().getParent() + File.separator, file.getName());
+    _info = decoder.getTiffInfo();
+    if (_info == null || _info.length == 0)
+        throw new IOException("Could not read TIFF header of " + file);
+    FileInfo fi = _info[0];
+    _nImages = (_info.length == 1) ? Math.max(fi.nImages, 1) : _info.length;
+
+    switch (fi.fileType) {
+    case FileInfo.GRAY8:
+    case FileInfo.GRAY16_SIGNED:
+    case FileInfo.GRAY16_UNSIGNED:
+    case FileInfo.GRAY32_INT:
+    case FileInfo.GRAY32_UNSIGNED:
+    case FileInfo.GRAY32_FLOAT:
+    case FileInfo.GRAY64_FLOAT:
+    case FileInfo.BITMAP:
+      _isColor = false;
+      _lut = null;
+      break;
+    case FileInfo.COLOR8: {
+      // Indexed color images with gray lookup table are treated as gray
+      // images like ImageJ does
+      boolean gray = true;
+      for (int i = 0; gray && i < fi.lutSize; ++i)
+          gray = fi.reds[i] == fi.greens[i] && fi.reds[i] == fi.blues[i];
+      _isColor = !gray;
+      _lut = gray ? null : new byte[][] { fi.reds, fi.greens, fi.blues };
+      break;
+    }
+    case FileInfo.RGB:
+    case FileInfo.BGR:
+    case FileInfo.ARGB:
+    case FileInfo.ABGR:
+    case FileInfo.BARG:
+    case FileInfo.RGB_PLANAR:
+      _isColor = true;
+      _lut = null;
+      break;
+    default:
+      throw new IOException(
+          "Unsupported pixel type (" + fi.fileType + ") in " + file);
+    }
+
+    int nChannels = 1;
+    int nSlices = _nImages;
+    int nFrames = 1;
+    double depth = 1.0;
+    String unit = fi.unit;
+    if (fi.description != null && fi.description.startsWith("ImageJ")) {
+      int c = descriptionValue(fi.description, "channels", 1);
+      int f = descriptionValue(fi.description, "frames", -1);
+      int z = descriptionValue(
+          fi.description, "slices", (f < 0) ? _nImages / c : 1);
+      if (f < 0) f = _nImages / (c * z);
+      if (c * z * f == _nImages) {
+        nChannels = c;
+        nSlices = z;
+        nFrames = f;
+      }
+      String spacing = descriptionString(fi.description, "spacing");
+      if (spacing != null) {
+        try {
+          depth = Double.parseDouble(spacing);
+        }
+        catch (NumberFormatException e) {}
+      }
+      if (descriptionString(fi.description, "unit") != null)
+          unit = descriptionString(fi.description, "unit");
+    }
+    _C = _isColor ? 3 : nChannels;
+    _Z = nSlices;
+    _T = nFrames;
+    _H = fi.height;
+    _W = fi.width;
+
+    double factor = Tools.micrometersPerUnit(unit);
+    double pixelHeight = (fi.pixelHeight > 0) ? fi.pixelHeight : 1.0;
+    double pixelWidth = (fi.pixelWidth > 0) ? fi.pixelWidth : 1.0;
+    _elementSizeUm = (_Z == 1) ?
+        new double[] { pixelHeight * factor, pixelWidth * factor } :
+        new double[] {
+            depth * factor, pixelHeight * factor, pixelWidth * factor };
+
+    _plane = new float[_H * _W];
+  }
+
+  @Override
+  public int nFrames() {
+    return _T;
+  }
+
+  @Override
+  public int nChannels() {
+    return _C;
+  }
+
+  @Override
+  public int nSlices() {
+    return _Z;
+  }
+
+  @Override
+  public int height() {
+    return _H;
+  }
+
+  @Override
+  public int width() {
+    return _W;
+  }
+
+/*======================================================================*/
+/*!
+ *   The element size in micrometers as stored in the file. The unit is
+ *   assumed to be micrometers if the file contains no calibration.
+ */
+/*======================================================================*/
+  @Override
+  public double[] elementSizeUm() {
+    return _elementSizeUm;
+  }
+
+  @Override
+  public float[] getPlane(int t, int z, int c) {
+    int imageIdx = ((t * _Z + z) * (_isColor ? 1 : _C)) + (_isColor ? 0 : c);
+    Object pixels = _cachedPixels;
+    try {
+      if (imageIdx != _cachedImageIdx) {
+        pixels = readImage(imageIdx);
+        _cachedPixels = pixels;
+        _cachedImageIdx = imageIdx;
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(
+          "Could not read image " + (imageIdx + 1) + " of " + _file + ": " +
+          e.getMessage(), e);
+    }
+    if (pixels instanceof byte[]) {
+      byte[] in = (byte[])pixels;
+      if (_lut != null)
+          for (int i = 0; i < _plane.length; ++i)
+              _plane[i] = _lut[c][in[i] & 0xff] & 0xff;
+      else
+          for (int i = 0; i < _plane.length; ++i)
+              _plane[i] = in[i] & 0xff;
+    }
+    else if (pixels instanceof short[]) {
+      short[] in = (short[])pixels;
+      for (int i = 0; i < _plane.length; ++i) _plane[i] = in[i] & 0xffff;
+    }
+    else if (pixels instanceof float[])
+        System.arraycopy((float[])pixels, 0, _plane, 0, _plane.length);
+    else if (pixels instanceof int[]) {
+      int[] in = (int[])pixels;
+      int shift = 16 - 8 * c;
+      for (int i = 0; i < _plane.length; ++i)
+          _plane[i] = (in[i] >> shift) & 0xff;
+    }
+    else throw new RuntimeException(
+        "Could not read image " + (imageIdx + 1) + " of " + _file);
+    return _plane;
+  }
+
+  private Object readImage(int imageIdx) throws IOException {
+    FileInfo fi = null;
+    if (_info.length > 1) fi = _info[imageIdx];
+    else {
+      // Contiguous stack (e.g. written by ImageJ), all images have the
+      // same size and are separated by a constant gap
+      fi = (FileInfo)_info[0].clone();
+      long imageBytes =
+          (long)fi.width * fi.height * fi.getBytesPerPixel();
+      fi.longOffset = _info[0].getOffset() +
+          imageIdx * (imageBytes + _info[0].gapBetweenImages);
+      fi.nImages = 1;
+    }
+    InputStream is = new FileInputStream(_file);
+    try {
+      Object pixels = new ImageReader(fi).readPixels(is);
+      if (pixels == null) throw new IOException("Unexpected end of file");
+      return pixels;
+    }
+    finally {
+      is.close();
+    }
+  }
+
+  private static String descriptionString(String description, String key) {
+    for (String line : description.split("\n")) {
+      int pos = line.indexOf('=');
+      if (pos > 0 && line.substring(0, pos).trim().equals(key))
+          return line.substring(pos + 1).trim();
+    }
+    return null;
+  }
+
+  private static int descriptionValue(
+      String description, String key, int defaultValue) {
+    String value = descriptionString(description, key);
+    if (value == null) return defaultValue;
+    try {
+      return Integer.parseInt(value);
+    }
+    catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+}
@@ -33,19 +33,44 @@ package de.unifreiburg.unet;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.measure.Calibration;
 
 import java.util.Vector;
+import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.InputStream;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import java.lang.reflect.Field;
 
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+import hdf.hdf5lib.exceptions.HDF5Exception;
+
+import ch.systemsx.cisd.hdf5.HDF5DataClass;
+import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5StorageLayout;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import ch.systemsx.cisd.hdf5.IHDF5WriterConfigurator;
 import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
 import ch.systemsx.cisd.base.mdarray.MDFloatArray;
 
@@ -56,51 +81,205 @@ import com.jcraft.jsch.JSchException;
 
 public class Tools {
 
+  // Memory budget for a single HDF5 block read or write
+  public static final long BLOCK_BUDGET_BYTES = 16 << 20;
+
+/*======================================================================*/
+/*!
+ *   HDF5 storage profiles for blob datasets.
+ *
+ *   DEFAULT: One plane per chunk, deflate level 3
+ *   UNCOMPRESSED: Contiguous layout without compression, for files that
+ *     never leave the local machine
+ *   FAST: One plane per chunk, shuffle and deflate level 1
+ *   COMPACT: Chunks of several planes (up to 4MB), shuffle and deflate
+ *     level 9, for uploads over slow links
+ */
+/*======================================================================*/
+  public enum StorageProfile {
+      DEFAULT, UNCOMPRESSED, FAST, COMPACT;
+
+    private static final long COMPACT_CHUNK_BYTES = 4 << 20;
+
+    public HDF5FloatStorageFeatures features() {
+      return features(-1);
+    }
+
+/*======================================================================*/
+/*!
+ *   Get the storage features of this profile with the HDF5 scale-offset
+ *   filter added. The filter stores values rounded to the given number of
+ *   decimal digits as integers of the required bit depth. It is part of
+ *   the HDF5 library, so every HDF5 reader decodes it transparently.
+ *   The filter needs a chunked layout, so UNCOMPRESSED falls back to one
+ *   plane per chunk without further compression.
+ *
+ *   \param scaleDigits The number of retained decimal digits. If
+ *     negative, values are stored lossless.
+ *
+ *   \return The storage features
+ */
+/*======================================================================*/
+    public HDF5FloatStorageFeatures features(int scaleDigits) {
+      HDF5FloatStorageFeatures.HDF5FloatStorageFeatureBuilder builder =
+          HDF5FloatStorageFeatures.build();
+      switch (this) {
+      case UNCOMPRESSED:
+        if (scaleDigits < 0) return HDF5FloatStorageFeatures.FLOAT_CONTIGUOUS;
+        builder.chunkedStorageLayout().noDeflate();
+        break;
+      case FAST:
+        builder.shuffleBeforeDeflate().deflateLevel((byte)1);
+        break;
+      case COMPACT:
+        builder.shuffleBeforeDeflate().deflateLevel((byte)9);
+        break;
+      default:
+        builder.deflateLevel((byte)3);
+      }
+      if (scaleDigits >= 0) builder.scalingFactor((byte)scaleDigits);
+      return builder.features();
+    }
+
+/*======================================================================*/
+/*!
+ *   Get the number of planes of size H x W per chunk along an axis with
+ *   the given number of planes.
+ */
+/*======================================================================*/
+    public int planesPerChunk(int H, int W, int nPlanes) {
+      if (this != COMPACT) return 1;
+      long planes = COMPACT_CHUNK_BYTES / (4l * H * W);
+      return (int)Math.max(1, Math.min(planes, nPlanes));
+    }
+
+/*======================================================================*/
+/*!
+ *   Get the profile to use for files written on this machine. If the
+ *   preference "unet.storageProfile" names a profile, it is used,
+ *   otherwise local files are written UNCOMPRESSED and files that will
+ *   be uploaded to a remote host FAST.
+ *
+ *   \param remote true if the written file will be uploaded
+ *
+ *   \return The storage profile
+ */
+/*======================================================================*/
+    public static StorageProfile forHost(boolean remote) {
+      String name = Prefs.get("unet.storageProfile", "auto");
+      for (StorageProfile profile : values())
+          if (profile.name().equalsIgnoreCase(name)) return profile;
+      return remote ? FAST : UNCOMPRESSED;
+    }
+
+  }
+
   public static void saveBlob(
       ImagePlus imp, IHDF5Writer writer, String dsName, ProgressMonitor pr)
       throws InterruptedException {
-    if (imp.getNSlices() == 1) save2DBlob(imp, writer, dsName, pr);
-    else save3DBlob(imp, writer, dsName, pr);
+    saveBlob(planeSource(imp), writer, dsName, pr);
+  }
+
+  public static void saveBlob(
+      PlaneSource src, IHDF5Writer writer, String dsName, ProgressMonitor pr)
+      throws InterruptedException {
+    saveBlob(src, writer, dsName, StorageProfile.DEFAULT, pr);
+  }
+
+  public static void saveBlob(
+      PlaneSource src, IHDF5Writer writer, String dsName,
+      StorageProfile profile, ProgressMonitor pr)
+      throws InterruptedException {
+    saveBlob(src, writer, dsName, profile, -1, pr);
+  }
+
+/*======================================================================*/
+/*!
+ *   Save the given blob to the given dataset.
+ *
+ *   \param src The blob to save
+ *   \param writer The HDF5 file to write to
+ *   \param dsName The dataset name
+ *   \param profile The storage profile of the dataset
+ *   \param scaleDigits If non-negative, values are stored lossy with the
+ *     given number of retained decimal digits, see
+ *     StorageProfile.features(int)
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ */
+/*======================================================================*/
+  public static void saveBlob(
+      PlaneSource src, IHDF5Writer writer, String dsName,
+      StorageProfile profile, int scaleDigits, ProgressMonitor pr)
+      throws InterruptedException {
+    if (src.nSlices() == 1)
+        save2DBlob(src, writer, dsName, profile, scaleDigits, pr);
+    else save3DBlob(src, writer, dsName, profile, scaleDigits, pr);
   }
 
   public static void save2DBlob(
       ImagePlus imp, IHDF5Writer writer, String dsName, ProgressMonitor pr)
         throws InterruptedException {
-    int T = imp.getNFrames();
-    int Z = imp.getNSlices();
-    int N = T * Z;
-    int C = imp.getNChannels();
-    int W = imp.getWidth();
-    int H = imp.getHeight();
-    long[] dims = { N, C, H, W };
-    int[] blockDims = { 1, 1, H, W };
-    long[] blockIdx = { 0, 0, 0, 0 };
+    save2DBlob(planeSource(imp), writer, dsName, pr);
+  }
 
-    double[] elSize = getElementSizeUm(imp);
+  public static void save2DBlob(
+      PlaneSource src, IHDF5Writer writer, String dsName, ProgressMonitor pr)
+        throws InterruptedException {
+    save2DBlob(src, writer, dsName, StorageProfile.DEFAULT, -1, pr);
+  }
 
-    if (pr != null) pr.init(imp.getImageStackSize());
+  public static void save2DBlob(
+      PlaneSource src, IHDF5Writer writer, String dsName,
+      StorageProfile profile, int scaleDigits, ProgressMonitor pr)
+        throws InterruptedException {
+    int T = src.nFrames();
+    int Z = src.nSlices();
+    int N = T * Z;
+    int C = src.nChannels();
+    int W = src.width();
+    int H = src.height();
+    long[] dims = { N, C, H, W };
+    int K = profile.planesPerChunk(H, W, N);
+    // A block is filled while the previous one is written, so blocks get
+    // half of the block budget
+    int B = planesPerBlock(2 * 4l * H * W, N, K);
 
-    writer.float32().createMDArray(
-        dsName, dims, blockDims, HDF5FloatStorageFeatures.createDeflation(3));
+    double[] elSize = src.elementSizeUm();
 
-    // Create HDF5 Multi-dimensional Array (memory space)
-    MDFloatArray data = new MDFloatArray(blockDims);
-    float[] dataFlat = data.getAsFlatArray();
+    if (pr != null) pr.init(T * Z * C);
 
-    ImageStack stack = imp.getStack();
+    createBlobDataset(
+        writer, dsName, dims, new int[] { K, 1, H, W }, profile, scaleDigits);
 
-    for (int t = 0; t < T; ++t) {
-      for (int z = 0; z < Z; ++z, ++blockIdx[0]) {
+    // Chunks span K samples, write blocks of B samples (a multiple of K)
+    BlockWriter blockWriter =
+        new BlockWriter(writer, dsName, new int[] { B, 1, H, W });
+    BlockFiller blockFiller = new BlockFiller(src);
+    try {
+      for (int n0 = 0; n0 < N; n0 += B) {
+        int nPlanes = Math.min(B, N - n0);
+        int[] ts = new int[nPlanes];
+        int[] zs = new int[nPlanes];
+        for (int i = 0; i < nPlanes; ++i) {
+          ts[i] = (n0 + i) / Z;
+          zs[i] = (n0 + i) % Z;
+        }
         for (int c = 0; c < C; ++c) {
+          MDFloatArray data =
+              blockWriter.buffer(new int[] { nPlanes, 1, H, W });
           if (pr != null && !pr.count(
-                  "Saving " + dsName + " t=" + t + ", z=" + z + ", c=" + c, 1))
+                  "Saving " + dsName + " t=" + ts[0] + ", z=" + zs[0] +
+                  ", c=" + c, nPlanes))
               throw new InterruptedException();
-          blockIdx[1] = c;
-          int stackIndex = imp.getStackIndex(c + 1, z + 1, t + 1);
-          System.arraycopy(stack.getPixels(stackIndex), 0, dataFlat, 0, H * W);
-          writer.float32().writeMDArrayBlock(dsName, data, blockIdx);
+          blockFiller.fill(ts, zs, c, data.getAsFlatArray());
+          blockWriter.write(data, new long[] { n0, c, 0, 0 });
         }
       }
+      blockWriter.finish();
+    }
+    finally {
+      blockFiller.close();
+      blockWriter.close();
     }
     writer.float64().setArrayAttr(dsName, "element_size_um", elSize);
   }
@@ -108,46 +287,638 @@ public class Tools {
   public static void save3DBlob(
       ImagePlus imp, IHDF5Writer writer, String dsName, ProgressMonitor pr)
         throws InterruptedException {
-    int T = imp.getNFrames();
-    int Z = imp.getNSlices();
-    int C = imp.getNChannels();
-    int W = imp.getWidth();
-    int H = imp.getHeight();
-    long[] dims = { T, C, Z, H, W };
-    int[] blockDims = { 1, 1, 1, H, W };
-    long[] blockIdx = { 0, 0, 0, 0, 0 };
+    save3DBlob(planeSource(imp), writer, dsName, pr);
+  }
 
-    double[] elSize = getElementSizeUm(imp);
+  public static void save3DBlob(
+      PlaneSource src, IHDF5Writer writer, String dsName, ProgressMonitor pr)
+        throws InterruptedException {
+    save3DBlob(src, writer, dsName, StorageProfile.DEFAULT, -1, pr);
+  }
 
-    if (pr != null) pr.init(imp.getImageStackSize());
+  public static void save3DBlob(
+      PlaneSource src, IHDF5Writer writer, String dsName,
+      StorageProfile profile, int scaleDigits, ProgressMonitor pr)
+        throws InterruptedException {
+    int T = src.nFrames();
+    int Z = src.nSlices();
+    int C = src.nChannels();
+    int W = src.width();
+    int H = src.height();
+    long[] dims = { T, C, Z, H, W };
+    int K = profile.planesPerChunk(H, W, Z);
+    // A block is filled while the previous one is written, so blocks get
+    // half of the block budget
+    int B = planesPerBlock(2 * 4l * H * W, Z, K);
 
-    writer.float32().createMDArray(
-        dsName, dims, blockDims, HDF5FloatStorageFeatures.createDeflation(3));
+    double[] elSize = src.elementSizeUm();
 
-    // Create HDF5 Multi-dimensional Array (memory space)
-    MDFloatArray data = new MDFloatArray(blockDims);
-    float[] dataFlat = data.getAsFlatArray();
+    if (pr != null) pr.init(T * Z * C);
 
-    ImageStack stack = imp.getStack();
+    createBlobDataset(
+        writer, dsName, dims, new int[] { 1, 1, K, H, W }, profile,
+        scaleDigits);
 
-    for (int t = 0; t < T; ++t) {
-      blockIdx[0] = t;
-      for (int z = 0; z < Z; ++z) {
-        blockIdx[2] = z;
+    // Chunks span K slices, write blocks of B slices (a multiple of K)
+    BlockWriter blockWriter =
+        new BlockWriter(writer, dsName, new int[] { 1, 1, B, H, W });
+    BlockFiller blockFiller = new BlockFiller(src);
+    try {
+      for (int t = 0; t < T; ++t) {
         for (int c = 0; c < C; ++c) {
-          blockIdx[1] = c;
-          if (pr != null && !pr.count(
-                  "Saving " + dsName + " t=" + t + ", z=" + z + ", c=" + c, 1))
-              throw new InterruptedException();
-          int stackIndex = imp.getStackIndex(c + 1, z + 1, t + 1);
-          System.arraycopy(stack.getPixels(stackIndex), 0, dataFlat, 0, H * W);
-          writer.float32().writeMDArrayBlock(dsName, data, blockIdx);
+          for (int z0 = 0; z0 < Z; z0 += B) {
+            int nPlanes = Math.min(B, Z - z0);
+            int[] ts = new int[nPlanes];
+            int[] zs = new int[nPlanes];
+            for (int i = 0; i < nPlanes; ++i) {
+              ts[i] = t;
+              zs[i] = z0 + i;
+            }
+            MDFloatArray data =
+                blockWriter.buffer(new int[] { 1, 1, nPlanes, H, W });
+            if (pr != null && !pr.count(
+                    "Saving " + dsName + " t=" + t + ", z=" + z0 +
+                    ", c=" + c, nPlanes))
+                throw new InterruptedException();
+            blockFiller.fill(ts, zs, c, data.getAsFlatArray());
+            blockWriter.write(data, new long[] { t, c, z0, 0, 0 });
+          }
         }
       }
+      blockWriter.finish();
+    }
+    finally {
+      blockFiller.close();
+      blockWriter.close();
     }
     writer.float64().setArrayAttr(dsName, "element_size_um", elSize);
   }
 
+/*======================================================================*/
+/*!
+ *   Get the number of planes to transfer per HDF5 block read or write,
+ *   so that a block stays within BLOCK_BUDGET_BYTES.
+ *
+ *   \param bytesPerPlane The size of one plane in bytes
+ *   \param nPlanes The number of planes along the blocked axis
+ *   \param multiple The block size is rounded down to a multiple of this
+ *     value (e.g. the number of planes per chunk), but is at least
+ *     multiple
+ *
+ *   \return The number of planes per block, at most nPlanes
+ */
+/*======================================================================*/
+  public static int planesPerBlock(
+      long bytesPerPlane, int nPlanes, int multiple) {
+    long planes = BLOCK_BUDGET_BYTES / bytesPerPlane / multiple * multiple;
+    return (int)Math.min(nPlanes, Math.max(multiple, planes));
+  }
+
+/*======================================================================*/
+/*!
+ *   Copies the planes of a block from a PlaneSource. The planes of a
+ *   ConcurrentPlaneSource are copied in parallel, the planes of other
+ *   sources one after the other on the calling thread.
+ */
+/*======================================================================*/
+  private static class BlockFiller {
+
+    private final PlaneSource _src;
+    private final int _planeSize;
+    private final ExecutorService _pool;
+
+    public BlockFiller(PlaneSource src) {
+      _src = src;
+      _planeSize = src.height() * src.width();
+      _pool = (src instanceof ConcurrentPlaneSource) ?
+          Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors()) : null;
+    }
+
+    // Copy the planes (t[i], z[i], c) to out
+    public void fill(
+        final int[] t, final int[] z, final int c, final float[] out)
+        throws InterruptedException {
+      if (_pool == null) {
+        for (int i = 0; i < t.length; ++i)
+            System.arraycopy(
+                _src.getPlane(t[i], z[i], c), 0, out, i * _planeSize,
+                _planeSize);
+        return;
+      }
+      final ConcurrentPlaneSource src = (ConcurrentPlaneSource)_src;
+      ArrayDeque<Future<?>> tasks = new ArrayDeque<Future<?>>();
+      for (int i = 0; i < t.length; ++i) {
+        final int idx = i;
+        tasks.add(
+            _pool.submit(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    src.copyPlane(
+                        t[idx], z[idx], c, out, idx * _planeSize);
+                  }}));
+      }
+      try {
+        while (!tasks.isEmpty()) tasks.poll().get();
+      }
+      catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+
+    public void close() {
+      if (_pool != null) _pool.shutdownNow();
+    }
+
+  }
+
+/*======================================================================*/
+/*!
+ *   Writes blocks of a float dataset on a dedicated thread, so that the
+ *   compression inside the HDF5 library overlaps with filling the next
+ *   block. Blocks are written in the order they are passed to write().
+ *   Blocks of the full block shape are taken from a pool of at most
+ *   MAX_BUFFERS blocks that fit into BLOCK_BUDGET_BYTES (at least one),
+ *   so the producer blocks in buffer() while the writer is behind. While
+ *   blocks are pending, only the writer thread may access the HDF5 file.
+ */
+/*======================================================================*/
+  private static class BlockWriter {
+
+    private static final int MAX_BUFFERS = 2;
+
+    private final IHDF5Writer _writer;
+    private final String _dsName;
+    private final int[] _blockDims;
+    private final ArrayBlockingQueue<MDFloatArray> _free;
+    private final ExecutorService _thread =
+        Executors.newSingleThreadExecutor();
+    private final ArrayDeque<Future<?>> _pending =
+        new ArrayDeque<Future<?>>();
+
+    public BlockWriter(IHDF5Writer writer, String dsName, int[] blockDims) {
+      _writer = writer;
+      _dsName = dsName;
+      _blockDims = blockDims;
+      long blockBytes = 4;
+      for (int d : blockDims) blockBytes *= d;
+      int nBuffers = (int)Math.max(
+          1, Math.min(MAX_BUFFERS, BLOCK_BUDGET_BYTES / blockBytes));
+      _free = new ArrayBlockingQueue<MDFloatArray>(nBuffers);
+      for (int i = 0; i < nBuffers; ++i)
+          _free.add(new MDFloatArray(blockDims));
+    }
+
+    // Get a buffer for a block of the given shape
+    public MDFloatArray buffer(int[] dims) throws InterruptedException {
+      if (Arrays.equals(dims, _blockDims)) return _free.take();
+      return new MDFloatArray(dims);
+    }
+
+    public void write(final MDFloatArray block, final long[] offset)
+        throws InterruptedException {
+      checkPending(false);
+      _pending.add(
+          _thread.submit(
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    _writer.float32().writeMDArrayBlockWithOffset(
+                        _dsName, block, offset);
+                  }
+                  finally {
+                    if (Arrays.equals(block.dimensions(), _blockDims))
+                        _free.add(block);
+                  }
+                }}));
+    }
+
+    // Wait until all blocks are written
+    public void finish() throws InterruptedException {
+      checkPending(true);
+    }
+
+    // Drop blocks that were not written yet and wait for the running write
+    public void close() throws InterruptedException {
+      _thread.shutdownNow();
+      while (!_thread.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    private void checkPending(boolean wait) throws InterruptedException {
+      while (!_pending.isEmpty() && (wait || _pending.peek().isDone())) {
+        try {
+          _pending.poll().get();
+        }
+        catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    }
+
+  }
+
+  private static void createBlobDataset(
+      IHDF5Writer writer, String dsName, long[] dims, int[] chunkDims,
+      StorageProfile profile, int scaleDigits) {
+    if (profile == StorageProfile.UNCOMPRESSED && scaleDigits < 0) {
+      int[] intDims = new int[dims.length];
+      for (int d = 0; d < dims.length; ++d) intDims[d] = (int)dims[d];
+      writer.float32().createMDArray(dsName, intDims, profile.features());
+    }
+    else writer.float32().createMDArray(
+        dsName, dims, chunkDims, profile.features(scaleDigits));
+  }
+
+/*======================================================================*/
+/*!
+ *   Write the given sample data with every storage profile to a
+ *   temporary file and log the write throughput and compression ratio.
+ *
+ *   \param src The sample data
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ */
+/*======================================================================*/
+  public static void calibrateStorageProfiles(
+      PlaneSource src, ProgressMonitor pr)
+      throws IOException, InterruptedException {
+    long rawBytes = 4l * src.nFrames() * src.nChannels() * src.nSlices() *
+        src.height() * src.width();
+    StorageProfile[] profiles = StorageProfile.values();
+    IJ.log("HDF5 storage profile calibration (" + (rawBytes >> 20) +
+           " MB raw)");
+    for (int i = 0; i < profiles.length; ++i) {
+      if (pr != null)
+          pr.push("Calibrating " + profiles[i],
+                  (float)i / (float)profiles.length,
+                  (float)(i + 1) / (float)profiles.length);
+      File outFile = File.createTempFile("unet-", ".h5");
+      try {
+        long start = System.nanoTime();
+        IHDF5Writer writer =
+            HDF5Factory.configure(outFile.getAbsolutePath()).syncMode(
+                IHDF5WriterConfigurator.SyncMode.SYNC_BLOCK)
+            .useSimpleDataSpaceForAttributes().overwrite().writer();
+        try {
+          saveBlob(src, writer, "/data", profiles[i], pr);
+        }
+        finally {
+          writer.file().close();
+        }
+        double seconds = (System.nanoTime() - start) * 1.0e-9;
+        IJ.log("  " + profiles[i] + ": " +
+               IJ.d2s(rawBytes / 1048576.0 / seconds, 1) + " MB/s, ratio " +
+               IJ.d2s((double)rawBytes / (double)outFile.length(), 2));
+      }
+      finally {
+        outFile.delete();
+      }
+      if (pr != null) pr.pop();
+    }
+  }
+
+/*======================================================================*/
+/*!
+ *   Find the file offset of the raw data of a contiguous, uncompressed
+ *   32-Bit float dataset written in native byte order. The address is
+ *   queried from the HDF5 library (H5Dget_offset()), the byte order of
+ *   the stored values must match the native byte order. As a sanity check
+ *   the first row of the dataset containing a non-zero value is read
+ *   through the library and compared to the raw bytes at its position.
+ *
+ *   \param reader The open HDF5 file
+ *   \param file The HDF5 file
+ *   \param dsName The dataset name
+ *
+ *   \return The byte offset of the first dataset element in the file or
+ *     -1 if the dataset cannot be read directly from the file, e.g. if
+ *     its storage is not allocated (HADDR_UNDEF). Use block reads
+ *     through the library in this case.
+ */
+/*======================================================================*/
+  public static long contiguousDataOffset(
+      IHDF5Reader reader, File file, String dsName) throws IOException {
+    HDF5DataSetInformation dsInfo =
+        reader.object().getDataSetInformation(dsName);
+    if (dsInfo.getStorageLayout() != HDF5StorageLayout.CONTIGUOUS ||
+        dsInfo.getTypeInformation().getDataClass() != HDF5DataClass.FLOAT ||
+        dsInfo.getTypeInformation().getElementSize() != 4) return -1;
+
+    long offset = -1;
+    int order = -1;
+    long fileId = -1;
+    long dsId = -1;
+    long typeId = -1;
+    try {
+      fileId = H5.H5Fopen(
+          file.getAbsolutePath(), HDF5Constants.H5F_ACC_RDONLY,
+          HDF5Constants.H5P_DEFAULT);
+      dsId = H5.H5Dopen(fileId, dsName, HDF5Constants.H5P_DEFAULT);
+      // HADDR_UNDEF is returned as -1
+      offset = H5.H5Dget_offset(dsId);
+      typeId = H5.H5Dget_type(dsId);
+      order = H5.H5Tget_order(typeId);
+    }
+    catch (HDF5Exception e) {
+      return -1;
+    }
+    finally {
+      if (typeId >= 0) H5.H5Tclose(typeId);
+      if (dsId >= 0) H5.H5Dclose(dsId);
+      if (fileId >= 0) H5.H5Fclose(fileId);
+    }
+    if (offset < 0) return -1;
+    int nativeOrder = (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) ?
+        HDF5Constants.H5T_ORDER_LE : HDF5Constants.H5T_ORDER_BE;
+    if (order != nativeOrder) return -1;
+
+    // Compare the first rows until one contains a non-zero value, an
+    // all-zero row would match at any zero-filled position
+    long[] dims = dsInfo.getDimensions();
+    int nDims = dims.length;
+    int[] rowDims = new int[nDims];
+    Arrays.fill(rowDims, 1);
+    rowDims[nDims - 1] = (int)dims[nDims - 1];
+    long nRows = 1;
+    for (int d = 0; d < nDims - 1; ++d) nRows *= dims[d];
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      long[] rowPos = new long[nDims];
+      for (long r = 0; r < Math.min(nRows, SANITY_CHECK_ROWS); ++r) {
+        long rem = r;
+        for (int d = nDims - 2; d >= 0; --d) {
+          rowPos[d] = rem % dims[d];
+          rem /= dims[d];
+        }
+        float[] row = reader.float32().readMDArrayBlockWithOffset(
+            dsName, rowDims, rowPos).getAsFlatArray();
+        byte[] expected = toNativeBytes(row);
+        byte[] candidate = new byte[expected.length];
+        raf.seek(offset + r * expected.length);
+        raf.readFully(candidate);
+        if (!Arrays.equals(candidate, expected)) return -1;
+        for (float v : row) if (v != 0.0f) return offset;
+      }
+    }
+    finally {
+      raf.close();
+    }
+    return offset;
+  }
+
+  // Maximum number of rows to compare in contiguousDataOffset() while
+  // searching for a non-zero value
+  private static final long SANITY_CHECK_ROWS = 64;
+
+  private static byte[] toNativeBytes(float[] values) {
+    ByteBuffer bytes =
+        ByteBuffer.allocate(4 * values.length).order(ByteOrder.nativeOrder());
+    bytes.asFloatBuffer().put(values);
+    return bytes.array();
+  }
+
+/*======================================================================*/
+/*!
+ *   Create a PlaneSource reading the planes of the given ImagePlus.
+ *   For 32-Bit float images the planes are not copied, getPlane() directly
+ *   returns the stack pixel arrays. 8-Bit and 16-Bit images are expanded
+ *   to float one plane at a time. The returned source is a
+ *   ConcurrentPlaneSource, planes of virtual stacks are read one at a
+ *   time, though.
+ *
+ *   \param imp The ImagePlus to read from
+ *
+ *   \return A PlaneSource view of the ImagePlus
+ */
+/*======================================================================*/
+  public static PlaneSource planeSource(ImagePlus imp) {
+    return planeSource(imp, null);
+  }
+
+/*======================================================================*/
+/*!
+ *   Create a PlaneSource reading the planes of the given 8-Bit or 16-Bit
+ *   ImagePlus, mapping the stored integer codes to float values using the
+ *   given lookup table. This allows to keep blobs in a compact integer
+ *   representation in memory and expand them only while writing them.
+ *
+ *   \param imp The ImagePlus to read from
+ *   \param lut The lookup table mapping stored codes to values. If null,
+ *     the stored values are converted to float as they are.
+ *
+ *   \return A PlaneSource view of the ImagePlus
+ */
+/*======================================================================*/
+  public static PlaneSource planeSource(
+      final ImagePlus imp, final float[] lut) {
+    final double[] elSize = getElementSizeUm(imp);
+    final float[] plane = new float[imp.getHeight() * imp.getWidth()];
+    return new ConcurrentPlaneSource() {
+      @Override
+      public int nFrames() {
+        return imp.getNFrames();
+      }
+      @Override
+      public int nChannels() {
+        return imp.getNChannels();
+      }
+      @Override
+      public int nSlices() {
+        return imp.getNSlices();
+      }
+      @Override
+      public int height() {
+        return imp.getHeight();
+      }
+      @Override
+      public int width() {
+        return imp.getWidth();
+      }
+      @Override
+      public double[] elementSizeUm() {
+        return elSize;
+      }
+      @Override
+      public float[] getPlane(int t, int z, int c) {
+        Object pixels = pixels(t, z, c);
+        if (pixels instanceof float[]) return (float[])pixels;
+        copyValues(pixels, plane, 0);
+        return plane;
+      }
+      @Override
+      public void copyPlane(int t, int z, int c, float[] out, int offset) {
+        copyValues(pixels(t, z, c), out, offset);
+      }
+      // Virtual stacks read the planes from disk, which is not thread safe
+      private Object pixels(int t, int z, int c) {
+        ImageStack stack = imp.getStack();
+        int index = imp.getStackIndex(c + 1, z + 1, t + 1);
+        if (!stack.isVirtual()) return stack.getPixels(index);
+        synchronized (stack) {
+          return stack.getPixels(index);
+        }
+      }
+      private void copyValues(Object pixels, float[] out, int offset) {
+        if (pixels instanceof float[])
+            System.arraycopy(
+                (float[])pixels, 0, out, offset, plane.length);
+        else if (pixels instanceof byte[]) {
+          byte[] in = (byte[])pixels;
+          for (int i = 0; i < plane.length; ++i)
+              out[offset + i] =
+                  (lut != null) ? lut[in[i] & 0xff] : (in[i] & 0xff);
+        }
+        else {
+          short[] in = (short[])pixels;
+          for (int i = 0; i < plane.length; ++i)
+              out[offset + i] =
+                  (lut != null) ? lut[in[i] & 0xffff] : (in[i] & 0xffff);
+        }
+      }
+    };
+  }
+
+/*======================================================================*/
+/*!
+ *   Create a PlaneSource reading a box of the given PlaneSource. All
+ *   channels are kept.
+ *
+ *   \param src The PlaneSource to crop
+ *   \param offset The first frame, slice, row and column of the box
+ *     (t, z, y, x)
+ *   \param shape The number of frames, slices, rows and columns of the box
+ *
+ *   \return A PlaneSource view of the box
+ */
+/*======================================================================*/
+  public static PlaneSource cropPlaneSource(
+      final PlaneSource src, final int[] offset, final int[] shape) {
+    final float[] plane = new float[shape[2] * shape[3]];
+    return new PlaneSource() {
+      @Override
+      public int nFrames() {
+        return shape[0];
+      }
+      @Override
+      public int nChannels() {
+        return src.nChannels();
+      }
+      @Override
+      public int nSlices() {
+        return shape[1];
+      }
+      @Override
+      public int height() {
+        return shape[2];
+      }
+      @Override
+      public int width() {
+        return shape[3];
+      }
+      @Override
+      public double[] elementSizeUm() {
+        return src.elementSizeUm();
+      }
+      @Override
+      public float[] getPlane(int t, int z, int c) {
+        float[] in = src.getPlane(t + offset[0], z + offset[1], c);
+        for (int y = 0; y < shape[2]; ++y)
+            System.arraycopy(
+                in, (y + offset[2]) * src.width() + offset[3],
+                plane, y * shape[3], shape[3]);
+        return plane;
+      }
+    };
+  }
+
+/*======================================================================*/
+/*!
+ *   Convert the given float value to its IEEE 754 half precision (16-Bit)
+ *   representation. The value is rounded to the nearest representable
+ *   half precision value, values exceeding the half precision range
+ *   are mapped to infinity.
+ *
+ *   \param value The value to convert
+ *
+ *   \return The half precision bit pattern
+ */
+/*======================================================================*/
+  public static short floatToHalf(float value) {
+    int bits = Float.floatToIntBits(value);
+    int sign = (bits >>> 16) & 0x8000;
+    int exp = (bits >>> 23) & 0xff;
+    int mantissa = bits & 0x7fffff;
+    if (exp == 0xff) // NaN or infinity
+        return (short)(sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+    int e = exp - 127 + 15;
+    if (e >= 0x1f) return (short)(sign | 0x7c00);
+    if (e <= 0) {
+      if (e < -10) return (short)sign;
+      // Subnormal half precision value
+      mantissa |= 0x800000;
+      int shift = 14 - e;
+      int m = mantissa >> shift;
+      if (((mantissa >> (shift - 1)) & 1) != 0) m++;
+      return (short)(sign | m);
+    }
+    int h = sign | (e << 10) | (mantissa >> 13);
+    // Round to nearest, a mantissa overflow correctly increments the exponent
+    if ((mantissa & 0x1000) != 0) h++;
+    return (short)h;
+  }
+
+/*======================================================================*/
+/*!
+ *   Convert the given IEEE 754 half precision (16-Bit) bit pattern to
+ *   float.
+ *
+ *   \param half The half precision bit pattern
+ *
+ *   \return The corresponding float value
+ */
+/*======================================================================*/
+  public static float halfToFloat(short half) {
+    int h = half & 0xffff;
+    int sign = (h & 0x8000) << 16;
+    int exp = (h >>> 10) & 0x1f;
+    int mantissa = h & 0x3ff;
+    if (exp == 0x1f)
+        return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+    if (exp == 0) {
+      if (mantissa == 0) return Float.intBitsToFloat(sign);
+      // Normalize subnormal half precision value
+      exp = 1;
+      while ((mantissa & 0x400) == 0) {
+        mantissa <<= 1;
+        exp--;
+      }
+      mantissa &= 0x3ff;
+    }
+    return Float.intBitsToFloat(
+        sign | ((exp - 15 + 127) << 23) | (mantissa << 13));
+  }
+
+  private static float[] _halfToFloatLUT = null;
+
+/*======================================================================*/
+/*!
+ *   Get a lookup table mapping all 65536 half precision bit patterns
+ *   (interpreted as unsigned 16-Bit values) to float. It can be passed to
+ *   planeSource() to expand 16-Bit images holding half precision values.
+ *
+ *   \return The lookup table
+ */
+/*======================================================================*/
+  public static synchronized float[] halfToFloatLUT() {
+    if (_halfToFloatLUT == null) {
+      _halfToFloatLUT = new float[65536];
+      for (int i = 0; i < 65536; ++i)
+          _halfToFloatLUT[i] = halfToFloat((short)i);
+    }
+    return _halfToFloatLUT;
+  }
+
   public static int getPID(Process p) {
     if (p.getClass().getName().equals("java.lang.UNIXProcess")) {
       try {
@@ -295,10 +1066,57 @@ public class Tools {
     return createdFolders;
   }
 
+/*======================================================================*/
+/*!
+ *   Compute the CRC32 checksum of the given file's content.
+ *
+ *   \param file The file
+ *
+ *   \exception IOException if the file cannot be read
+ *
+ *   \return The checksum
+ */
+/*======================================================================*/
+  public static long checksum(File file) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buf = new byte[1 << 16];
+    InputStream in = new FileInputStream(file);
+    try {
+      for (int n = in.read(buf); n >= 0; n = in.read(buf))
+          crc.update(buf, 0, n);
+    }
+    finally {
+      in.close();
+    }
+    return crc.getValue();
+  }
+
   public static double[] getElementSizeUm(ImagePlus imp) {
     Calibration cal = imp.getCalibration();
+    double factor = micrometersPerUnit(cal.getUnit());
+    if (imp.getNSlices() == 1)
+        return new double[] {
+            cal.pixelHeight * factor, cal.pixelWidth * factor };
+    else
+        return new double[] {
+            cal.pixelDepth * factor, cal.pixelHeight * factor,
+            cal.pixelWidth * factor };
+  }
+
+/*======================================================================*/
+/*!
+ *   Get the conversion factor from the given length unit to micrometers.
+ *   Unknown units (including "pixel") are treated as micrometers.
+ *
+ *   \param unit The length unit, e.g. "mm" or "nanometer"
+ *
+ *   \return The length of one unit in micrometers
+ */
+/*======================================================================*/
+  public static double micrometersPerUnit(String unit) {
     double factor = 1;
-    switch (cal.getUnit())
+    if (unit == null) return factor;
+    switch (unit)
     {
     case "m":
     case "meter":
@@ -321,13 +1139,7 @@ public class Tools {
       factor = 0.000001;
     break;
     }
-    if (imp.getNSlices() == 1)
-        return new double[] {
-            cal.pixelHeight * factor, cal.pixelWidth * factor };
-    else
-        return new double[] {
-            cal.pixelDepth * factor, cal.pixelHeight * factor,
-            cal.pixelWidth * factor };
+    return factor;
   }
 
   public static void setElementSizeUm(ImagePlus imp, double[] elementSizeUm) {
@@ -32,25 +32,60 @@ package de.unifreiburg.unet;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageListener;
+import ij.ImageStack;
 import ij.process.ImageProcessor;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.gui.Roi;
 import ij.gui.PointRoi;
 import ij.gui.ImageRoi;
+import ij.process.FloatPolygon;
 import ij.measure.Calibration;
 import ij.plugin.CompositeConverter;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 
 import java.io.File;
 import java.io.IOException;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
 import java.util.Vector;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import ch.systemsx.cisd.hdf5.IHDF5WriterConfigurator;
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
+import ch.systemsx.cisd.base.mdarray.MDDoubleArray;
+import ch.systemsx.cisd.base.mdarray.MDFloatArray;
+import ch.systemsx.cisd.base.mdarray.MDIntArray;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
 
 public class TrainingSample
 {
@@ -58,17 +93,174 @@ public class TrainingSample
   // Input image
   private final ImagePlus _imp;
 
-  // Output blobs
+  // Output blobs. To reduce memory consumption labels are stored as 8-Bit
+  // or 16-Bit integers, weights as half precision floats in 16-Bit images
+  // and the sample pdf as 8-Bit codes (SAMPLE_PDF_*). They are expanded to
+  // float only when written. _conversionElementSizeUm holds the image
+  // calibration the blobs were converted with.
   private ModelDefinition _conversionModel = null;
+  private double[] _conversionElementSizeUm = null;
   private ImagePlus _data = null;
   private ImagePlus _labels = null;
   private ImagePlus _weights = null;
   private ImagePlus _samplePdf = null;
 
+  // Per class distances to the nearest and second nearest instance (half
+  // precision), they allow to re-compute the weights without distance
+  // transforms when only weight parameters change. They are kept in the
+  // temporary HDF5 file _distanceCacheFile (datasets /min1Dist and
+  // /min2Dist with shape (T, C, Z, H, W)) instead of the heap, which is only
+  // open as _distanceCache while labels and weights are computed.
+  // _weightsModel holds the weight parameters the current weights were
+  // computed with.
+  private File _distanceCacheFile = null;
+  private IHDF5Writer _distanceCache = null;
+  private ModelDefinition _weightsModel = null;
+
+  // Number of histogram bins for percentile normalization
+  private static final int HISTOGRAM_BINS = 65536;
+
+  private static final int SAMPLE_PDF_IGNORE = 0;
+  private static final int SAMPLE_PDF_FOREGROUND = 1;
+  private static final int SAMPLE_PDF_BACKGROUND = 2;
+
+  // Maximum edge length of the tiles in the weights2 sampling tables
+  private static final int SAMPLING_TILE_SIZE = 32;
+
+  // Progress steps reported per frame during label and weight generation
+  private static final int FRAME_PROGRESS_STEPS = 4;
+
+  // Per-frame fingerprints of the annotations the label and weight blobs
+  // were generated from, used to only re-process modified frames
+  private long[] _frameFingerprints = null;
+  private long _labelsConversionKey = 0;
+
+  // Samples are cached per image to reuse the labels and weights of
+  // unchanged frames when an image is converted again. The cache neither
+  // keeps images nor, under memory pressure, samples alive. Cache entries
+  // remember the distance map file of their sample, and are kept reachable
+  // in _cacheEntries until the file was deleted, so that samples collected
+  // by the garbage collector are reported via _collectedSamples.
+  private static final class CacheEntry
+      extends SoftReference<TrainingSample> {
+    final File distanceCacheFile;
+    CacheEntry(TrainingSample sample) {
+      super(sample, _collectedSamples);
+      distanceCacheFile = sample._distanceCacheFile;
+    }
+  }
+  private static final WeakHashMap<ImagePlus,CacheEntry> _cache =
+      new WeakHashMap<ImagePlus,CacheEntry>();
+  private static final HashSet<CacheEntry> _cacheEntries =
+      new HashSet<CacheEntry>();
+  private static final ReferenceQueue<TrainingSample> _collectedSamples =
+      new ReferenceQueue<TrainingSample>();
+  private static boolean _cacheListenerInstalled = false;
+
   public TrainingSample(ImagePlus imp) {
     _imp = imp;
   }
 
+/*======================================================================*/
+/*!
+ *   Get the TrainingSample for the given ImagePlus. If the image was
+ *   converted before and the sample was released, the previous sample is
+ *   returned, so that labels and weights of frames with unchanged
+ *   annotations are not re-computed. The sample is removed from the cache
+ *   until release() is called, so concurrent jobs on the same image never
+ *   share a sample. The data blob is always re-created, because the image
+ *   content may have changed in between. Samples are dropped from the
+ *   cache when their image is closed. The temporary distance map files of
+ *   dropped and garbage collected samples are deleted.
+ *
+ *   \param imp The ImagePlus to get the TrainingSample for
+ *
+ *   \return The cached or a newly created TrainingSample
+ */
+/*======================================================================*/
+  public static TrainingSample forImage(ImagePlus imp) {
+    synchronized (_cache) {
+      if (!_cacheListenerInstalled) {
+        ImagePlus.addImageListener(
+            new ImageListener() {
+              @Override
+              public void imageOpened(ImagePlus imp) {}
+              @Override
+              public void imageClosed(ImagePlus imp) {
+                synchronized (_cache) {
+                  dropCacheEntry(_cache.remove(imp));
+                }
+              }
+              @Override
+              public void imageUpdated(ImagePlus imp) {}
+            });
+        _cacheListenerInstalled = true;
+      }
+      deleteCollectedDistanceCaches();
+      CacheEntry entry = _cache.remove(imp);
+      TrainingSample sample = (entry != null) ? entry.get() : null;
+      if (sample == null) {
+        dropCacheEntry(entry);
+        return new TrainingSample(imp);
+      }
+      // The entry is discarded without deleting the distance map file,
+      // which is still used by the checked out sample
+      entry.clear();
+      _cacheEntries.remove(entry);
+      sample._data = null;
+      return sample;
+    }
+  }
+
+  private static void dropCacheEntry(CacheEntry entry) {
+    if (entry == null) return;
+    entry.clear();
+    _cacheEntries.remove(entry);
+    if (entry.distanceCacheFile != null) entry.distanceCacheFile.delete();
+  }
+
+  private static void deleteCollectedDistanceCaches() {
+    Reference<? extends TrainingSample> ref;
+    while ((ref = _collectedSamples.poll()) != null)
+        dropCacheEntry((CacheEntry)ref);
+  }
+
+/*======================================================================*/
+/*!
+ *   Return this sample obtained via forImage() to the cache. The data blob
+ *   is released, only labels, weights and annotation fingerprints are kept
+ *   for the next conversion of the image.
+ */
+/*======================================================================*/
+  public void release() {
+    _data = null;
+    synchronized (_cache) {
+      deleteCollectedDistanceCaches();
+      CacheEntry entry = new CacheEntry(this);
+      _cacheEntries.add(entry);
+      CacheEntry previous = _cache.put(_imp, entry);
+      // A sample released twice keeps its distance map file
+      if (previous != null &&
+          previous.distanceCacheFile == _distanceCacheFile) {
+        previous.clear();
+        _cacheEntries.remove(previous);
+      }
+      else dropCacheEntry(previous);
+    }
+  }
+
+/*======================================================================*/
+/*!
+ *   Release all blobs of a sample that was not obtained via forImage() and
+ *   delete its temporary distance map file. The blobs themselves stay
+ *   valid for callers still holding them.
+ */
+/*======================================================================*/
+  public void dispose() {
+    _data = null;
+    clearLabelsAndWeights();
+  }
+
   public ImagePlus getImage() {
     return _imp;
   }
@@ -85,22 +277,140 @@ public class TrainingSample
     return _data;
   }
 
+/*======================================================================*/
+/*!
+ *   Get the labels blob. Labels are stored as 8-Bit image if the model
+ *   has at most 256 classes, otherwise as 16-Bit image.
+ *
+ *   \return The labels blob or null if it was not created yet
+ */
+/*======================================================================*/
   public ImagePlus labelBlob() {
     return _labels;
   }
 
+/*======================================================================*/
+/*!
+ *   Get a 32-Bit float copy of the weights blob.
+ *
+ *   \return The weights blob or null if it was not created yet
+ */
+/*======================================================================*/
   public ImagePlus weightBlob() {
-    return _weights;
+    if (_weights == null) return null;
+    return expandToFloat(
+        Tools.planeSource(_weights, Tools.halfToFloatLUT()),
+        _weights.getTitle());
   }
 
+/*======================================================================*/
+/*!
+ *   Get a 32-Bit float copy of the sample pdf blob.
+ *
+ *   \return The sample pdf blob or null if it was not created yet
+ */
+/*======================================================================*/
   public ImagePlus samplePdfBlob() {
-    return _samplePdf;
+    if (_samplePdf == null) return null;
+    return expandToFloat(
+        Tools.planeSource(_samplePdf, samplePdfLUT()),
+        _samplePdf.getTitle());
+  }
+
+  private float[] samplePdfLUT() {
+    float[] lut = new float[256];
+    lut[SAMPLE_PDF_FOREGROUND] = 1.0f;
+    lut[SAMPLE_PDF_BACKGROUND] = _weightsModel.foregroundBackgroundRatio;
+    return lut;
+  }
+
+  private static ImagePlus expandToFloat(PlaneSource src, String title) {
+    ImagePlus imp = IJ.createHyperStack(
+        title, src.width(), src.height(), src.nChannels(), src.nSlices(),
+        src.nFrames(), 32);
+    Tools.setElementSizeUm(imp, src.elementSizeUm());
+    for (int t = 0; t < src.nFrames(); ++t)
+        for (int z = 0; z < src.nSlices(); ++z)
+            for (int c = 0; c < src.nChannels(); ++c)
+                System.arraycopy(
+                    src.getPlane(t, z, c), 0,
+                    imp.getStack().getPixels(
+                        imp.getStackIndex(c + 1, z + 1, t + 1)), 0,
+                    src.height() * src.width());
+    return imp;
+  }
+
+/*======================================================================*/
+/*!
+ *   Create the (empty) labels, weights and sample pdf blobs for the
+ *   given output shape.
+ */
+/*======================================================================*/
+  private void createLabelsAndWeightsStorage(
+      ModelDefinition model, int T, int D, int H, int W,
+      double[] elementSizeUm) throws BlobException {
+    _labels = IJ.createHyperStack(
+        _imp.getTitle() + " - labels", W, H, 1, D, T,
+        (model.classNames.length <= 256) ? 8 : 16);
+    Tools.setElementSizeUm(_labels, elementSizeUm);
+    _weights = IJ.createHyperStack(
+        _imp.getTitle() + " - weights", W, H, 1, D, T, 16);
+    Tools.setElementSizeUm(_weights, elementSizeUm);
+    _samplePdf = IJ.createHyperStack(
+        _imp.getTitle() + " - sample pdf", W, H, 1, D, T, 8);
+    Tools.setElementSizeUm(_samplePdf, elementSizeUm);
+    try {
+      _distanceCacheFile = File.createTempFile("unet-", "-distances.h5");
+    }
+    catch (IOException e) {
+      throw new BlobException(
+          "Could not create distance map cache: " + e.getMessage(), e);
+    }
+    _distanceCacheFile.deleteOnExit();
+    _distanceCache = HDF5Factory.configure(
+        _distanceCacheFile.getAbsolutePath()).syncMode(
+            IHDF5WriterConfigurator.SyncMode.SYNC_BLOCK)
+        .useSimpleDataSpaceForAttributes().overwrite().writer();
+    long[] dims = { T, model.classNames.length - 1, D, H, W };
+    int[] blockDims = { 1, 1, 1, H, W };
+    for (String dsName : new String[] { "/min1Dist", "/min2Dist" }) {
+      _distanceCache.uint16().createMDArray(
+          dsName, dims, blockDims,
+          HDF5IntStorageFeatures.createDeflationUnsigned(3));
+      _distanceCache.string().setAttr(dsName, "encoding", "float16");
+      _distanceCache.float64().setArrayAttr(
+          dsName, "element_size_um", elementSizeUm);
+    }
+  }
+
+  private void clearLabelsAndWeights() {
+    _labels = null;
+    _weights = null;
+    _samplePdf = null;
+    closeDistanceCache();
+    if (_distanceCacheFile != null) _distanceCacheFile.delete();
+    _distanceCacheFile = null;
+    _weightsModel = null;
+  }
+
+  private void openDistanceCache() {
+    if (_distanceCacheFile == null || _distanceCache != null) return;
+    _distanceCache = HDF5Factory.configure(
+        _distanceCacheFile.getAbsolutePath()).syncMode(
+            IHDF5WriterConfigurator.SyncMode.SYNC_BLOCK)
+        .useSimpleDataSpaceForAttributes().writer();
+  }
+
+  private void closeDistanceCache() {
+    if (_distanceCache == null) return;
+    _distanceCache.file().close();
+    _distanceCache = null;
   }
 
   public void createDataBlob(ModelDefinition model, ProgressMonitor pr)
       throws TrainingSampleException, InterruptedException {
     if (model == null) throw new TrainingSampleException("No Model");
-    if (_data != null && wasConvertedWithModel(model)) return;
+    if (dataBlobReady(model)) return;
 
     if (model.nDims() > getRawElementSizeUm().length)
         throw new TrainingSampleException(
@@ -109,9 +419,7 @@ public class TrainingSample
 
     if (_conversionModel != null && !wasConvertedWithModel(model)) {
       _data = null;
-      _labels = null;
-      _weights = null;
-      _samplePdf = null;
+      clearLabelsAndWeights();
       _conversionModel = null;
     }
 
@@ -150,14 +458,132 @@ public class TrainingSample
     if (pr != null) pr.pop();
 
     _conversionModel = model;
+    _conversionElementSizeUm = getRawElementSizeUm();
+  }
+
+/*======================================================================*/
+/*!
+ *   Create a PlaneSource providing the data blob in U-Net format without
+ *   converting the whole image in memory. Each requested plane is read from
+ *   the input image, split into color channels, converted to float and
+ *   rescaled on the fly. This is intended for disk-resident virtual stacks,
+ *   for which only the planes required for the current output plane are
+ *   loaded. Normalization parameters are computed in an initial pass over
+ *   the image, therefore, each input plane is read at least twice.
+ *
+ *   \param model The ModelDefinition to use for conversion
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ *
+ *   \return The PlaneSource providing the converted data planes
+ */
+/*======================================================================*/
+  public PlaneSource createDataPlaneSource(
+      ModelDefinition model, ProgressMonitor pr)
+      throws TrainingSampleException, InterruptedException {
+    if (model == null) throw new TrainingSampleException("No Model");
+
+    if (model.nDims() > getRawElementSizeUm().length)
+        throw new TrainingSampleException(
+            "Cannot process " + getRawNDims() + "-D images using a " +
+            model.nDims() + "-D model.");
+
+    if (model.nDims() < getRawNDims())
+        IJ.log("Warning: Model is " + model.nDims() + "-D, data is " +
+               getRawNDims() + "-D. Data will be treated as " +
+               model.nDims() + "-D");
+
+    return createDataPlaneSource(rawPlaneSource(_imp), model, pr);
+  }
+
+/*======================================================================*/
+/*!
+ *   Convert the given TIFF file to the U-Net input blob format and save it
+ *   as HDF5 file. This applies the same rescaling and normalization as
+ *   createDataBlob(), but reads the file plane-wise without creating an
+ *   ImagePlus, so it can be used headless in batch processing pipelines.
+ *   Each input plane is read twice if the model requires normalization.
+ *
+ *   \param inFile The TIFF file to convert
+ *   \param elementSizeUm The element size of the input image in
+ *     micrometers ((y, x) or (z, y, x)). If null, the calibration stored
+ *     in the file is used.
+ *   \param model The ModelDefinition to use for conversion
+ *   \param outFile The HDF5 file to create
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ *
+ *   \exception TrainingSampleException if the file dimensions do not fit
+ *     the model
+ *   \exception IOException if the input file cannot be read or the output
+ *     file cannot be written
+ */
+/*======================================================================*/
+  public static void convertToBlob(
+      File inFile, double[] elementSizeUm, ModelDefinition model,
+      File outFile, ProgressMonitor pr)
+      throws TrainingSampleException, InterruptedException, IOException {
+    if (model == null) throw new TrainingSampleException("No Model");
+
+    PlaneSource raw = new TiffPlaneSource(inFile);
+    if (elementSizeUm != null) {
+      if (elementSizeUm.length != raw.elementSizeUm().length)
+          throw new TrainingSampleException(
+              "Element size must be given for all " +
+              raw.elementSizeUm().length + " spatial dimensions of " +
+              inFile.getName());
+      raw = withElementSizeUm(raw, elementSizeUm);
+    }
+    int rawNDims = (raw.nSlices() == 1) ? 2 : 3;
+    if (model.nDims() > rawNDims)
+        throw new TrainingSampleException(
+            "Cannot process " + rawNDims + "-D images using a " +
+            model.nDims() + "-D model.");
+
+    if (model.nDims() < rawNDims)
+        IJ.log("Warning: Model is " + model.nDims() + "-D, data is " +
+               rawNDims + "-D. Data will be treated as " +
+               model.nDims() + "-D");
+
+    if (pr != null) pr.push("Computing normalization", 0.0f, 0.3f);
+    PlaneSource src = createDataPlaneSource(raw, model, pr);
+    if (pr != null) {
+      pr.pop();
+      pr.push("Converting and saving data", 0.3f, 1.0f);
+    }
+    Tools.createFolder(outFile.getAbsoluteFile().getParentFile());
+    IHDF5Writer writer =
+        HDF5Factory.configure(outFile.getAbsolutePath()).syncMode(
+            IHDF5WriterConfigurator.SyncMode.SYNC_BLOCK)
+        .useSimpleDataSpaceForAttributes().overwrite().writer();
+    try {
+      Tools.saveBlob(src, writer, model.inputDatasetName, pr);
+    }
+    finally {
+      writer.file().close();
+    }
+    if (pr != null) pr.pop();
+  }
+
+  private static PlaneSource createDataPlaneSource(
+      PlaneSource raw, ModelDefinition model, ProgressMonitor pr)
+      throws InterruptedException {
+    StreamedDataSource src = new StreamedDataSource(raw, model);
+    if (model.normalizationType != 0) {
+      if (pr != null) {
+        long nPlanes = src.nFrames() * src.nSlices() * src.nChannels();
+        pr.init((model.normalizationType == 2) ? 2 * nPlanes : nPlanes);
+      }
+      float[] scales = new float[src.nFrames()];
+      float[] offsets = new float[src.nFrames()];
+      computeNormalization(src, model, scales, offsets, pr);
+      src.setNormalization(scales, offsets);
+    }
+    return src;
   }
 
   public void createLabelsAndWeightsBlobs(
       ModelDefinition model, boolean labelsAreClasses, ProgressMonitor pr)
       throws TrainingSampleException, InterruptedException, BlobException {
     if (model == null) throw new TrainingSampleException("No Model");
-    if (_labels != null && _weights != null && _samplePdf != null &&
-        wasConvertedWithModel(model)) return;
 
     if (_imp.getOverlay() == null)
         throw new TrainingSampleException(
@@ -184,24 +610,129 @@ public class TrainingSample
 
     if (_conversionModel != null && !wasConvertedWithModel(model)) {
       _data = null;
-      _labels = null;
-      _weights = null;
-      _samplePdf = null;
+      clearLabelsAndWeights();
       _conversionModel = null;
     }
 
-    if (containsMaskAnnotations)
-        createLabelsAndWeightBlobsFromMasks(model, labelsAreClasses, pr);
-    else createLabelsAndWeightBlobsFromRois(model, labelsAreClasses, pr);
+    // Only re-process frames whose annotations changed since the last
+    // conversion
+    long conversionKey = labelsConversionKey(model, labelsAreClasses);
+    long[] fingerprints =
+        annotationFingerprints(model, containsMaskAnnotations);
+    boolean reuse = _labels != null && _weightsModel != null &&
+        _frameFingerprints != null &&
+        _frameFingerprints.length == fingerprints.length &&
+        _labelsConversionKey == conversionKey;
+    boolean reweight = reuse && !hasWeightParameters(_weightsModel, model);
+    boolean[] processFrame = new boolean[fingerprints.length];
+    int nChangedFrames = 0;
+    for (int t = 0; t < fingerprints.length; ++t) {
+      processFrame[t] = !reuse || fingerprints[t] != _frameFingerprints[t];
+      if (processFrame[t]) nChangedFrames++;
+    }
+    if (nChangedFrames == 0 && !reweight) return;
+    if (reuse)
+        IJ.log("Re-using labels and weights of " +
+               (fingerprints.length - nChangedFrames) + " / " +
+               fingerprints.length + " frames with unchanged annotations");
+    else clearLabelsAndWeights();
+    _frameFingerprints = null;
+    _weightsModel = null;
+
+    openDistanceCache();
+    try {
+      updateLabelsAndWeights(
+          model, labelsAreClasses, containsMaskAnnotations, processFrame,
+          nChangedFrames, reweight, pr);
+    }
+    finally {
+      closeDistanceCache();
+    }
 
+    _frameFingerprints = fingerprints;
+    _labelsConversionKey = conversionKey;
+    _weightsModel = model;
     _conversionModel = model;
+    _conversionElementSizeUm = getRawElementSizeUm();
+  }
+
+/*======================================================================*/
+/*!
+ *   Re-compute the weights of unchanged frames if requested and convert
+ *   the annotations of the frames marked in processFrame. The distance
+ *   map cache must be open.
+ */
+/*======================================================================*/
+  private void updateLabelsAndWeights(
+      ModelDefinition model, boolean labelsAreClasses,
+      boolean containsMaskAnnotations, boolean[] processFrame,
+      int nChangedFrames, boolean reweight, ProgressMonitor pr)
+      throws InterruptedException, BlobException {
+    int nFrames = processFrame.length;
+    if (reweight) {
+      // Only the weight formula changed for unchanged frames, re-compute
+      // the weights from the cached distance maps
+      boolean[] reweightFrame = new boolean[nFrames];
+      for (int t = 0; t < nFrames; ++t) reweightFrame[t] = !processFrame[t];
+      if (pr != null)
+          pr.push("Re-computing weights", 0.0f,
+                  (float)(nFrames - nChangedFrames) / (float)nFrames);
+      computeWeights(reweightFrame, model, pr);
+      if (pr != null) pr.pop();
+    }
+
+    if (nChangedFrames > 0) {
+      if (pr != null)
+          pr.push("Converting changed frames",
+                  (float)(nFrames - nChangedFrames) / (float)nFrames, 1.0f);
+      if (containsMaskAnnotations)
+          createLabelsAndWeightBlobsFromMasks(
+              model, labelsAreClasses, processFrame, pr);
+      else createLabelsAndWeightBlobsFromRois(
+          model, labelsAreClasses, processFrame, pr);
+      if (pr != null) pr.pop();
+    }
   }
 
   public Vector<File> saveBlobs(
       File outFile, ModelDefinition model, ProgressMonitor pr)
       throws TrainingSampleException, InterruptedException, IOException {
+    return saveBlobs(outFile, model, Tools.StorageProfile.DEFAULT, pr);
+  }
 
-    boolean createDataBlob = !dataBlobReady(model);
+  public Vector<File> saveBlobs(
+      File outFile, ModelDefinition model, Tools.StorageProfile profile,
+      ProgressMonitor pr)
+      throws TrainingSampleException, InterruptedException, IOException {
+    return saveBlobs(outFile, model, profile, -1, pr);
+  }
+
+/*======================================================================*/
+/*!
+ *   Save the data blob and, if available, the labels and weights blobs
+ *   to the given HDF5 file.
+ *
+ *   \param outFile The HDF5 file to create
+ *   \param model The model to convert the sample for
+ *   \param profile The storage profile of the datasets
+ *   \param dataScaleDigits If non-negative, the data blob is stored lossy
+ *     with the given number of retained decimal digits. Labels and weights
+ *     are always stored lossless.
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ *
+ *   \return The list of created files and folders
+ */
+/*======================================================================*/
+  public Vector<File> saveBlobs(
+      File outFile, ModelDefinition model, Tools.StorageProfile profile,
+      int dataScaleDigits, ProgressMonitor pr)
+      throws TrainingSampleException, InterruptedException, IOException {
+
+    // Data of virtual stacks is converted plane-wise while saving to avoid
+    // loading the whole stack into memory
+    boolean streamDataBlob =
+        !dataBlobReady(model) && _imp.getStack().isVirtual();
+    boolean createDataBlob = !dataBlobReady(model) && !streamDataBlob;
     if (createDataBlob)
     {
       if (pr != null) pr.push("Converting data to U-Net format", 0.0f, 0.6f);
@@ -222,46 +753,97 @@ public class TrainingSample
         .useSimpleDataSpaceForAttributes().overwrite().writer();
     createdFiles.add(outFile);
 
-    boolean saveLabels =
-        _labels != null && _weights != null && _samplePdf != null;
+    boolean saveLabels = _labels != null && _weights != null &&
+        _samplePdf != null && _weightsModel != null;
+
+    // With labels, only the annotated region plus the context the network
+    // needs to predict it is stored
+    int[][] crop = saveLabels ? annotatedRegion(model) : null;
 
     if (pr != null)
         pr.push("Saving " + outFile.getName() + ":/data",
                 0.0f, saveLabels ? 0.25f : 1.0f);
-    Tools.saveBlob(_data, writer, model.inputDatasetName, pr);
+    if (streamDataBlob) {
+      if (pr != null) pr.push("Computing normalization", 0.0f, 0.3f);
+      PlaneSource src = createDataPlaneSource(model, pr);
+      if (pr != null) {
+        pr.pop();
+        pr.push("Converting and saving data", 0.3f, 1.0f);
+      }
+      Tools.saveBlob(
+          cropped(src, crop), writer, model.inputDatasetName, profile,
+          dataScaleDigits, pr);
+      if (pr != null) pr.pop();
+    }
+    else Tools.saveBlob(
+        cropped(Tools.planeSource(_data), crop), writer,
+        model.inputDatasetName, profile, dataScaleDigits, pr);
 
     if (saveLabels) {
       if (pr != null) {
         pr.pop();
         pr.push("Saving " + outFile.getName() + ":/labels", 0.25f, 0.5f);
       }
-      Tools.saveBlob(_labels, writer, "labels", pr);
+      Tools.saveBlob(
+          cropped(Tools.planeSource(_labels), crop), writer, "labels",
+          profile, pr);
       if (pr != null) {
         pr.pop();
         pr.push("Saving " + outFile.getName() + ":/weights", 0.5f, 0.75f);
       }
-      Tools.saveBlob(_weights, writer, "weights", pr);
+      Tools.saveBlob(
+          cropped(Tools.planeSource(_weights, Tools.halfToFloatLUT()), crop),
+          writer, "weights", profile, pr);
       if (pr != null) {
         pr.pop();
         pr.push("Saving " + outFile.getName() + ":/weights2", 0.75f, 1.0f);
       }
-      Tools.saveBlob(_samplePdf, writer, "weights2", pr);
+      Tools.saveBlob(
+          cropped(Tools.planeSource(_samplePdf, samplePdfLUT()), crop),
+          writer, "weights2", profile, pr);
+
+      int[] offset = crop[0];
+      int[] shape = crop[1];
+      SamplingTables tables =
+          new SamplingTables(shape[0], shape[1], shape[2], shape[3]);
+      byte[] codes = new byte[shape[2] * shape[3]];
+      for (int t = 0; t < shape[0]; ++t) {
+        for (int z = 0; z < shape[1]; ++z) {
+          byte[] in = (byte[])_samplePdf.getStack().getPixels(
+              _samplePdf.getStackIndex(
+                  1, z + offset[1] + 1, t + offset[0] + 1));
+          for (int y = 0; y < shape[2]; ++y)
+              System.arraycopy(
+                  in, (y + offset[2]) * _samplePdf.getWidth() + offset[3],
+                  codes, y * shape[3], shape[3]);
+          tables.addPlane(t, z, codes, samplePdfLUT());
+        }
+      }
+      tables.save(writer);
+
+      // Offset of the stored region in blob axis order without channels
+      writer.int32().setArrayAttr(
+          "/", "cropOffset", (_samplePdf.getNSlices() == 1) ?
+          new int[] { offset[0], offset[2], offset[3] } : offset);
       writer.object().createGroup("/conversionParameters");
       writer.float64().setAttr(
           "/conversionParameters", "foregroundBackgroundRatio",
-          _conversionModel.foregroundBackgroundRatio);
+          _weightsModel.foregroundBackgroundRatio);
       writer.float64().setAttr(
           "/conversionParameters", "sigma1_um",
-          _conversionModel.sigma1Px);
+          _weightsModel.sigma1Px);
       writer.float64().setAttr(
           "/conversionParameters", "borderWeightFactor",
-          _conversionModel.borderWeightFactor);
+          _weightsModel.borderWeightFactor);
       writer.float64().setAttr(
           "/conversionParameters", "borderWeightSigmaPx",
-          _conversionModel.borderWeightSigmaPx);
+          _weightsModel.borderWeightSigmaPx);
       writer.int32().setAttr(
           "/conversionParameters", "normalizationType",
           _conversionModel.normalizationType);
+      writer.float32().setArrayAttr(
+          "/conversionParameters", "normalizationPercentiles",
+          _conversionModel.normalizationPercentiles);
       writer.string().setArrayAttr(
           "/conversionParameters", "classNames",
           _conversionModel.classNames);
@@ -270,6 +852,9 @@ public class TrainingSample
     writer.file().close();
     IJ.log("Caffe blobs saved to '" + outFile.getAbsolutePath() + "'");
 
+    // The data blob is only needed for saving, do not keep it in memory
+    _data = null;
+
     if (pr != null) {
       pr.pop();
       pr.pop();
@@ -278,344 +863,633 @@ public class TrainingSample
     return createdFiles;
   }
 
-  public Vector<File> saveTiledBlobs(
-      String fileNameStub, ModelDefinition model, boolean labelsAreClasses,
-      ProgressMonitor pr)
-      throws TrainingSampleException, InterruptedException, IOException,
-      BlobException {
-
-    boolean createDataBlob = !dataBlobReady(model);
-    boolean createLabelBlobs = !labelBlobsReady(model);
-
-    if (createDataBlob) {
-      if (pr != null)
-          pr.push("Converting data to U-Net format",
-                  0.0f, createLabelBlobs ? 0.05f : 0.5f);
-      createDataBlob(model, pr);
-      if (pr != null) pr.pop();
+/*======================================================================*/
+/*!
+ *   Compute the bounding box of all pixels that are not ignored, grown by
+ *   half the model's input padding (the context the network needs on each
+ *   side) and clipped to the sample. Frames are not grown.
+ *
+ *   \param model The model defining the input padding
+ *
+ *   \return The box offset and shape, each given as (t, z, y, x). If no
+ *     pixel is annotated, the whole sample is returned.
+ */
+/*======================================================================*/
+  private int[][] annotatedRegion(ModelDefinition model) {
+    int[] size = {
+        _samplePdf.getNFrames(), _samplePdf.getNSlices(),
+        _samplePdf.getHeight(), _samplePdf.getWidth() };
+    int[] lower = Arrays.copyOf(size, 4);
+    int[] upper = { -1, -1, -1, -1 };
+    for (int t = 0; t < size[0]; ++t) {
+      for (int z = 0; z < size[1]; ++z) {
+        byte[] codes = (byte[])_samplePdf.getStack().getPixels(
+            _samplePdf.getStackIndex(1, z + 1, t + 1));
+        for (int y = 0; y < size[2]; ++y) {
+          int x0 = 0;
+          int x1 = size[3] - 1;
+          int rowOffset = y * size[3];
+          while (x0 <= x1 && codes[rowOffset + x0] == SAMPLE_PDF_IGNORE) x0++;
+          if (x0 > x1) continue;
+          while (codes[rowOffset + x1] == SAMPLE_PDF_IGNORE) x1--;
+          lower[0] = Math.min(lower[0], t);
+          upper[0] = Math.max(upper[0], t);
+          lower[1] = Math.min(lower[1], z);
+          upper[1] = Math.max(upper[1], z);
+          lower[2] = Math.min(lower[2], y);
+          upper[2] = Math.max(upper[2], y);
+          lower[3] = Math.min(lower[3], x0);
+          upper[3] = Math.max(upper[3], x1);
+        }
+      }
     }
-    if (createLabelBlobs) {
-      if (pr != null)
-          pr.push("Converting annotations",
-                  createDataBlob ? 0.05f : 0.0f, 0.5f);
-      createLabelsAndWeightsBlobs(model, labelsAreClasses, pr);
-      if (pr != null) pr.pop();
+    if (upper[0] < 0) return new int[][] { new int[4], size };
+
+    int[][] res = { new int[4], new int[4] };
+    for (int d = 0; d < 4; ++d) {
+      int context = 0;
+      if (d > 1 || (d == 1 && size[1] > 1))
+          context = (model.padInput[d - 4 + model.nDims()] + 1) / 2;
+      res[0][d] = Math.max(0, lower[d] - context);
+      res[1][d] = Math.min(size[d], upper[d] + context + 1) - res[0][d];
     }
-    if (pr != null)
-        pr.push("Saving tiled blobs",
-                (createDataBlob || createLabelBlobs) ? 0.5f : 0.0f, 1.0f);
-
-    int T = _data.getNFrames();
-    int C = _data.getNChannels();
-    int D = _data.getNSlices();
-    int W = _data.getWidth();
-    int H = _data.getHeight();
-
-    int[] inShape = model.getTileShape();
-    int[] outShape = model.getOutputTileShape(inShape);
-    int[] tileOffset = new int[inShape.length];
-    for (int d = 0; d < tileOffset.length; d++)
-        tileOffset[d] = (inShape[d] - outShape[d]) / 2;
-    int[] tiling = new int[outShape.length];
-    int nTiles = 1;
-    if (outShape.length == 2) {
-      tiling[0] = (int)(
-          Math.ceil((double)_data.getHeight() / (double)outShape[0]));
-      tiling[1] = (int)(
-          Math.ceil((double)_data.getWidth() / (double)outShape[1]));
-      IJ.log("  tiling = " + tiling[0] + "x" + tiling[1]);
+    // Keep 3-D blobs 3-D
+    if (size[1] > 1 && res[1][1] == 1) {
+      if (res[0][1] > 0) res[0][1]--;
+      res[1][1] = 2;
     }
-    else {
-      tiling[0] = (int)(
-          Math.ceil((double)_data.getNSlices() / (double)outShape[0]));
-      tiling[1] = (int)(
-          Math.ceil((double)_data.getHeight() / (double)outShape[1]));
-      tiling[2] = (int)(
-          Math.ceil((double)_data.getWidth() / (double)outShape[2]));
-      IJ.log("  tiling = " + tiling[0] + "x" + tiling[1] + "x" + tiling[2]);
-    }
-    for (int d = 0; d < outShape.length; d++) nTiles *= tiling[d];
-    IJ.log("  nTiles = " + nTiles);
-
-    Vector<File> createdFiles = new Vector<File>();
-
-    // Recursively create parent folders
-    if (fileNameStub != null)
-        createdFiles.addAll(
-            Tools.createFolder(new File(fileNameStub).getParentFile()));
+    return res;
+  }
 
-    // Create output ImagePlus
-    ImagePlus dataTile = (outShape.length == 2) ?
-        IJ.createHyperStack(
-            _imp.getTitle() + " - dataTile",
-            inShape[1], inShape[0], C, 1, T, 32) :
-        IJ.createHyperStack(
-            _imp.getTitle() + " - dataTile",
-            inShape[2], inShape[1], C, inShape[0], T, 32);
-    dataTile.setCalibration(_data.getCalibration().copy());
-    ImagePlus labelsTile = (outShape.length == 2) ?
-        IJ.createHyperStack(
-            _imp.getTitle() + " - labelsTile",
-            outShape[1], outShape[0], 1, 1, T, 32) :
-        IJ.createHyperStack(
-            _imp.getTitle() + " - labelsTile",
-            outShape[2], outShape[1], 1, outShape[0], T, 32);
-    labelsTile.setCalibration(_labels.getCalibration().copy());
-    ImagePlus weightsTile = (outShape.length == 2) ?
-        IJ.createHyperStack(
-            _imp.getTitle() + " - weightsTile",
-            outShape[1], outShape[0], 1, 1, T, 32) :
-        IJ.createHyperStack(
-            _imp.getTitle() + " - weightsTile",
-            outShape[2], outShape[1], 1, outShape[0], T, 32);
-    weightsTile.setCalibration(_weights.getCalibration().copy());
-
-    int tileIdx = 0;
-    if (outShape.length == 2) {
-      for (int yIdx = 0; yIdx < tiling[0]; yIdx++) {
-        for (int xIdx = 0; xIdx < tiling[1]; xIdx++, tileIdx++) {
+  private static PlaneSource cropped(PlaneSource src, int[][] crop) {
+    if (crop == null) return src;
+    return Tools.cropPlaneSource(src, crop[0], crop[1]);
+  }
 
-          if (pr != null)
-              pr.push("Processing tile (" + yIdx + "," + xIdx + ")",
-                      (float)tileIdx / (float)nTiles,
-                      (float)(tileIdx + 1) / (float)nTiles);
+/*======================================================================*/
+/*!
+ *   Save the per-pixel classes (sample pdf codes) and the per class
+ *   distance maps the weights are computed from. Together with a blob
+ *   file written by saveBlobs() this allows to re-compute the weights for
+ *   different weight parameters using reweightBlobs() without converting
+ *   the sample again.
+ *
+ *   All datasets have shape (T, C, Z, H, W). /pixelClasses (C = 1, uint8)
+ *   contains 0 for ignored, 1 for foreground and 2 for background pixels.
+ *   /min1Dist and /min2Dist (uint16) contain the IEEE half precision
+ *   distances in pixels to the nearest and second nearest instance of
+ *   every foreground class.
+ *
+ *   \param outFile The HDF5 file to write
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ *
+ *   \return The list of created files and folders
+ */
+/*======================================================================*/
+  public Vector<File> saveWeightCache(File outFile, ProgressMonitor pr)
+      throws TrainingSampleException, InterruptedException, IOException {
+    if (_samplePdf == null || _distanceCacheFile == null)
+        throw new TrainingSampleException(
+            "No labels and weights to cache for " + _imp.getTitle());
 
-          for (int t = 0; t < T; t++) {
-
-            // Copy data tile for sample t
-            for (int c = 0; c < C; c++) {
-              int stackIdx = _data.getStackIndex(c + 1, 1, t + 1);
-              ImageProcessor ipDataIn =
-                  _data.getStack().getProcessor(stackIdx);
-              ImageProcessor ipDataOut =
-                  dataTile.getStack().getProcessor(stackIdx);
-              for (int y = 0; y < inShape[0]; y++) {
-                int yR = yIdx * outShape[0] - tileOffset[0] + y;
-                if (yR < 0) yR = -yR;
-                int n = yR / (H - 1);
-                yR = (n % 2 == 0) ? (yR - n * (H - 1)) :
-                    ((n + 1) * (H - 1) - yR);
-                for (int x = 0; x < inShape[1]; x++) {
-                  int xR = xIdx * outShape[1] - tileOffset[1] + x;
-                  if (xR < 0) xR = -xR;
-                  n = xR / (W - 1);
-                  xR = (n % 2 == 0) ? (xR - n * (W - 1)) :
-                      ((n + 1) * (W - 1) - xR);
-                  ipDataOut.setf(x, y, ipDataIn.getf(xR, yR));
-                }
-              }
-            }
+    // The distance maps are already on disk, copy them and add the pixel
+    // classes
+    Vector<File> createdFiles = Tools.createFolder(outFile.getParentFile());
+    Files.copy(
+        _distanceCacheFile.toPath(), outFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    createdFiles.add(outFile);
+    IHDF5Writer writer =
+        HDF5Factory.configure(outFile.getAbsolutePath()).syncMode(
+            IHDF5WriterConfigurator.SyncMode.SYNC_BLOCK)
+        .useSimpleDataSpaceForAttributes().writer();
 
-            // Copy labels and weights tiles for sample t
-            int stackIdx = _labels.getStackIndex(1, 1, t + 1);
-            ImageProcessor ipLabelsIn =
-                _labels.getStack().getProcessor(stackIdx);
-            ImageProcessor ipLabelsOut =
-                labelsTile.getStack().getProcessor(stackIdx);
-            ImageProcessor ipWeightsIn =
-                _weights.getStack().getProcessor(stackIdx);
-            ImageProcessor ipWeightsOut =
-                weightsTile.getStack().getProcessor(stackIdx);
-            for (int y = 0; y < outShape[0]; y++) {
-              int yR = yIdx * outShape[0] + y;
-              int n = yR / (H - 1);
-              yR = (n % 2 == 0) ? (yR - n * (H - 1)) :
-                  ((n + 1) * (H - 1) - yR);
-              for (int x = 0; x < outShape[1]; x++) {
-                int xR = xIdx * outShape[1] + x;
-                n = xR / (W - 1);
-                xR = (n % 2 == 0) ? (xR - n * (W - 1)) :
-                    ((n + 1) * (W - 1) - xR);
-                ipLabelsOut.setf(x, y, ipLabelsIn.getf(xR, yR));
-                ipWeightsOut.setf(
-                    x, y, (xR == xIdx * outShape[1] + x &&
-                           yR == yIdx * outShape[0] + y) ?
-                    ipWeightsIn.getf(xR, yR) : 0.0f);
-              }
-            }
-          }
-          if (pr != null && pr.canceled()) throw new InterruptedException();
+    if (pr != null) pr.push("Saving pixel classes", 0.0f, 1.0f);
+    saveIntegerBlob(_samplePdf, writer, "/pixelClasses", pr);
+    if (pr != null) pr.pop();
 
-          // Save tile
-          File outFile = null;
-          if (fileNameStub == null) {
-            outFile = File.createTempFile("unet-", ".h5");
-            outFile.delete();
-          }
-          else outFile = new File(fileNameStub + "_" + tileIdx + ".h5");
-          IHDF5Writer writer =
-              HDF5Factory.configure(outFile.getAbsolutePath()).syncMode(
-                  IHDF5WriterConfigurator.SyncMode.SYNC_BLOCK)
-              .useSimpleDataSpaceForAttributes().overwrite().writer();
-          createdFiles.add(outFile);
+    writer.file().close();
+    IJ.log("Weight cache saved to '" + outFile.getAbsolutePath() + "'");
+    return createdFiles;
+  }
 
-          if (pr != null)
-              pr.push("Saving " + outFile.getName() + ":/data", 0.0f, 0.33f);
-          Tools.saveBlob(dataTile, writer, model.inputBlobName, pr);
-          if (pr != null) {
-            pr.pop();
-            pr.push("Saving " + outFile.getName() + ":/labels", 0.33f, 0.67f);
+  private static void saveIntegerBlob(
+      ImagePlus imp, IHDF5Writer writer, String dsName, ProgressMonitor pr)
+      throws InterruptedException {
+    int T = imp.getNFrames();
+    int C = imp.getNChannels();
+    int Z = imp.getNSlices();
+    int H = imp.getHeight();
+    int W = imp.getWidth();
+    long[] dims = { T, C, Z, H, W };
+    int[] blockDims = { 1, 1, 1, H, W };
+    boolean isByte = imp.getBitDepth() == 8;
+    if (isByte)
+        writer.uint8().createMDArray(
+            dsName, dims, blockDims,
+            HDF5IntStorageFeatures.createDeflationUnsigned(3));
+    else
+        writer.uint16().createMDArray(
+            dsName, dims, blockDims,
+            HDF5IntStorageFeatures.createDeflationUnsigned(3));
+    if (pr != null) pr.init(T * C * Z);
+    for (int t = 0; t < T; ++t) {
+      for (int z = 0; z < Z; ++z) {
+        for (int c = 0; c < C; ++c) {
+          if (pr != null && !pr.count(1)) throw new InterruptedException();
+          Object pixels = imp.getStack().getPixels(
+              imp.getStackIndex(c + 1, z + 1, t + 1));
+          long[] blockIdx = { t, c, z, 0, 0 };
+          if (isByte)
+              writer.uint8().writeMDArrayBlock(
+                  dsName, new MDByteArray((byte[])pixels, blockDims),
+                  blockIdx);
+          else
+              writer.uint16().writeMDArrayBlock(
+                  dsName, new MDShortArray((short[])pixels, blockDims),
+                  blockIdx);
+        }
+      }
+    }
+    writer.float64().setArrayAttr(
+        dsName, "element_size_um", Tools.getElementSizeUm(imp));
+  }
+
+/*======================================================================*/
+/*!
+ *   Re-compute the weights (/weights and /weights2) of a blob file written
+ *   by saveBlobs() for the weight parameters of the given model, using the
+ *   cache written by saveWeightCache(). The planes of each frame are
+ *   processed in parallel, no distance transforms are computed. If the
+ *   blobs were cropped by saveBlobs(), the same region of the cache is
+ *   used.
+ *
+ *   \param blobFile The blob file to update
+ *   \param cacheFile The corresponding weight cache
+ *   \param model The model defining the new weight parameters
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ */
+/*======================================================================*/
+  public static void reweightBlobs(
+      File blobFile, File cacheFile, final ModelDefinition model,
+      ProgressMonitor pr) throws InterruptedException {
+    IHDF5Reader cache =
+        HDF5Factory.configureForReading(cacheFile.getAbsolutePath()).reader();
+    IHDF5Writer writer =
+        HDF5Factory.configure(blobFile.getAbsolutePath()).syncMode(
+            IHDF5WriterConfigurator.SyncMode.SYNC_BLOCK)
+        .useSimpleDataSpaceForAttributes().writer();
+    ExecutorService pool = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors());
+    try {
+      int C = (int)cache.object().getDataSetInformation(
+          "/min1Dist").getDimensions()[1];
+      long[] dims = writer.object().getDataSetInformation(
+          "/weights").getDimensions();
+      int T = (int)dims[0];
+      int Z = (dims.length == 4) ? 1 : (int)dims[2];
+      final int H = (int)dims[dims.length - 2];
+      final int W = (int)dims[dims.length - 1];
+      int[] cropOffset = new int[4];
+      if (writer.object().hasAttribute("/", "cropOffset")) {
+        int[] offset = writer.int32().getArrayAttr("/", "cropOffset");
+        cropOffset = (offset.length == 3) ?
+            new int[] { offset[0], 0, offset[1], offset[2] } : offset;
+      }
+      int[] blockDims = { 1, 1, 1, H, W };
+      int[] outBlockDims =
+          (Z == 1) ? new int[] { 1, 1, H, W } : new int[] { 1, 1, 1, H, W };
+      float[] halfToFloat = Tools.halfToFloatLUT();
+      float[] pdfValues = { 0.0f, 1.0f, model.foregroundBackgroundRatio };
+      SamplingTables tables = new SamplingTables(T, Z, H, W);
+
+      if (pr != null) pr.init(T * Z);
+      for (int t = 0; t < T; ++t) {
+        // Read the planes of frame t and compute weights in parallel
+        final byte[][] pdf = new byte[Z][];
+        Vector<Future<short[]>> weights = new Vector<Future<short[]>>();
+        for (int z = 0; z < Z; ++z) {
+          long[] offset = {
+              t + cropOffset[0], 0, z + cropOffset[1], cropOffset[2],
+              cropOffset[3] };
+          pdf[z] = cache.uint8().readMDArrayBlockWithOffset(
+              "/pixelClasses", blockDims, offset).getAsFlatArray();
+          final short[][] d1 = new short[C][];
+          final short[][] d2 = new short[C][];
+          for (int c = 0; c < C; ++c) {
+            offset[1] = c;
+            d1[c] = cache.uint16().readMDArrayBlockWithOffset(
+                "/min1Dist", blockDims, offset).getAsFlatArray();
+            d2[c] = cache.uint16().readMDArrayBlockWithOffset(
+                "/min2Dist", blockDims, offset).getAsFlatArray();
           }
-          Tools.saveBlob(labelsTile, writer, "/labels", pr);
-          if (pr != null) {
-            pr.pop();
-            pr.push("Saving " + outFile.getName() + ":/weights", 0.67f, 1.0f);
+          final byte[] planePdf = pdf[z];
+          weights.add(
+              pool.submit(
+                  new Callable<short[]>() {
+                    @Override
+                    public short[] call() {
+                      short[] w = new short[H * W];
+                      computePlaneWeights(planePdf, d1, d2, model, w);
+                      return w;
+                    }
+                  }));
+        }
+        for (int z = 0; z < Z; ++z) {
+          short[] w = null;
+          try {
+            w = weights.get(z).get();
           }
-          Tools.saveBlob(weightsTile, writer, "/weights", pr);
-          writer.file().close();
-          if (pr != null) {
-            pr.pop();
-            pr.pop();
-            if (pr.canceled()) throw new InterruptedException();
+          catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
           }
+          long[] blockIdx = (Z == 1) ?
+              new long[] { t, 0, 0, 0 } : new long[] { t, 0, z, 0, 0 };
+          MDFloatArray out = new MDFloatArray(outBlockDims);
+          float[] outFlat = out.getAsFlatArray();
+          for (int i = 0; i < H * W; ++i)
+              outFlat[i] = halfToFloat[w[i] & 0xffff];
+          writer.float32().writeMDArrayBlock("/weights", out, blockIdx);
+          for (int i = 0; i < H * W; ++i)
+              outFlat[i] = pdfValues[pdf[z][i]];
+          writer.float32().writeMDArrayBlock("/weights2", out, blockIdx);
+          tables.addPlane(t, z, pdf[z], pdfValues);
+          if (pr != null && !pr.count(1)) throw new InterruptedException();
         }
       }
+
+      tables.save(writer);
+
+      writer.float64().setAttr(
+          "/conversionParameters", "foregroundBackgroundRatio",
+          model.foregroundBackgroundRatio);
+      writer.float64().setAttr(
+          "/conversionParameters", "sigma1_um", model.sigma1Px);
+      writer.float64().setAttr(
+          "/conversionParameters", "borderWeightFactor",
+          model.borderWeightFactor);
+      writer.float64().setAttr(
+          "/conversionParameters", "borderWeightSigmaPx",
+          model.borderWeightSigmaPx);
     }
-    else {
-      for (int zIdx = 0; zIdx < tiling[0]; zIdx++) {
-        for (int yIdx = 0; yIdx < tiling[1]; yIdx++) {
-          for (int xIdx = 0; xIdx < tiling[2]; xIdx++, tileIdx++) {
-
-            if (pr != null)
-                pr.push("Processing tile (" + zIdx + "," + yIdx + "," +
-                        xIdx + ")", (float)tileIdx / (float)nTiles,
-                        (float)(tileIdx + 1) / (float)nTiles);
-
-            for (int t = 0; t < T; t++) {
-
-              // Copy data tile for sample t
-              for (int c = 0; c < C; c++) {
-                for (int z = 0; z < inShape[0]; ++z) {
-                  int zR = zIdx * outShape[0] - tileOffset[0] + z;
-                  if (zR < 0) zR = -zR;
-                  int n = zR / (D - 1);
-                  zR = (n % 2 == 0) ? (zR - n * (D - 1)) :
-                      ((n + 1) * (D - 1) - zR);
-                  ImageProcessor ipDataIn =
-                      _data.getStack().getProcessor(
-                          _data.getStackIndex(c + 1, zR + 1, t + 1));
-                  ImageProcessor ipDataOut =
-                      dataTile.getStack().getProcessor(
-                          dataTile.getStackIndex(c + 1, z + 1, t + 1));
-                  for (int y = 0; y < inShape[1]; y++) {
-                    int yR = yIdx * outShape[1] - tileOffset[1] + y;
-                    if (yR < 0) yR = -yR;
-                    n = yR / (H - 1);
-                    yR = (n % 2 == 0) ? (yR - n * (H - 1)) :
-                        ((n + 1) * (H - 1) - yR);
-                    for (int x = 0; x < inShape[2]; x++) {
-                      int xR = xIdx * outShape[2] - tileOffset[2] + x;
-                      if (xR < 0) xR = -xR;
-                      n = xR / (W - 1);
-                      xR = (n % 2 == 0) ? (xR - n * (W - 1)) :
-                          ((n + 1) * (W - 1) - xR);
-                      ipDataOut.setf(x, y, ipDataIn.getf(xR, yR));
-                    }
-                  }
-                }
-              }
+    finally {
+      pool.shutdownNow();
+      cache.close();
+      writer.file().close();
+    }
+    IJ.log("Weights of '" + blobFile.getAbsolutePath() + "' re-computed");
+  }
 
-              // Copy labels and weights tiles for sample t
-              for (int z = 0; z < outShape[0]; ++z) {
-                int zR = zIdx * outShape[0] + z;
-                int n = zR / (D - 1);
-                zR = (n % 2 == 0) ? (zR - n * (D - 1)) :
-                    ((n + 1) * (D - 1) - zR);
-                int stackIdxIn = _labels.getStackIndex(1, zR + 1, t + 1);
-                int stackIdxOut = labelsTile.getStackIndex(1, z + 1, t + 1);
-                ImageProcessor ipLabelsIn =
-                    _labels.getStack().getProcessor(stackIdxIn);
-                ImageProcessor ipLabelsOut =
-                    labelsTile.getStack().getProcessor(stackIdxOut);
-                ImageProcessor ipWeightsIn =
-                    _weights.getStack().getProcessor(stackIdxIn);
-                ImageProcessor ipWeightsOut =
-                    weightsTile.getStack().getProcessor(stackIdxOut);
-                for (int y = 0; y < outShape[1]; y++) {
-                  int yR = yIdx * outShape[1] + y;
-                  n = yR / (H - 1);
-                  yR = (n % 2 == 0) ? (yR - n * (H - 1)) :
-                      ((n + 1) * (H - 1) - yR);
-                  for (int x = 0; x < outShape[2]; x++) {
-                    int xR = xIdx * outShape[2] + x;
-                    n = xR / (W - 1);
-                    xR = (n % 2 == 0) ? (xR - n * (W - 1)) :
-                        ((n + 1) * (W - 1) - xR);
-                    ipLabelsOut.setf(x, y, ipLabelsIn.getf(xR, yR));
-                    ipWeightsOut.setf(
-                        x, y, (xR == xIdx * outShape[1] + x &&
-                               yR == yIdx * outShape[0] + y) ?
-                        ipWeightsIn.getf(xR, yR) : 0.0f);
-                  }
-                }
-              }
-            }
-            if (pr != null && pr.canceled()) throw new InterruptedException();
+  public Vector<File> saveTiledBlobs(
+      String fileNameStub, ModelDefinition model, boolean labelsAreClasses,
+      ProgressMonitor pr)
+      throws TrainingSampleException, InterruptedException, IOException,
+      BlobException {
+    return saveTiledBlobs(fileNameStub, model, labelsAreClasses, false, pr);
+  }
 
-            // Save tile
-            File outFile = null;
-            if (fileNameStub == null) {
-              outFile = File.createTempFile("unet-", ".h5");
-              outFile.delete();
-            }
-            else outFile = new File(fileNameStub + "_" + tileIdx + ".h5");
-            IHDF5Writer writer =
-                HDF5Factory.configure(outFile.getAbsolutePath()).syncMode(
-                    IHDF5WriterConfigurator.SyncMode.SYNC_BLOCK)
-                .useSimpleDataSpaceForAttributes().overwrite().writer();
-            createdFiles.add(outFile);
-
-            if (pr != null)
-                pr.push("Saving " + outFile.getName() + ":/data", 0.0f, 0.33f);
-            Tools.saveBlob(dataTile, writer, model.inputBlobName, pr);
-            if (pr != null) {
-              pr.pop();
-              pr.push("Saving " + outFile.getName() + ":/labels", 0.33f, 0.67f);
-            }
-            Tools.saveBlob(labelsTile, writer, "/labels", pr);
-            if (pr != null) {
-              pr.pop();
-              pr.push("Saving " + outFile.getName() + ":/weights", 0.67f, 1.0f);
-            }
-            Tools.saveBlob(weightsTile, writer, "/weights", pr);
-            writer.file().close();
-            if (pr != null) {
-              pr.pop();
-              pr.pop();
-              if (pr.canceled()) throw new InterruptedException();
-            }
-          }
+/*======================================================================*/
+/*!
+ *   Split the sample into validation tiles of the model's tile shape and
+ *   save them. Positions outside the sample are mirrored at the sample
+ *   boundary, weights of mirrored positions are set to zero. Tiles
+ *   without any non-zero weight are skipped.
+ *
+ *   \param fileNameStub The output file name without extension. If null,
+ *     temporary files are created.
+ *   \param model The model to convert the sample for
+ *   \param labelsAreClasses Treat annotation names as class names
+ *   \param singleFile If true, all tiles are written to one file
+ *     <fileNameStub>.h5 with the tiles stacked along the leading (sample)
+ *     dimension, ordered by tile and frame. Otherwise every tile is
+ *     written to its own file <fileNameStub>_<tileIdx>.h5.
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ *
+ *   \return The list of created files and folders
+ */
+/*======================================================================*/
+  public Vector<File> saveTiledBlobs(
+      String fileNameStub, ModelDefinition model, boolean labelsAreClasses,
+      boolean singleFile, ProgressMonitor pr)
+      throws TrainingSampleException, InterruptedException, IOException,
+      BlobException {
+
+    boolean createDataBlob = !dataBlobReady(model);
+    boolean createLabelBlobs = !labelBlobsReady(model);
+
+    if (createDataBlob) {
+      if (pr != null)
+          pr.push("Converting data to U-Net format",
+                  0.0f, createLabelBlobs ? 0.05f : 0.5f);
+      createDataBlob(model, pr);
+      if (pr != null) pr.pop();
+    }
+    if (createLabelBlobs) {
+      if (pr != null)
+          pr.push("Converting annotations",
+                  createDataBlob ? 0.05f : 0.0f, 0.5f);
+      createLabelsAndWeightsBlobs(model, labelsAreClasses, pr);
+      if (pr != null) pr.pop();
+    }
+    if (pr != null)
+        pr.push("Saving tiled blobs",
+                (createDataBlob || createLabelBlobs) ? 0.5f : 0.0f, 1.0f);
+
+    int T = _data.getNFrames();
+    int[] tiling = tiling(model);
+    int nTiles = 1;
+    for (int d = 0; d < tiling.length; d++) nTiles *= tiling[d];
+    if (tiling.length == 2)
+        IJ.log("  tiling = " + tiling[0] + "x" + tiling[1]);
+    else IJ.log("  tiling = " + tiling[0] + "x" + tiling[1] + "x" + tiling[2]);
+    IJ.log("  nTiles = " + nTiles);
+
+    TiledSource[] views = tiledSources(model);
+    String[] dsNames = new String[] {
+        model.inputBlobName, "/labels", "/weights" };
+
+    // Samples without any non-zero weight do not contribute to the
+    // validation scores
+    int[] samples = labelledSamples(views[2]);
+    if (samples.length < nTiles * T)
+        IJ.log("  skipped " + (nTiles * T - samples.length) +
+               " tile samples without labelled pixels");
+
+    Vector<File> createdFiles = new Vector<File>();
+
+    // Recursively create parent folders
+    if (fileNameStub != null)
+        createdFiles.addAll(
+            Tools.createFolder(new File(fileNameStub).getParentFile()));
+
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    try {
+      if (singleFile) {
+        if (samples.length > 0) {
+          File outFile = tiledBlobFile(fileNameStub, "");
+          createdFiles.add(outFile);
+          saveTiles(views, dsNames, samples, outFile, pool, 2 * nThreads,
+                    pr);
+        }
+      }
+      else {
+        for (int tileIdx = 0, i = 0; tileIdx < nTiles; tileIdx++) {
+          int first = i;
+          while (i < samples.length && samples[i] / T == tileIdx) i++;
+          if (i == first) continue;
+          if (pr != null)
+              pr.push("Saving tile " + (tileIdx + 1) + " / " + nTiles,
+                      (float)tileIdx / (float)nTiles,
+                      (float)(tileIdx + 1) / (float)nTiles);
+          File outFile = tiledBlobFile(fileNameStub, "_" + tileIdx);
+          createdFiles.add(outFile);
+          saveTiles(views, dsNames, Arrays.copyOfRange(samples, first, i),
+                    outFile, pool, 2 * nThreads, pr);
+          if (pr != null) pr.pop();
         }
       }
     }
+    finally {
+      pool.shutdownNow();
+    }
 
     if (pr != null) pr.pop();
 
     return createdFiles;
   }
 
+/*======================================================================*/
+/*!
+ *   Get the number of samples written by saveTiledBlobs(), i.e. the number
+ *   of (tile, frame) pairs containing at least one pixel with non-zero
+ *   weight. The data and label blobs must have been created for the given
+ *   model.
+ */
+/*======================================================================*/
+  public int nTiledSamples(ModelDefinition model) {
+    return labelledSamples(tiledSources(model)[2]).length;
+  }
+
+  private int[] tiling(ModelDefinition model) {
+    int[] outShape = model.getOutputTileShape(model.getTileShape());
+    int[] shape = (outShape.length == 2) ?
+        new int[] { _data.getHeight(), _data.getWidth() } :
+        new int[] { _data.getNSlices(), _data.getHeight(), _data.getWidth() };
+    int[] tiling = new int[outShape.length];
+    for (int d = 0; d < outShape.length; d++)
+        tiling[d] = (int)Math.ceil((double)shape[d] / (double)outShape[d]);
+    return tiling;
+  }
+
+  // Tile views of data, labels and weights
+  private TiledSource[] tiledSources(ModelDefinition model) {
+    int[] inShape = model.getTileShape();
+    int[] outShape = model.getOutputTileShape(inShape);
+    int[] tiling = tiling(model);
+
+    // Tile geometry as (z, y, x), 2-D tiles have a single slice
+    int[] inShape3 = (inShape.length == 2) ?
+        new int[] { 1, inShape[0], inShape[1] } : inShape;
+    int[] outShape3 = (outShape.length == 2) ?
+        new int[] { 1, outShape[0], outShape[1] } : outShape;
+    int[] tiling3 = (tiling.length == 2) ?
+        new int[] { 1, tiling[0], tiling[1] } : tiling;
+    int[] tileOffset3 = new int[3];
+    for (int d = 0; d < 3; d++)
+        tileOffset3[d] = (inShape3[d] - outShape3[d]) / 2;
+
+    return new TiledSource[] {
+        new TiledSource(
+            _data, null, inShape3, outShape3, tileOffset3, tiling3, false),
+        new TiledSource(
+            _labels, null, outShape3, outShape3, new int[3], tiling3, false),
+        new TiledSource(
+            _weights, Tools.halfToFloatLUT(), outShape3, outShape3,
+            new int[3], tiling3, true) };
+  }
+
+  // Indices of the samples of the weights view with non-zero weights
+  private static int[] labelledSamples(TiledSource weights) {
+    int[] samples = new int[weights.nFrames()];
+    int nSamples = 0;
+    for (int n = 0; n < weights.nFrames(); n++)
+        if (!weights.isZero(n)) samples[nSamples++] = n;
+    return Arrays.copyOf(samples, nSamples);
+  }
+
+  private static File tiledBlobFile(String fileNameStub, String suffix)
+      throws IOException {
+    if (fileNameStub != null) return new File(fileNameStub + suffix + ".h5");
+    File outFile = File.createTempFile("unet-", ".h5");
+    outFile.delete();
+    return outFile;
+  }
+
+/*======================================================================*/
+/*!
+ *   Write the given samples of the tile views to the given datasets of a
+ *   new HDF5 file, sample samples[i] is stored at index i. The work items
+ *   are the slices of the samples, all channels of a slice are extracted
+ *   by one task of the pool into a pooled buffer. The calling thread is
+ *   the only one touching the HDF5 writer and the ProgressMonitor, it
+ *   writes the items in order while at most maxInFlight items are being
+ *   extracted or waiting to be written.
+ */
+/*======================================================================*/
+  private static void saveTiles(
+      TiledSource[] views, String[] dsNames, int[] samples,
+      File outFile, ExecutorService pool, int maxInFlight,
+      ProgressMonitor pr) throws InterruptedException {
+
+    // Work items ordered by sample, view and slice
+    int nItemsPerSample = 0;
+    for (TiledSource view : views) nItemsPerSample += view.nSlices();
+    int nSamples = samples.length;
+    int nItems = nSamples * nItemsPerSample;
+    int[] itemView = new int[nItemsPerSample];
+    int[] itemZ = new int[nItemsPerSample];
+    for (int v = 0, i = 0; v < views.length; v++)
+        for (int z = 0; z < views[v].nSlices(); z++, i++) {
+          itemView[i] = v;
+          itemZ[i] = z;
+        }
+
+    // Per view buffer pools, one buffer per item in flight suffices
+    Vector<ArrayBlockingQueue<MDFloatArray[]>> buffers =
+        new Vector<ArrayBlockingQueue<MDFloatArray[]>>();
+    for (TiledSource view : views) {
+      ArrayBlockingQueue<MDFloatArray[]> free =
+          new ArrayBlockingQueue<MDFloatArray[]>(maxInFlight);
+      int[] blockDims = (view.nSlices() == 1) ?
+          new int[] { 1, 1, view.height(), view.width() } :
+          new int[] { 1, 1, 1, view.height(), view.width() };
+      for (int b = 0; b < maxInFlight; b++) {
+        MDFloatArray[] buffer = new MDFloatArray[view.nChannels()];
+        for (int c = 0; c < buffer.length; c++)
+            buffer[c] = new MDFloatArray(blockDims);
+        free.add(buffer);
+      }
+      buffers.add(free);
+    }
+
+    IHDF5Writer writer =
+        HDF5Factory.configure(outFile.getAbsolutePath()).syncMode(
+            IHDF5WriterConfigurator.SyncMode.SYNC_BLOCK)
+        .useSimpleDataSpaceForAttributes().overwrite().writer();
+    ArrayDeque<Future<MDFloatArray[]>> inFlight =
+        new ArrayDeque<Future<MDFloatArray[]>>();
+    try {
+      for (int v = 0; v < views.length; v++) {
+        TiledSource view = views[v];
+        long[] dims = (view.nSlices() == 1) ?
+            new long[] {
+                nSamples, view.nChannels(), view.height(), view.width() } :
+            new long[] {
+                nSamples, view.nChannels(), view.nSlices(), view.height(),
+                view.width() };
+        int[] blockDims = (view.nSlices() == 1) ?
+            new int[] { 1, 1, view.height(), view.width() } :
+            new int[] { 1, 1, 1, view.height(), view.width() };
+        writer.float32().createMDArray(
+            dsNames[v], dims, blockDims,
+            HDF5FloatStorageFeatures.createDeflation(3));
+        writer.float64().setArrayAttr(
+            dsNames[v], "element_size_um", view.elementSizeUm());
+      }
+
+      if (pr != null) pr.init(nItems);
+      int nSubmitted = 0;
+      for (int i = 0; i < nItems; i++) {
+        for (; nSubmitted < nItems && nSubmitted < i + maxInFlight;
+             nSubmitted++) {
+          final TiledSource view =
+              views[itemView[nSubmitted % nItemsPerSample]];
+          final int n = samples[nSubmitted / nItemsPerSample];
+          final int z = itemZ[nSubmitted % nItemsPerSample];
+          final MDFloatArray[] buffer =
+              buffers.get(itemView[nSubmitted % nItemsPerSample]).poll();
+          inFlight.add(
+              pool.submit(
+                  new Callable<MDFloatArray[]>() {
+                    @Override
+                    public MDFloatArray[] call() {
+                      for (int c = 0; c < buffer.length; c++)
+                          view.copyPlane(
+                              n, z, c, buffer[c].getAsFlatArray(), 0);
+                      return buffer;
+                    }}));
+        }
+
+        int v = itemView[i % nItemsPerSample];
+        int n = i / nItemsPerSample;
+        int z = itemZ[i % nItemsPerSample];
+        if (pr != null && !pr.count(
+                "Saving " + dsNames[v] + " n=" + n + ", z=" + z, 1))
+            throw new InterruptedException();
+
+        MDFloatArray[] buffer;
+        try {
+          buffer = inFlight.poll().get();
+        }
+        catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+        long[] blockIdx = (views[v].nSlices() == 1) ?
+            new long[] { n, 0, 0, 0 } : new long[] { n, 0, z, 0, 0 };
+        for (int c = 0; c < buffer.length; c++) {
+          blockIdx[1] = c;
+          writer.float32().writeMDArrayBlock(dsNames[v], buffer[c], blockIdx);
+        }
+        buffers.get(v).add(buffer);
+      }
+    }
+    finally {
+      for (Future<MDFloatArray[]> f : inFlight) f.cancel(true);
+      writer.file().close();
+    }
+  }
+
+
+/*======================================================================*/
+/*!
+ *   Check whether the data blob and the label geometry were created with
+ *   the element size and normalization of the given model and the
+ *   current image calibration. The weight
+ *   parameters are checked separately by hasWeightParameters(), because
+ *   weights can be re-computed without re-converting the sample.
+ */
+/*======================================================================*/
   private boolean wasConvertedWithModel(ModelDefinition model) {
     boolean res = _conversionModel != null &&
+        Arrays.equals(_conversionElementSizeUm, getRawElementSizeUm()) &&
         model.elementSizeUm().length ==
         _conversionModel.elementSizeUm().length &&
-        model.foregroundBackgroundRatio ==
-        _conversionModel.foregroundBackgroundRatio &&
-        model.sigma1Px == _conversionModel.sigma1Px &&
-        model.borderWeightSigmaPx == _conversionModel.borderWeightSigmaPx &&
-        model.borderWeightFactor == _conversionModel.borderWeightFactor &&
-        model.normalizationType == _conversionModel.normalizationType;
+        model.normalizationType == _conversionModel.normalizationType &&
+        (model.normalizationType != 4 ||
+         Arrays.equals(model.normalizationPercentiles,
+                       _conversionModel.normalizationPercentiles));
     for (int d = 0; res && d < _conversionModel.elementSizeUm().length; ++d)
         res &= _conversionModel.elementSizeUm()[d] == model.elementSizeUm()[d];
     return res;
   }
 
+  private static boolean hasWeightParameters(
+      ModelDefinition a, ModelDefinition b) {
+    return a.foregroundBackgroundRatio == b.foregroundBackgroundRatio &&
+        a.sigma1Px == b.sigma1Px &&
+        a.borderWeightSigmaPx == b.borderWeightSigmaPx &&
+        a.borderWeightFactor == b.borderWeightFactor;
+  }
+
   private boolean dataBlobReady(ModelDefinition model) {
     return (_data != null && wasConvertedWithModel(model));
   }
 
   private boolean labelBlobsReady(ModelDefinition model) {
     return (_labels != null && _weights != null && _samplePdf != null &&
-            wasConvertedWithModel(model));
+            _weightsModel != null && wasConvertedWithModel(model) &&
+            hasWeightParameters(_weightsModel, model));
   }
 
 /*======================================================================*/
@@ -754,42 +1628,60 @@ public class TrainingSample
         imp.getNSlices(), imp.getNFrames(), 32);
     out.setCalibration(cal);
 
-    // ImageJ interpolation method NEAREST_NEIGHBOR seems to be broken...
-    // To ensure proper interpolation we do the interpolation ourselves
-    int W = imp.getWidth();
-    int H = imp.getHeight();
-    int Wout = out.getWidth();
-    int Hout = out.getHeight();
     for (int i = 0; i < imp.getImageStackSize(); ++i) {
       if (pr != null && !pr.count(1)) throw new InterruptedException();
-      ImageProcessor ipIn = imp.getStack().getProcessor(i + 1);
-      ImageProcessor ipOut = out.getStack().getProcessor(i + 1);
-      for (int y = 0; y < Hout; ++y) {
-        double yRd = y / scales[0];
-        int yL = (int)Math.floor(yRd);
-        int yU = (yL + 1 < H) ? yL + 1 : (2 * (H - 1) - (yL + 1));
-        double dy = yRd - yL;
-        for (int x = 0; x < Wout; ++x) {
-          double xRd = x / scales[1];
-          int xL = (int)Math.floor(xRd);
-          int xU = (xL + 1 < W) ? xL + 1 : (2 * (W - 1) - (xL + 1));
-          double dx = xRd - xL;
-          if (interpolationMethod == ImageProcessor.NEAREST_NEIGHBOR)
-              ipOut.setf(
-                  x, y, ipIn.getf((int)Math.round(xRd), (int)Math.round(yRd)));
-          else {
+      rescalePlaneXY(
+          imp.getStack().getProcessor(i + 1),
+          out.getStack().getProcessor(i + 1), scales, interpolationMethod);
+    }
+    return out;
+  }
+
+/*======================================================================*/
+/*!
+ *   Rescale the given 32-Bit plane to the size of the given output plane.
+ *   Values outside the input plane are mirrored at the plane boundaries.
+ *
+ *   \param ipIn The input plane
+ *   \param ipOut The output plane
+ *   \param scales The (y, x) scaling factors (output / input)
+ *   \param interpolationMethod ImageProcessor.BILINEAR or
+ *     ImageProcessor.NEAREST_NEIGHBOR
+ */
+/*======================================================================*/
+  private static void rescalePlaneXY(
+      ImageProcessor ipIn, ImageProcessor ipOut, double[] scales,
+      int interpolationMethod) {
+    // ImageJ interpolation method NEAREST_NEIGHBOR seems to be broken...
+    // To ensure proper interpolation we do the interpolation ourselves
+    int W = ipIn.getWidth();
+    int H = ipIn.getHeight();
+    int Wout = ipOut.getWidth();
+    int Hout = ipOut.getHeight();
+    for (int y = 0; y < Hout; ++y) {
+      double yRd = y / scales[0];
+      int yL = (int)Math.floor(yRd);
+      int yU = (yL + 1 < H) ? yL + 1 : (2 * (H - 1) - (yL + 1));
+      double dy = yRd - yL;
+      for (int x = 0; x < Wout; ++x) {
+        double xRd = x / scales[1];
+        int xL = (int)Math.floor(xRd);
+        int xU = (xL + 1 < W) ? xL + 1 : (2 * (W - 1) - (xL + 1));
+        double dx = xRd - xL;
+        if (interpolationMethod == ImageProcessor.NEAREST_NEIGHBOR)
             ipOut.setf(
-                x, y,
-                (float)(
-                    (1 - dx) * (1 - dy) * ipIn.getf(xL, yL) +
-                    (1 - dx) * dy * ipIn.getf(xL, yU) +
-                    dx * (1 - dy) * ipIn.getf(xU, yL) +
-                    dx * dy * ipIn.getf(xU, yU)));
-          }
+                x, y, ipIn.getf((int)Math.round(xRd), (int)Math.round(yRd)));
+        else {
+          ipOut.setf(
+              x, y,
+              (float)(
+                  (1 - dx) * (1 - dy) * ipIn.getf(xL, yL) +
+                  (1 - dx) * dy * ipIn.getf(xL, yU) +
+                  dx * (1 - dy) * ipIn.getf(xU, yL) +
+                  dx * dy * ipIn.getf(xU, yU)));
         }
       }
     }
-    return out;
   }
 
   private static ImagePlus rescaleZ(
@@ -879,141 +1771,287 @@ public class TrainingSample
     if (model.normalizationType == 0) return imp;
     float[] scales = new float[imp.getNFrames()];
     float[] offsets = new float[imp.getNFrames()];
-    boolean needsNormalization = false;
 
     long nSteps = 2 * imp.getStackSize();
     if (model.normalizationType == 2) nSteps += imp.getStackSize();
     if (pr != null) pr.init(nSteps);
 
+    computeNormalization(Tools.planeSource(imp), model, scales, offsets, pr);
+
+    boolean needsNormalization = false;
+    for (int t = 0; t < imp.getNFrames(); ++t)
+        needsNormalization |= offsets[t] != 0 || scales[t] != 1;
+
+    if (!needsNormalization) return imp;
+
+    ImagePlus out = IJ.createHyperStack(
+        imp.getTitle() + " - normalized", imp.getWidth(),
+        imp.getHeight(), imp.getNChannels(), imp.getNSlices(),
+        imp.getNFrames(), 32);
+    out.setCalibration(imp.getCalibration().copy());
     for (int t = 1; t <= imp.getNFrames(); ++t) {
+      for (int z = 1; z <= imp.getNSlices(); ++z) {
+        for (int c = 1; c <= imp.getNChannels(); ++c) {
+          if (pr != null &&
+              !pr.count(
+                  "Normalizing (t=" + t + ", z=" + z + ", c=" + c + ")", 1))
+              throw new InterruptedException();
+          ImageProcessor ip =
+              imp.getStack().getProcessor(
+                  imp.getStackIndex(c, z, t)).duplicate();
+          ip.add(offsets[t - 1]);
+          ip.multiply(scales[t - 1]);
+          ip.setMinAndMax(0, 1);
+          out.getStack().setProcessor(ip, out.getStackIndex(c, z, t));
+        }
+      }
+    }
+    return out;
+  }
+
+/*======================================================================*/
+/*!
+ *   Compute per-frame scales and offsets for value normalization. The
+ *   normalized value is (value + offset) * scale. Progress is counted once
+ *   per plane and pass over the data, i.e. two passes for normalization
+ *   type 2 (mean/standard deviation) and one pass otherwise.
+ *
+ *   \param src The planes to compute the normalization for
+ *   \param model The model defining normalization type and percentiles
+ *   \param scales Output: The per-frame scales
+ *   \param offsets Output: The per-frame offsets
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ */
+/*======================================================================*/
+  private static void computeNormalization(
+      PlaneSource src, ModelDefinition model, float[] scales,
+      float[] offsets, ProgressMonitor pr)
+      throws InterruptedException {
+    // The histogram pool is shared by all frames
+    ExecutorService pool = (model.normalizationType == 4) ?
+        Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors()) : null;
+    try {
+      computeNormalization(src, model, scales, offsets, pool, pr);
+    }
+    finally {
+      if (pool != null) pool.shutdownNow();
+    }
+  }
+
+  private static void computeNormalization(
+      PlaneSource src, ModelDefinition model, float[] scales,
+      float[] offsets, ExecutorService pool, ProgressMonitor pr)
+      throws InterruptedException {
+    int T = src.nFrames();
+    int Z = src.nSlices();
+    int C = src.nChannels();
+    int H = src.height();
+    int W = src.width();
+    for (int t = 0; t < T; ++t) {
+      scales[t] = 1;
+      offsets[t] = 0;
       switch (model.normalizationType) {
       case 1: { // MIN/MAX
         float minValue = Float.POSITIVE_INFINITY;
         float maxValue = Float.NEGATIVE_INFINITY;
-        for (int z = 1; z <= imp.getNSlices(); ++z) {
-          for (int c = 1; c <= imp.getNChannels(); ++c) {
+        for (int z = 0; z < Z; ++z) {
+          for (int c = 0; c < C; ++c) {
             if (pr != null &&
-                !pr.count("Computing data min/max (t=" + t + ", z=" + z +
-                          ", c=" + c + ")", 1))
+                !pr.count("Computing data min/max (t=" + (t + 1) + ", z=" +
+                          (z + 1) + ", c=" + (c + 1) + ")", 1))
                 throw new InterruptedException();
-            float[] values = (float[])
-                imp.getStack().getPixels(imp.getStackIndex(c, z, t));
-            for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i) {
+            float[] values = src.getPlane(t, z, c);
+            for (int i = 0; i < H * W; ++i) {
               if (values[i] > maxValue) maxValue = values[i];
               if (values[i] < minValue) minValue = values[i];
             }
           }
         }
-        scales[t - 1] = (float)(1.0 / (maxValue - minValue));
-        offsets[t - 1] = -minValue;
+        scales[t] = (float)(1.0 / (maxValue - minValue));
+        offsets[t] = -minValue;
         break;
       }
       case 2: { // Zero mean, unit standard deviation
         float sum = 0;
-        for (int z = 1; z <= imp.getNSlices(); ++z) {
-          for (int c = 1; c <= imp.getNChannels(); ++c) {
+        for (int z = 0; z < Z; ++z) {
+          for (int c = 0; c < C; ++c) {
             if (pr != null &&
-                !pr.count("Computing data mean (t=" + t + ", z=" + z +
-                          ", c=" + c + ")", 1))
+                !pr.count("Computing data mean (t=" + (t + 1) + ", z=" +
+                          (z + 1) + ", c=" + (c + 1) + ")", 1))
                 throw new InterruptedException();
-            float[] values = (float[])
-                imp.getStack().getPixels(imp.getStackIndex(c, z, t));
-            for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i)
-                sum += values[i];
+            float[] values = src.getPlane(t, z, c);
+            for (int i = 0; i < H * W; ++i) sum += values[i];
           }
         }
-        offsets[t - 1] = -sum / (imp.getNSlices() * imp.getNChannels() *
-                                 imp.getHeight() * imp.getWidth());
+        offsets[t] = -sum / (Z * C * H * W);
         sum = 0;
-        for (int z = 1; z <= imp.getNSlices(); ++z) {
-          for (int c = 1; c <= imp.getNChannels(); ++c) {
+        for (int z = 0; z < Z; ++z) {
+          for (int c = 0; c < C; ++c) {
             if (pr != null &&
-                !pr.count("Computing data standard deviation (t=" + t + ", z=" +
-                          z + ", c=" + c + ")", 1))
+                !pr.count("Computing data standard deviation (t=" + (t + 1) +
+                          ", z=" + (z + 1) + ", c=" + (c + 1) + ")", 1))
                 throw new InterruptedException();
-            float[] values = (float[])
-                imp.getStack().getPixels(imp.getStackIndex(c, z, t));
-            for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i)
-                sum += (values[i] + offsets[t - 1]) *
-                    (values[i] + offsets[t - 1]);
+            float[] values = src.getPlane(t, z, c);
+            for (int i = 0; i < H * W; ++i)
+                sum += (values[i] + offsets[t]) * (values[i] + offsets[t]);
           }
         }
-        scales[t - 1] = (float)Math.sqrt(
-            (imp.getNSlices() * imp.getNChannels() * imp.getHeight() *
-             imp.getWidth()) / sum);
+        scales[t] = (float)Math.sqrt((Z * C * H * W) / sum);
         break;
       }
       case 3: { // Max norm 1
         float maxSqrNorm = 0;
-        for (int z = 1; z <= imp.getNSlices(); ++z) {
-          float[] sqrNorm = new float[imp.getHeight() * imp.getWidth()];
+        float[] sqrNorm = new float[H * W];
+        for (int z = 0; z < Z; ++z) {
           Arrays.fill(sqrNorm, 0);
-          for (int c = 1; c <= imp.getNChannels(); ++c) {
+          for (int c = 0; c < C; ++c) {
             if (pr != null &&
-                !pr.count("Computing data norm (t=" + t + ", z=" +
-                          z + ", c=" + c + ")", 1))
+                !pr.count("Computing data norm (t=" + (t + 1) + ", z=" +
+                          (z + 1) + ", c=" + (c + 1) + ")", 1))
                 throw new InterruptedException();
-            float[] values = (float[])
-                imp.getStack().getPixels(imp.getStackIndex(c, z, t));
-            for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i)
+            float[] values = src.getPlane(t, z, c);
+            for (int i = 0; i < H * W; ++i)
                 sqrNorm[i] += values[i] * values[i];
           }
-          for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i)
+          for (int i = 0; i < H * W; ++i)
               if (sqrNorm[i] > maxSqrNorm) maxSqrNorm = sqrNorm[i];
         }
-        offsets[t - 1] = 0;
-        scales[t - 1] = (float)(1.0 / Math.sqrt(maxSqrNorm));
+        offsets[t] = 0;
+        scales[t] = (float)(1.0 / Math.sqrt(maxSqrNorm));
+        break;
+      }
+      case 4: { // Percentiles
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        StreamingHistogram[] histograms = new StreamingHistogram[nThreads];
+        for (int i = 0; i < nThreads; ++i)
+            histograms[i] = new StreamingHistogram(HISTOGRAM_BINS);
+        for (int z = 0; z < Z; ++z) {
+          for (int c = 0; c < C; ++c) {
+            if (pr != null &&
+                !pr.count("Computing data histogram (t=" + (t + 1) +
+                          ", z=" + (z + 1) + ", c=" + (c + 1) + ")", 1))
+                throw new InterruptedException();
+            addToHistograms(src.getPlane(t, z, c), histograms, pool);
+          }
+        }
+        for (int i = 1; i < histograms.length; ++i)
+            histograms[0].merge(histograms[i]);
+        double lower = histograms[0].percentile(
+            model.normalizationPercentiles[0]);
+        double upper = histograms[0].percentile(
+            model.normalizationPercentiles[1]);
+        IJ.log("t = " + (t + 1) + ": " + model.normalizationPercentiles[0] +
+               "% percentile = " + lower + ", " +
+               model.normalizationPercentiles[1] + "% percentile = " + upper);
+        // Constant frames have no intensity range, only shift them
+        scales[t] = (upper > lower) ? (float)(1.0 / (upper - lower)) : 1.0f;
+        offsets[t] = (float)(-lower);
         break;
       }
       default:
         break;
       }
 
-      IJ.log("t = " + t + ": scale = " + scales[t - 1] + ", offset = " +
-             offsets[t - 1]);
-      needsNormalization |= offsets[t - 1] != 0 || scales[t - 1] != 1;
+      IJ.log("t = " + (t + 1) + ": scale = " + scales[t] + ", offset = " +
+             offsets[t]);
     }
+  }
 
-    if (!needsNormalization) return imp;
-
-    ImagePlus out = IJ.createHyperStack(
-        imp.getTitle() + " - normalized", imp.getWidth(),
-        imp.getHeight(), imp.getNChannels(), imp.getNSlices(),
-        imp.getNFrames(), 32);
-    out.setCalibration(imp.getCalibration().copy());
-    for (int t = 1; t <= imp.getNFrames(); ++t) {
-      for (int z = 1; z <= imp.getNSlices(); ++z) {
-        for (int c = 1; c <= imp.getNChannels(); ++c) {
-          if (pr != null &&
-              !pr.count(
-                  "Normalizing (t=" + t + ", z=" + z + ", c=" + c + ")", 1))
-              throw new InterruptedException();
-          ImageProcessor ip =
-              imp.getStack().getProcessor(
-                  imp.getStackIndex(c, z, t)).duplicate();
-          ip.add(offsets[t - 1]);
-          ip.multiply(scales[t - 1]);
-          ip.setMinAndMax(0, 1);
-          out.getStack().setProcessor(ip, out.getStackIndex(c, z, t));
-        }
-      }
-    }
-    return out;
-  }
+/*======================================================================*/
+/*!
+ *   Add the given values to the histograms. The values are split into
+ *   one contiguous range per histogram, and the ranges are processed in
+ *   parallel using the given thread pool.
+ */
+/*======================================================================*/
+  private static void addToHistograms(
+      final float[] values, final StreamingHistogram[] histograms,
+      ExecutorService pool) throws InterruptedException {
+    Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+    for (int i = 0; i < histograms.length; ++i) {
+      final StreamingHistogram histogram = histograms[i];
+      final int from = (int)((long)i * values.length / histograms.length);
+      final int to = (int)((long)(i + 1) * values.length / histograms.length);
+      tasks.add(
+          new Callable<Void>() {
+            @Override
+            public Void call() {
+              histogram.add(values, from, to);
+              return null;
+            }
+          });
+    }
+    for (Future<Void> f : pool.invokeAll(tasks)) {
+      try {
+        f.get();
+      }
+      catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+  }
 
   private void createLabelsAndWeightBlobsFromMasks(
-      ModelDefinition model, boolean labelsAreClasses, ProgressMonitor pr)
+      final ModelDefinition model, final boolean labelsAreClasses,
+      boolean[] processFrame, ProgressMonitor pr)
       throws BlobException, InterruptedException {
 
-    double[] elementSizeUm = new double[model.nDims()];
+    final double[] elementSizeUm = new double[model.nDims()];
     for (int d = 0; d < model.nDims(); ++d)
         elementSizeUm[d] = getRawElementSizeUm()[
             d + (getRawNDims() - model.nDims())];
 
     if (pr != null) pr.push("Extracting masks", 0.0f, 0.01f);
-    ImagePlus impLabels =
+    final ImagePlus impLabels =
         fixStackLayout(MaskExtractor.extract(_imp), model, pr);
     if (pr != null) pr.pop();
+    final ImageStack labelsStack = impLabels.getStack();
+
+    final ExecutorService pool = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors());
+    final AtomicInteger progress = new AtomicInteger(0);
+    try {
+      Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+      for (int t = 0; t < impLabels.getNFrames(); ++t) {
+        if (!processFrame[t]) continue;
+        final int frame = t;
+        tasks.add(
+            new Callable<Void>() {
+              @Override
+              public Void call() throws BlobException, InterruptedException {
+                createLabelsAndWeightsFromMaskFrame(
+                    frame, impLabels, labelsStack, elementSizeUm, model,
+                    labelsAreClasses, pool, progress);
+                return null;
+              }
+            });
+      }
+      if (pr != null) pr.push("Converting masks", 0.01f, 0.95f);
+      runFrameTasks(tasks, progress, pool, pr);
+      if (pr != null) pr.pop();
+    }
+    finally {
+      pool.shutdownNow();
+    }
+
+    if (pr != null) pr.push("Computing weights", 0.95f, 1.0f);
+    computeWeights(processFrame, model, pr);
+    if (pr != null) pr.pop();
+  }
+
+/*======================================================================*/
+/*!
+ *   Generate labels, sample pdf and distance maps of frame t from the
+ *   given label masks. This is called concurrently for different frames,
+ *   all scratch data is local to the call.
+ */
+/*======================================================================*/
+  private void createLabelsAndWeightsFromMaskFrame(
+      int t, ImagePlus impLabels, ImageStack labelsStack,
+      double[] elementSizeUm, ModelDefinition model,
+      boolean labelsAreClasses, ExecutorService pool,
+      AtomicInteger progress) throws BlobException, InterruptedException {
 
     int T = impLabels.getNFrames();
     int D = impLabels.getNSlices();
@@ -1021,152 +2059,101 @@ public class TrainingSample
     int H = impLabels.getHeight();
     int[] blobShape = (D == 1) ? new int[] { H, W } : new int[] { D, H, W };
 
-    if (pr != null) pr.push("Converting masks", 0.01f, 1.0f);
-
-    for (int t = 0; t < T; ++t) {
+    ConnectedComponentLabeling.ConnectedComponents instancelabels = null;
+    IntBlob classlabels = new IntBlob(blobShape, elementSizeUm);
+    int[] classlabelsData = (int[])classlabels.data();
 
-      if (pr != null)
-          pr.push("Processing " + _imp.getTitle() +
-                  " frame " + (t + 1) + " / " + T,
-                  (float)t / (float)T, (float)(t + 1) / (float)T);
-
-      ConnectedComponentLabeling.ConnectedComponents instancelabels = null;
-      IntBlob classlabels = new IntBlob(blobShape, elementSizeUm);
-      int[] classlabelsData = (int[])classlabels.data();
-
-      if (labelsAreClasses) {
-        if (pr != null) {
-          pr.push("Generating binary labels and instance labels", 0.0f, 0.1f);
-          pr.init(D);
-        }
-        ImagePlus tmp = IJ.createHyperStack(
-            "binarylabels", W, H, model.classNames.length - 1, D, 1, 8);
-        tmp.setCalibration(_imp.getCalibration());
-        int idx = 0;
-        for (int z = 0; z < D; ++z) {
-          ImageProcessor ipSrc = impLabels.getStack().getProcessor(
-              impLabels.getStackIndex(1, z + 1, t + 1));
-          ImageProcessor[] ipDest =
-              new ImageProcessor[model.classNames.length - 1];
-          for (int c = 0; c < model.classNames.length - 1; ++c) {
-            ipDest[c] = tmp.getStack().getProcessor(
-                tmp.getStackIndex(c + 1, z + 1, t + 1));
-            ipDest[c].setValue(0);
-            ipDest[c].fill();
-          }
-          for (int y = 0; y < H; ++y) {
-            for (int x = 0; x < W; ++x, ++idx) {
-              int label = (int)ipSrc.getf(x, y);
-              classlabelsData[idx] = label;
-              if (label < 2) continue;
-              if (label - 1 > model.classNames.length - 1)
-                  throw new BlobException(
-                      "Class label " + label + " out of bounds for " +
-                      (model.classNames.length - 1) + "-class model.");
-              ipDest[label - 2].setf(x, y, 255.0f);
-            }
+    if (labelsAreClasses) {
+      ImagePlus tmp = IJ.createHyperStack(
+          "binarylabels", W, H, model.classNames.length - 1, D, 1, 8);
+      tmp.setCalibration(_imp.getCalibration());
+      ImageStack tmpStack = tmp.getStack();
+      int idx = 0;
+      for (int z = 0; z < D; ++z) {
+        if (Thread.interrupted()) throw new InterruptedException();
+        ImageProcessor ipSrc = labelsStack.getProcessor(
+            impLabels.getStackIndex(1, z + 1, t + 1));
+        ImageProcessor[] ipDest =
+            new ImageProcessor[model.classNames.length - 1];
+        for (int c = 0; c < model.classNames.length - 1; ++c)
+            ipDest[c] = tmpStack.getProcessor(
+                tmp.getStackIndex(c + 1, z + 1, 1));
+        for (int y = 0; y < H; ++y) {
+          for (int x = 0; x < W; ++x, ++idx) {
+            int label = (int)ipSrc.getf(x, y);
+            classlabelsData[idx] = label;
+            if (label < 2) continue;
+            if (label - 1 > model.classNames.length - 1)
+                throw new BlobException(
+                    "Class label " + label + " out of bounds for " +
+                    (model.classNames.length - 1) + "-class model.");
+            ipDest[label - 2].setf(x, y, 255.0f);
           }
-          if (pr != null && !pr.count(1)) throw new InterruptedException();
-        }
-        if (pr != null) {
-          pr.pop();
-          pr.push("Connected component labeling", 0.1f, 0.2f);
         }
-        instancelabels = ConnectedComponentLabeling.label(
-            tmp, ConnectedComponentLabeling.SIMPLE_NEIGHBORHOOD, pr);
       }
-      else { // Treat labels as instance labels
+      instancelabels = ConnectedComponentLabeling.label(
+          tmp, ConnectedComponentLabeling.SIMPLE_NEIGHBORHOOD, null);
+    }
+    else { // Treat labels as instance labels
 
-        if (pr != null) {
-          pr.push("Generating binary labels and instance labels",
-                  0.0f, 0.2f);
-          pr.init(D);
-        }
+      instancelabels = new ConnectedComponentLabeling.ConnectedComponents();
+      instancelabels.labels = new IntBlob(blobShape, elementSizeUm);
+      int[] instData = (int[])instancelabels.labels.data();
+      Arrays.fill(instData, 0);
 
-        instancelabels = new ConnectedComponentLabeling.ConnectedComponents();
-        instancelabels.labels = new IntBlob(blobShape, elementSizeUm);
-        int[] instData = (int[])instancelabels.labels.data();
-        Arrays.fill(instData, 0);
-
-        HashMap<Integer,Integer> labelMap = new HashMap<Integer,Integer>();
-        int nextLabel = 1;
-        int idx = 0;
-        for (int z = 0; z < D; ++z) {
-          ImageProcessor ipIn = impLabels.getStack().getProcessor(
-              impLabels.getStackIndex(1, z + 1, t + 1));
-          for (int y = 0; y < H; ++y) {
-            for (int x = 0; x < W; ++x, ++idx) {
-              int label = (int)ipIn.getf(x, y);
-              classlabelsData[idx] = (label > 1) ? 2 : label;
-              if (label < 2) continue;
-              if (!labelMap.containsKey(label))
-                  labelMap.put(label, nextLabel++);
-              instData[idx] = labelMap.get(label);
+      // 8 and 16 bit masks are remapped using a direct lookup table
+      IntIntMap labelMap =
+          new IntIntMap((impLabels.getBitDepth() <= 16) ? 65536 : 0);
+      int nextLabel = 1;
+      int idx = 0;
+      for (int z = 0; z < D; ++z) {
+        if (Thread.interrupted()) throw new InterruptedException();
+        ImageProcessor ipIn = labelsStack.getProcessor(
+            impLabels.getStackIndex(1, z + 1, t + 1));
+        for (int y = 0; y < H; ++y) {
+          for (int x = 0; x < W; ++x, ++idx) {
+            int label = (int)ipIn.getf(x, y);
+            classlabelsData[idx] = (label > 1) ? 2 : label;
+            if (label < 2) continue;
+            int instanceLabel = labelMap.get(label, 0);
+            if (instanceLabel == 0) {
+              instanceLabel = nextLabel++;
+              labelMap.put(label, instanceLabel);
             }
+            instData[idx] = instanceLabel;
           }
-          if (pr != null && !pr.count(1)) throw new InterruptedException();
         }
-        instancelabels.nComponents = new int[] { nextLabel - 1 };
-      }
-
-      // classlabels are 0 = ignore, 1 = background, 2-n = classes,
-      // instance labels contain n-2 channels, each containing the
-      // corresponding class instances with unique instance labels 1-k
-
-      if (pr != null) {
-        pr.pop();
-        pr.push("Rescaling class labels", 0.2f, 0.3f);
-      }
-
-      classlabels.rescale(
-          model.elementSizeUm(), Blob.InterpolationType.NEAREST, pr);
-      classlabelsData = (int[])classlabels.data();
-
-      if (pr != null) {
-        pr.pop();
-        pr.push("Rescaling instance labels", 0.3f, 0.4f);
-      }
-
-      instancelabels.labels.rescale(
-          model.elementSizeUm(), Blob.InterpolationType.NEAREST, pr);
-
-      int C = instancelabels.nComponents.length;
-      int Ds = (D > 1) ? classlabels.shape()[0] : 1;
-      int Hs = classlabels.shape()[(D > 1) ? 1 : 0];
-      int Ws = classlabels.shape()[(D > 1) ? 2 : 1];
-
-      if (_labels == null || _weights == null || _samplePdf == null) {
-        // Create output blobs
-        _labels = IJ.createHyperStack(
-            _imp.getTitle() + " - labels", Ws, Hs, 1, Ds, T, 32);
-        Tools.setElementSizeUm(_labels, classlabels.elementSizeUm());
-        _weights = IJ.createHyperStack(
-            _imp.getTitle() + " - weights", Ws, Hs, 1, Ds, T, 32);
-        Tools.setElementSizeUm(_weights, classlabels.elementSizeUm());
-        _samplePdf = IJ.createHyperStack(
-            _imp.getTitle() + " - sample pdf", Ws, Hs, 1, Ds, T, 32);
-        Tools.setElementSizeUm(_samplePdf, classlabels.elementSizeUm());
-      }
-
-      if (pr != null) {
-        pr.pop();
-        pr.push("Generating weights", 0.4f, 1.0f);
-      }
-      addLabelsAndWeightsToBlobs(t, instancelabels, classlabels, model, pr);
-
-      if (pr != null) {
-        pr.pop();
-        pr.pop();
       }
+      instancelabels.nComponents = new int[] { nextLabel - 1 };
     }
-    if (pr != null) pr.pop();
+    progress.incrementAndGet();
+
+    // classlabels are 0 = ignore, 1 = background, 2-n = classes,
+    // instance labels contain n-2 channels, each containing the
+    // corresponding class instances with unique instance labels 1-k
+
+    classlabels.rescale(
+        model.elementSizeUm(), Blob.InterpolationType.NEAREST, null);
+    instancelabels.labels.rescale(
+        model.elementSizeUm(), Blob.InterpolationType.NEAREST, null);
+    progress.incrementAndGet();
+
+    int Ds = (D > 1) ? classlabels.shape()[0] : 1;
+    int Hs = classlabels.shape()[(D > 1) ? 1 : 0];
+    int Ws = classlabels.shape()[(D > 1) ? 2 : 1];
+    ensureLabelsAndWeightsStorage(
+        model, T, Ds, Hs, Ws, classlabels.elementSizeUm());
+
+    addLabelsAndWeightsToBlobs(
+        t, instancelabels, classlabels, model, pool, progress);
   }
 
   private void createLabelsAndWeightBlobsFromRois(
-      ModelDefinition model, boolean labelsAreClasses, ProgressMonitor pr)
+      final ModelDefinition model, final boolean labelsAreClasses,
+      boolean[] processFrame, ProgressMonitor pr)
       throws BlobException, InterruptedException {
 
-    double scaleZ =
+    final double scaleZ =
         (model.nDims() == 3) ?
         getRawElementSizeUm()[0] / model.elementSizeUm()[0] : 1.0;
 
@@ -1197,32 +2184,26 @@ public class TrainingSample
         }
       }
     }
-    int[] dxSmall = new int[dxVec.size()];
-    int[] dySmall = new int[dyVec.size()];
-    int[] dzSmall = new int[dzVec.size()];
+    // Disk offsets as { dx, dy, dz }
+    final int[][] smallDisk = new int[3][dxVec.size()];
     for (int i = 0; i < dxVec.size(); ++i) {
-      dxSmall[i] = dxVec.get(i);
-      dySmall[i] = dyVec.get(i);
-      dzSmall[i] = dzVec.get(i);
+      smallDisk[0][i] = dxVec.get(i);
+      smallDisk[1][i] = dyVec.get(i);
+      smallDisk[2][i] = dzVec.get(i);
     }
-    int[] dxLarge = new int[dxRVec.size()];
-    int[] dyLarge = new int[dyRVec.size()];
-    int[] dzLarge = new int[dzRVec.size()];
+    final int[][] largeDisk = new int[3][dxRVec.size()];
     for (int i = 0; i < dxRVec.size(); ++i) {
-      dxLarge[i] = dxRVec.get(i);
-      dyLarge[i] = dyRVec.get(i);
-      dzLarge[i] = dzRVec.get(i);
+      largeDisk[0][i] = dxRVec.get(i);
+      largeDisk[1][i] = dyRVec.get(i);
+      largeDisk[2][i] = dzRVec.get(i);
     }
 
-    int T = (model.nDims() == 2 && _imp.getNSlices() > 1) ?
+    final int T = (model.nDims() == 2 && _imp.getNSlices() > 1) ?
         _imp.getNSlices() * _imp.getNFrames() : _imp.getNFrames();
-    int Ds = (model.nDims() == 3) ?
+    final int Ds = (model.nDims() == 3) ?
         (int)Math.round(_imp.getNSlices() * scaleZ) : 1;
-    int C = model.classNames.length - 1;
-    int W = _imp.getWidth();
-    int H = _imp.getHeight();
 
-    double[] elementSizeUm;
+    final double[] elementSizeUm;
     if (getRawNDims() == model.nDims()) elementSizeUm = getRawElementSizeUm();
     else {
       elementSizeUm = new double[model.nDims()];
@@ -1232,230 +2213,214 @@ public class TrainingSample
     }
     if (model.nDims() == 3) elementSizeUm[0] = model.elementSizeUm()[0];
 
-    ImagePlus impInstPlane = IJ.createHyperStack("", W, H, C, 1, 1, 16);
-    ImageProcessor[] ipInst = new ImageProcessor[C];
-    for (int c = 0; c < C; ++c)
-        ipInst[c] = impInstPlane.getStack().getProcessor(c + 1);
+    // Parse all ROIs once and bucket them by plane (area ROIs) or frame
+    // (point ROIs), so that rasterization visits every ROI exactly once
+    final Vector< Vector<IndexedRoi> > planeRois =
+        new Vector< Vector<IndexedRoi> >();
+    for (int i = 0; i < T * Ds; ++i) planeRois.add(new Vector<IndexedRoi>());
+    final Vector< Vector<IndexedRoi> > pointRois =
+        new Vector< Vector<IndexedRoi> >();
+    for (int t = 0; t < T; ++t) pointRois.add(new Vector<IndexedRoi>());
+    for (Roi roi : _imp.getOverlay().toArray()) {
+      IndexedRoi r = new IndexedRoi();
+      r.roi = roi;
+      r.position = getROIPosition(roi, Ds, scaleZ);
+      if (r.position.t < 1 || r.position.t > T) continue;
+      r.label = parseRoiName(roi.getName());
+      boolean isPoint = roi instanceof PointRoi;
+      if (isPoint || !r.label.isIgnore()) {
+        r.classLabel = 1;
+        if (isPoint ? model.classNames.length > 2 : labelsAreClasses) {
+          while (r.classLabel < model.classNames.length &&
+                 !r.label.className.equals(model.classNames[r.classLabel]))
+              ++r.classLabel;
+        }
+      }
+      if (isPoint) pointRois.get(r.position.t - 1).add(r);
+      else if (r.position.z >= 1 && r.position.z <= Ds)
+          planeRois.get((r.position.t - 1) * Ds + r.position.z - 1).add(r);
+    }
 
-    ImagePlus impClassPlane = IJ.createHyperStack("", W, H, 1, 1, 1, 16);
-    ImageProcessor ipClass = impClassPlane.getProcessor();
-    short[] classPlaneData = (short[])ipClass.getPixels();
+    final ExecutorService pool = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors());
+    final AtomicInteger progress = new AtomicInteger(0);
+    try {
+      Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+      for (int t = 0; t < T; ++t) {
+        if (!processFrame[t]) continue;
+        final int frame = t;
+        tasks.add(
+            new Callable<Void>() {
+              @Override
+              public Void call() throws BlobException, InterruptedException {
+                createLabelsAndWeightsFromRoiFrame(
+                    frame, T, Ds, scaleZ, elementSizeUm, planeRois,
+                    pointRois, smallDisk, largeDisk, model, pool, progress);
+                return null;
+              }
+            });
+      }
+      if (pr != null) pr.push("Converting ROIs", 0.0f, 0.95f);
+      runFrameTasks(tasks, progress, pool, pr);
+      if (pr != null) pr.pop();
+    }
+    finally {
+      pool.shutdownNow();
+    }
 
-    Roi[] rois = _imp.getOverlay().toArray();
+    if (pr != null) pr.push("Computing weights", 0.95f, 1.0f);
+    computeWeights(processFrame, model, pr);
+    if (pr != null) pr.pop();
+  }
 
-    for (int t = 0; t < T; ++t) {
+/*======================================================================*/
+/*!
+ *   Generate labels, sample pdf and distance maps of frame t from the
+ *   overlay ROIs. This is called concurrently for different frames, all
+ *   scratch buffers and ImageProcessors are local to the call.
+ */
+/*======================================================================*/
+  private void createLabelsAndWeightsFromRoiFrame(
+      int t, int T, int Ds, double scaleZ, double[] elementSizeUm,
+      Vector< Vector<IndexedRoi> > planeRois,
+      Vector< Vector<IndexedRoi> > pointRois, int[][] smallDisk,
+      int[][] largeDisk, ModelDefinition model, ExecutorService pool,
+      AtomicInteger progress) throws BlobException, InterruptedException {
 
-      if (pr != null) {
-        pr.push("Processing " + _imp.getTitle() +
-                " frame " + (t + 1) + " / " + T,
-                (float)t / (float)T, (float)(t + 1) / (float)T);
-        pr.push("Adding ROIs", 0.0f, 0.1f);
-        int nRois = 0;
-        for (Roi roi : rois) {
-          if (roi instanceof PointRoi) continue;
-          if (getROIPosition(roi, Ds, scaleZ).t == t + 1) nRois++;
-        }
-        pr.init(nRois);
-      }
-
-      int[] blobShape = (Ds == 1) ? new int[] { H, W } : new int[] { Ds, H, W };
-      int[] instShape = (C == 1) ? blobShape :
-          ((Ds == 1) ? new int[] { C, H, W } : new int[] { C, Ds, H, W });
-
-      ConnectedComponentLabeling.ConnectedComponents instancelabels =
-          new ConnectedComponentLabeling.ConnectedComponents();
-      instancelabels.labels = new IntBlob(instShape, elementSizeUm);
-      int[] inst = (int[])instancelabels.labels.data();
-      Arrays.fill(inst, 0);
-
-      instancelabels.nComponents = new int[C];
-      Arrays.fill(instancelabels.nComponents, 0);
-      Vector< HashMap<Integer,Integer> > instMap =
-          new Vector< HashMap<Integer,Integer> >();
-      for (int c = 0; c < C; ++c) instMap.add(new HashMap<Integer,Integer>());
-
-      IntBlob classlabels = new IntBlob(blobShape, elementSizeUm);
-      int[] classlabelsData = (int[])classlabels.data();
-      Arrays.fill(classlabelsData, 1);
-
-      // Get a mask of potentially annotated planes after rescaling
-      // to set planes that cannot contain annotations to ignore
-      // This is especially important for upscaling to avoid false negatives
-      boolean[] planeAnnotated = new boolean[Ds];
-      for (int z = 0; z < Ds; ++z) planeAnnotated[z] = false;
-      for (int z = 0; z < _imp.getNSlices(); ++z)
-          planeAnnotated[(int)Math.round(z * scaleZ)] = true;
-
-      for (int z = 0; z < Ds; ++z) {
-        for (int c = 0; c < C; ++c) {
-          ipInst[c].setValue(0);
-          ipInst[c].fill();
-        }
-        ipClass.setValue((planeAnnotated[z]) ? 1 : 0);
-        ipClass.fill();
-        for (Roi roi : rois) {
-          if (roi instanceof PointRoi) continue;
-          RoiPosition p = getROIPosition(roi, Ds, scaleZ);
-          if (p.z != z + 1 || p.t != t + 1) continue;
-
-          RoiLabel rl = parseRoiName(roi.getName());
-          if (rl.isIgnore()) {
-            ipClass.setValue(0);
-            ipClass.fill(roi);
-          }
-          else {
-            int label = 1;
-            if (labelsAreClasses) {
-              while (label < model.classNames.length &&
-                     !rl.className.equals(model.classNames[label])) ++label;
-              if (label == model.classNames.length)
-                  throw new BlobException("No such class: " + rl.className);
-            }
-            ipClass.setValue(label + 1);
-            ipClass.fill(roi);
+    int C = model.classNames.length - 1;
+    int W = _imp.getWidth();
+    int H = _imp.getHeight();
 
-            if (rl.instance > 0)
-            {
-              if (!instMap.get(label - 1).containsKey(rl.instance))
-              {
-                instancelabels.nComponents[label - 1]++;
-                instMap.get(label - 1).put(
-                    rl.instance, instancelabels.nComponents[label - 1]);
-              }
-              ipInst[label - 1].setValue(
-                  instMap.get(label - 1).get(rl.instance));
-            }
-            else {
-              instancelabels.nComponents[label - 1]++;
-              instMap.get(label - 1).put(
-                  instancelabels.nComponents[label - 1],
-                  instancelabels.nComponents[label - 1]);
+    int[] blobShape = (Ds == 1) ? new int[] { H, W } : new int[] { Ds, H, W };
+    int[] instShape = (C == 1) ? blobShape :
+        ((Ds == 1) ? new int[] { C, H, W } : new int[] { C, Ds, H, W });
 
-              ipInst[label - 1].setValue(
-                  instMap.get(label - 1).get(
-                      instancelabels.nComponents[label - 1]));
-            }
-            ipInst[label - 1].fill(roi);
-          }
-          if (pr != null && !pr.count(1)) throw new InterruptedException();
-        }
-        for (int i = 0; i < H * W; ++i)
-            classlabelsData[z * H * W + i] = classPlaneData[i];
-        for (int c = 0; c < C; ++c) {
-          short[] in = (short[])ipInst[c].getPixels();
-          for (int i = 0; i < H * W; ++i)
-              inst[(c * Ds + z) * H * W + i] = in[i];
-        }
-      }
+    ConnectedComponentLabeling.ConnectedComponents instancelabels =
+        new ConnectedComponentLabeling.ConnectedComponents();
+    instancelabels.labels = new IntBlob(instShape, elementSizeUm);
+    int[] inst = (int[])instancelabels.labels.data();
+    Arrays.fill(inst, 0);
 
-      if (pr != null) {
-        pr.pop();
-        pr.push("Rescaling instance labels", 0.1f, 0.2f);
-      }
-      instancelabels.labels.rescale(
-          model.elementSizeUm(), Blob.InterpolationType.NEAREST, pr);
-      if (pr != null) {
-        pr.pop();
-        pr.push("Rescaling class labels", 0.2f, 0.3f);
-      }
-      classlabels.rescale(
-          model.elementSizeUm(), Blob.InterpolationType.NEAREST, pr);
-      if (pr != null) {
-        pr.pop();
-        pr.push("Adding point ROIs", 0.3f, 0.4f);
-        int nPoints = 0;
-        for (Roi roi : rois) {
-          if (!(roi instanceof PointRoi)) continue;
-          if (getROIPosition(roi, Ds, scaleZ).t == t + 1)
-              nPoints += roi.getContainedPoints().length;
-        }
-        pr.init(nPoints);
-      }
-
-      inst = (int[])instancelabels.labels.data();
-      classlabelsData = (int[])classlabels.data();
-      blobShape = classlabels.shape();
-      instShape = instancelabels.labels.shape();
-      int Hs = blobShape[blobShape.length - 2];
-      int Ws = blobShape[blobShape.length - 1];
-
-      // Add PointRois
-      for (Roi roi : rois) {
-        if (!(roi instanceof PointRoi)) continue;
-        RoiPosition pos = getROIPosition(roi, Ds, scaleZ);
-        if (pos.t != t + 1) continue;
-        int label = 1;
-        RoiLabel rl = parseRoiName(roi.getName());
-        if (C > 1) {
-          while (label < model.classNames.length &&
-                 !rl.className.equals(model.classNames[label])) ++label;
+    instancelabels.nComponents = new int[C];
+    Arrays.fill(instancelabels.nComponents, 0);
+    IntIntMap[] instMap = new IntIntMap[C];
+    for (int c = 0; c < C; ++c) instMap[c] = new IntIntMap();
+
+    IntBlob classlabels = new IntBlob(blobShape, elementSizeUm);
+    int[] classlabelsData = (int[])classlabels.data();
+    Arrays.fill(classlabelsData, 1);
+
+    // Get a mask of potentially annotated planes after rescaling
+    // to set planes that cannot contain annotations to ignore
+    // This is especially important for upscaling to avoid false negatives
+    boolean[] planeAnnotated = new boolean[Ds];
+    for (int z = 0; z < Ds; ++z) planeAnnotated[z] = false;
+    for (int z = 0; z < _imp.getNSlices(); ++z)
+        planeAnnotated[(int)Math.round(z * scaleZ)] = true;
+
+    // Rasterize the ROIs directly into the label arrays
+    for (int z = 0; z < Ds; ++z) {
+      if (Thread.interrupted()) throw new InterruptedException();
+      if (!planeAnnotated[z])
+          Arrays.fill(classlabelsData, z * H * W, (z + 1) * H * W, 0);
+      for (IndexedRoi r : planeRois.get(t * Ds + z)) {
+        Roi roi = r.roi;
+        RoiLabel rl = r.label;
+        if (rl.isIgnore()) fillRoi(classlabelsData, z * H * W, W, H, roi, 0);
+        else {
+          int label = r.classLabel;
           if (label == model.classNames.length)
               throw new BlobException("No such class: " + rl.className);
-        }
-        for (Point p : roi.getContainedPoints()) {
-          instancelabels.nComponents[label - 1]++;
-          // Draw ignore disk/sphere
-          int yRoi = (int)(p.getY() * (double)Hs / (double)H);
-          int xRoi = (int)(p.getX() * (double)Ws / (double)W);
-          for (int i = 0; i < dxLarge.length; ++i) {
-            int z = pos.z + dzLarge[i] - 1;
-            int y = yRoi + dyLarge[i];
-            int x = xRoi + dxLarge[i];
-            if (z < 0 || z >= Ds || y < 0 || y >= Hs || x < 0 || x >= Ws ||
-                classlabelsData[(z * Hs + y) * Ws + x] != 1) continue;
-            classlabelsData[(z * Hs + y) * Ws + x] = 0;
+          fillRoi(classlabelsData, z * H * W, W, H, roi, label + 1);
+
+          int instanceLabel = 0;
+          if (rl.instance > 0)
+          {
+            if (!instMap[label - 1].containsKey(rl.instance))
+            {
+              instancelabels.nComponents[label - 1]++;
+              instMap[label - 1].put(
+                  rl.instance, instancelabels.nComponents[label - 1]);
+            }
+            instanceLabel = instMap[label - 1].get(rl.instance, 0);
           }
-          // Draw label and instance label
-          for (int i = 0; i < dxSmall.length; ++i) {
-            int z = pos.z + dzSmall[i] - 1;
-            int y = yRoi + dySmall[i];
-            int x = xRoi + dxSmall[i];
-            if (z < 0 || z >= Ds || y < 0 || y >= Hs || x < 0 || x >= Ws)
-                continue;
-            classlabelsData[(z * Hs + y) * Ws + x] = label + 1;
-            inst[(((label - 1) * Ds + z) * Hs + y) * Ws + x] =
-                instancelabels.nComponents[label - 1];
+          else {
+            instancelabels.nComponents[label - 1]++;
+            instMap[label - 1].put(
+                instancelabels.nComponents[label - 1],
+                instancelabels.nComponents[label - 1]);
+
+            instanceLabel = instancelabels.nComponents[label - 1];
           }
+          fillRoi(inst, ((label - 1) * Ds + z) * H * W, W, H, roi,
+                  instanceLabel);
         }
-        if (pr != null && !pr.count(1)) throw new InterruptedException();
       }
-
-      if (_labels == null || _weights == null || _samplePdf == null) {
-        _labels = IJ.createHyperStack(
-            _imp.getTitle() + " - labels", Ws, Hs, 1, Ds, T, 32);
-        Tools.setElementSizeUm(_labels, classlabels.elementSizeUm());
-        _weights = IJ.createHyperStack(
-            _imp.getTitle() + " - weights", Ws, Hs, 1, Ds, T, 32);
-        Tools.setElementSizeUm(_weights, classlabels.elementSizeUm());
-        _samplePdf = IJ.createHyperStack(
-            _imp.getTitle() + " - sample pdf", Ws, Hs, 1, Ds, T, 32);
-        Tools.setElementSizeUm(_samplePdf, classlabels.elementSizeUm());
+    }
+    progress.incrementAndGet();
+
+    instancelabels.labels.rescale(
+        model.elementSizeUm(), Blob.InterpolationType.NEAREST, null);
+    classlabels.rescale(
+        model.elementSizeUm(), Blob.InterpolationType.NEAREST, null);
+
+    inst = (int[])instancelabels.labels.data();
+    classlabelsData = (int[])classlabels.data();
+    blobShape = classlabels.shape();
+    int Hs = blobShape[blobShape.length - 2];
+    int Ws = blobShape[blobShape.length - 1];
+
+    // Add PointRois
+    for (IndexedRoi r : pointRois.get(t)) {
+      RoiPosition pos = r.position;
+      int label = r.classLabel;
+      if (label == model.classNames.length)
+          throw new BlobException("No such class: " + r.label.className);
+      for (Point p : r.roi.getContainedPoints()) {
+        instancelabels.nComponents[label - 1]++;
+        // Draw ignore disk/sphere
+        int yRoi = (int)(p.getY() * (double)Hs / (double)H);
+        int xRoi = (int)(p.getX() * (double)Ws / (double)W);
+        for (int i = 0; i < largeDisk[0].length; ++i) {
+          int z = pos.z + largeDisk[2][i] - 1;
+          int y = yRoi + largeDisk[1][i];
+          int x = xRoi + largeDisk[0][i];
+          if (z < 0 || z >= Ds || y < 0 || y >= Hs || x < 0 || x >= Ws ||
+              classlabelsData[(z * Hs + y) * Ws + x] != 1) continue;
+          classlabelsData[(z * Hs + y) * Ws + x] = 0;
+        }
+        // Draw label and instance label
+        for (int i = 0; i < smallDisk[0].length; ++i) {
+          int z = pos.z + smallDisk[2][i] - 1;
+          int y = yRoi + smallDisk[1][i];
+          int x = xRoi + smallDisk[0][i];
+          if (z < 0 || z >= Ds || y < 0 || y >= Hs || x < 0 || x >= Ws)
+              continue;
+          classlabelsData[(z * Hs + y) * Ws + x] = label + 1;
+          inst[(((label - 1) * Ds + z) * Hs + y) * Ws + x] =
+              instancelabels.nComponents[label - 1];
+        }
       }
+    }
+    progress.incrementAndGet();
 
-      if (pr != null) {
-        pr.pop();
-        pr.push("Generating weights", 0.4f, 1.0f);
-      }
-      addLabelsAndWeightsToBlobs(t, instancelabels, classlabels, model, pr);
+    ensureLabelsAndWeightsStorage(
+        model, T, Ds, Hs, Ws, classlabels.elementSizeUm());
 
-      if (pr != null) {
-        pr.pop();
-        pr.pop();
-      }
-    }
+    addLabelsAndWeightsToBlobs(
+        t, instancelabels, classlabels, model, pool, progress);
   }
 
   private void addLabelsAndWeightsToBlobs(
-      int t, ConnectedComponentLabeling.ConnectedComponents instancelabels,
-      IntBlob classlabels, ModelDefinition model, ProgressMonitor pr)
-        throws InterruptedException {
+      final int t,
+      final ConnectedComponentLabeling.ConnectedComponents instancelabels,
+      IntBlob classlabels, ModelDefinition model, ExecutorService pool,
+      AtomicInteger progress) throws BlobException, InterruptedException {
 
-    int T = _labels.getNFrames();
     int C = instancelabels.nComponents.length;
     int D = _labels.getNSlices();
     int H = _labels.getHeight();
     int W = _labels.getWidth();
-    int[] blobShape = (D == 1) ? new int[] { H, W } : new int[] { D, H, W };
 
     int[] dx = null, dy = null, dz = null;
     if (D == 1)
@@ -1471,46 +2436,31 @@ public class TrainingSample
       dz = new int[] { -1, -1, -1, -1, -1, -1, -1, -1, -1,  0,  0,  0,  0 };
     }
 
-    double foregroundBackgroundRatio = model.foregroundBackgroundRatio;
-    double sigma1Px = model.sigma1Px;
-    double borderWeightFactor = model.borderWeightFactor;
-    double borderWeightSigmaPx = model.borderWeightSigmaPx;
-    double[] elementSizeUm = model.elementSizeUm();
-
     int[] inst = (int[])instancelabels.labels.data();
     int[] classlabelsData = (int[])classlabels.data();
-
-    if (pr != null) {
-      pr.push("Adding gaps", 0.0f, 0.1f);
-      pr.init(D);
-    }
+    ImageStack labelsStack = _labels.getStack();
+    ImageStack samplePdfStack = _samplePdf.getStack();
 
     // Generate (multiclass) labels with gaps, set foreground weights and
     // finalize sample pdf
     for (int z = 0; z < D; ++z) {
 
+      if (Thread.interrupted()) throw new InterruptedException();
+
       int stackIdx = _labels.getStackIndex(1, z + 1, t + 1);
-      ImageProcessor ipLabels = _labels.getStack().getProcessor(stackIdx);
-      ipLabels.setValue(0.0f);
+      ImageProcessor ipLabels = labelsStack.getProcessor(stackIdx);
+      ipLabels.setValue(0);
       ipLabels.fill();
-      float[] labelsData = (float[])ipLabels.getPixels();
-      ImageProcessor ipWeights = _weights.getStack().getProcessor(stackIdx);
-      ipWeights.setValue(-1.0f);
-      ipWeights.fill();
-      float[] weightsData = (float[])ipWeights.getPixels();
-      ImageProcessor ipSamplePdf =
-          _samplePdf.getStack().getProcessor(stackIdx);
-      ipSamplePdf.setValue(foregroundBackgroundRatio);
+      ImageProcessor ipSamplePdf = samplePdfStack.getProcessor(stackIdx);
+      ipSamplePdf.setValue(SAMPLE_PDF_BACKGROUND);
       ipSamplePdf.fill();
-      float[] samplePdfData = (float[])ipSamplePdf.getPixels();
 
       int idx = 0;
       for (int y = 0; y < H; ++y) {
         for (int x = 0; x < W; ++x, ++idx) {
           int classLabel = classlabelsData[z * H * W + idx];
           if (classLabel == 0) { // Ignore label
-            weightsData[idx] = 0.0f;
-            samplePdfData[idx] = 0.0f;
+            ipSamplePdf.set(idx, SAMPLE_PDF_IGNORE);
             continue;
           }
           if (classLabel == 1) continue;
@@ -1530,118 +2480,922 @@ public class TrainingSample
             if (nbInst > 0 && nbInst != instanceLabel) break;
           }
           if (nbIdx == dx.length) { // Fine, can be labeled
-            labelsData[idx] = classLabel - 1;
-            weightsData[idx] = 1.0f;
-            samplePdfData[idx] = 1.0f;
+            ipLabels.set(idx, classLabel - 1);
+            ipSamplePdf.set(idx, SAMPLE_PDF_FOREGROUND);
           }
         }
       }
-      if (pr != null && !pr.count(1)) throw new InterruptedException();
     }
+    progress.incrementAndGet();
+
+    // Compute the distances to the nearest and second nearest instance
+    // per class, they are cached to allow fast re-weighting if only weight
+    // parameters change. Classes are independent and are queued to the
+    // pool, tasks no worker picked up yet are run by this thread, so
+    // waiting frame tasks cannot starve the pool.
+    final double[] elementSizeUm = model.elementSizeUm();
+    Vector<FutureTask<Void>> classTasks = new Vector<FutureTask<Void>>();
+    for (int c = 0; c < C; ++c) {
+      final int cls = c;
+      FutureTask<Void> task = new FutureTask<Void>(
+          new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+              addDistancesToBlobs(t, cls, instancelabels, elementSizeUm);
+              return null;
+            }
+          });
+      classTasks.add(task);
+      if (c > 0) pool.execute(task);
+    }
+    for (FutureTask<Void> task : classTasks) {
+      task.run();
+      try {
+        task.get();
+      }
+      catch (ExecutionException e) {
+        rethrowCause(e);
+      }
+    }
+    progress.incrementAndGet();
+  }
+
+/*======================================================================*/
+/*!
+ *   Compute the distances to the nearest and second nearest instance of
+ *   class c in frame t and write them plane-wise to the distance map
+ *   cache file.
+ */
+/*======================================================================*/
+  private void addDistancesToBlobs(
+      int t, int c,
+      ConnectedComponentLabeling.ConnectedComponents instancelabels,
+      double[] elementSizeUm) throws InterruptedException {
+    int D = _labels.getNSlices();
+    int H = _labels.getHeight();
+    int W = _labels.getWidth();
+    int[] blobShape = (D == 1) ? new int[] { H, W } : new int[] { D, H, W };
 
-    int nObjects = 0;
-    for (int c = 0; c < C; ++c) nObjects += instancelabels.nComponents[c];
+    float[] min1Dist = new float[D * H * W];
+    float[] min2Dist = new float[D * H * W];
+    Arrays.fill(min1Dist, DistanceTransform.BG_VALUE);
+    Arrays.fill(min2Dist, DistanceTransform.BG_VALUE);
+    IntBlob instances = null;
+    if (instancelabels.nComponents.length == 1)
+        instances = instancelabels.labels;
+    else {
+      instances = new IntBlob(blobShape, elementSizeUm);
+      System.arraycopy(
+          (int[])instancelabels.labels.data(), c * D * H * W,
+          (int[])instances.data(), 0, D * H * W);
+    }
+    for (int i = 1; i <= instancelabels.nComponents[c]; i++) {
+      if (Thread.interrupted()) throw new InterruptedException();
+      FloatBlob d = DistanceTransform.getDistance(
+          instances, i, DistanceTransform.Mode.DISTANCE_TO_FOREGROUND,
+          false, null);
+      for (int j = 0; j < D * H * W; j++) {
+        float min1dist = min1Dist[j];
+        float min2dist = Math.min(min2Dist[j], ((float[])d.data())[j]);
+        min1Dist[j] = Math.min(min1dist, min2dist);
+        min2Dist[j] = Math.max(min1dist, min2dist);
+      }
+    }
 
-    if (pr != null) {
-      pr.pop();
-      pr.push("Weight computation", 0.1f, 0.99f);
-    }
-
-    // Compute extra weights (per class (outer), per instance (inner))
-    FloatBlob extraWeightsBlob = new FloatBlob(blobShape, elementSizeUm);
-    float[] extraWeights = (float[])extraWeightsBlob.data();
-    Arrays.fill(extraWeights, 0.0f);
-    FloatBlob min1DistBlob = new FloatBlob(blobShape, elementSizeUm);
-    float[] min1Dist = (float[])min1DistBlob.data();
-    FloatBlob min2DistBlob = new FloatBlob(blobShape, elementSizeUm);
-    float[] min2Dist = (float[])min2DistBlob.data();
-    double va = 1.0 - foregroundBackgroundRatio;
-    int processedObjects = 0;
-    for (int c = 0; c < C; ++c) {
+    int[] blockDims = { 1, 1, 1, H, W };
+    short[] d1 = new short[H * W];
+    short[] d2 = new short[H * W];
+    for (int z = 0; z < D; ++z) {
+      for (int i = 0; i < H * W; ++i) {
+        d1[i] = Tools.floatToHalf(min1Dist[z * H * W + i]);
+        d2[i] = Tools.floatToHalf(min2Dist[z * H * W + i]);
+      }
+      long[] blockIdx = { t, c, z, 0, 0 };
+      synchronized (_distanceCache) {
+        _distanceCache.uint16().writeMDArrayBlock(
+            "/min1Dist", new MDShortArray(d1, blockDims), blockIdx);
+        _distanceCache.uint16().writeMDArrayBlock(
+            "/min2Dist", new MDShortArray(d2, blockDims), blockIdx);
+      }
+    }
+  }
 
-      if (pr != null) {
-        pr.push("Computing weights for class " + c,
-                (float)processedObjects / (float)nObjects,
-                (float)(processedObjects + instancelabels.nComponents[c]) /
-                (float)nObjects);
-        pr.push("Distance transform", 0.0f, 0.9f);
-        pr.init(instancelabels.nComponents[c]);
-      }
-
-      Arrays.fill(min1Dist, DistanceTransform.BG_VALUE);
-      Arrays.fill(min2Dist, DistanceTransform.BG_VALUE);
-      IntBlob instances = null;
-      if (C == 1) instances = instancelabels.labels;
-      else {
-        instances = new IntBlob(blobShape, elementSizeUm);
-        for (int i = 0; i < D * H * W; ++i)
-            ((int[])instances.data())[i] =
-                ((int[])instancelabels.labels.data())[c * D * W * H + i];
-      }
-      for (int i = 1; i <= instancelabels.nComponents[c]; i++) {
-        if (pr != null &&
-            !pr.count("Processing slice " + (t + 1) + " / " + T + ", Class " +
-                      (c + 1) + " / " + C + ": object " + i + " / " +
-                      instancelabels.nComponents[c], 1))
-            throw new InterruptedException();
-        FloatBlob d = DistanceTransform.getDistance(
-            instances, i, DistanceTransform.Mode.DISTANCE_TO_FOREGROUND,
-            false, null);
-        for (int j = 0; j < D * H * W; j++) {
-          float min1dist = min1Dist[j];
-          float min2dist = Math.min(min2Dist[j], ((float[])d.data())[j]);
-          min1Dist[j] = Math.min(min1dist, min2dist);
-          min2Dist[j] = Math.max(min1dist, min2dist);
+/*======================================================================*/
+/*!
+ *   Run the given frame tasks on the pool and wait for their completion.
+ *   Each task reports FRAME_PROGRESS_STEPS steps via the shared counter.
+ *   Only the calling thread forwards progress to the ProgressMonitor and
+ *   checks for cancellation.
+ */
+/*======================================================================*/
+  private static void runFrameTasks(
+      Vector<Callable<Void>> tasks, AtomicInteger progress,
+      ExecutorService pool, ProgressMonitor pr)
+      throws BlobException, InterruptedException {
+    ExecutorCompletionService<Void> completion =
+        new ExecutorCompletionService<Void>(pool);
+    for (Callable<Void> task : tasks) completion.submit(task);
+    if (pr != null) pr.init(tasks.size() * FRAME_PROGRESS_STEPS);
+    int nFinished = 0;
+    int nCounted = 0;
+    while (nFinished < tasks.size()) {
+      Future<Void> f = completion.poll(100, TimeUnit.MILLISECONDS);
+      if (f != null) {
+        try {
+          f.get();
+        }
+        catch (ExecutionException e) {
+          rethrowCause(e);
         }
+        nFinished++;
       }
-      processedObjects += instancelabels.nComponents[c];
+      int n = progress.get();
+      if (pr != null && !pr.count(n - nCounted))
+          throw new InterruptedException();
+      nCounted = n;
+    }
+  }
 
-      if (pr != null) {
-        pr.pop();
-        pr.push("Computing edge weights", 0.9f, 1.0f);
-        pr.init(D);
-      }
-
-      for (int z = 0; z < D; ++z)
-      {
-        float[] w = (float[])_weights.getStack().getProcessor(
-            _weights.getStackIndex(1, z + 1, t + 1)).getPixels();
-        for (int i = 0; i < W * H; ++i) {
-          if (w[i] >= 0.0f) continue;
-          float d1 = min1Dist[z * W * H + i];
-          float d2 = min2Dist[z * W * H + i];
-          double wa = Math.exp(-(d1 * d1) / (2 * sigma1Px * sigma1Px));
-          double we = Math.exp(
-              -(d1 + d2) * (d1 + d2) /
-              (2 * borderWeightSigmaPx * borderWeightSigmaPx));
-          extraWeights[z * H * W + i] += borderWeightFactor * we + va * wa;
+  private static void rethrowCause(ExecutionException e)
+      throws BlobException, InterruptedException {
+    if (e.getCause() instanceof BlobException)
+        throw (BlobException)e.getCause();
+    if (e.getCause() instanceof InterruptedException)
+        throw (InterruptedException)e.getCause();
+    throw new RuntimeException(e.getCause());
+  }
+
+  private synchronized void ensureLabelsAndWeightsStorage(
+      ModelDefinition model, int T, int D, int H, int W,
+      double[] elementSizeUm) throws BlobException {
+    if (_labels == null || _weights == null || _samplePdf == null)
+        createLabelsAndWeightsStorage(model, T, D, H, W, elementSizeUm);
+  }
+
+/*======================================================================*/
+/*!
+ *   Compute the half precision weights of one plane from its sample pdf
+ *   codes and per class distances to the nearest (d1) and second nearest
+ *   (d2) instance.
+ */
+/*======================================================================*/
+  private static void computePlaneWeights(
+      byte[] pdf, short[][] d1, short[][] d2, ModelDefinition model,
+      short[] weights) {
+    float[] halfToFloat = Tools.halfToFloatLUT();
+    double va = 1.0 - model.foregroundBackgroundRatio;
+    double sigma1Px = model.sigma1Px;
+    double borderWeightFactor = model.borderWeightFactor;
+    double borderWeightSigmaPx = model.borderWeightSigmaPx;
+    short zero = Tools.floatToHalf(0.0f);
+    short one = Tools.floatToHalf(1.0f);
+    for (int i = 0; i < weights.length; ++i) {
+      if (pdf[i] == SAMPLE_PDF_IGNORE) {
+        weights[i] = zero;
+        continue;
+      }
+      if (pdf[i] == SAMPLE_PDF_FOREGROUND) {
+        weights[i] = one;
+        continue;
+      }
+      double extraWeight = 0.0;
+      for (int c = 0; c < d1.length; ++c) {
+        float dist1 = halfToFloat[d1[c][i] & 0xffff];
+        float dist2 = halfToFloat[d2[c][i] & 0xffff];
+        double wa = Math.exp(-(dist1 * dist1) / (2 * sigma1Px * sigma1Px));
+        double we = Math.exp(
+            -(dist1 + dist2) * (dist1 + dist2) /
+            (2 * borderWeightSigmaPx * borderWeightSigmaPx));
+        extraWeight += borderWeightFactor * we + va * wa;
+      }
+      weights[i] = Tools.floatToHalf(
+          model.foregroundBackgroundRatio + (float)extraWeight);
+    }
+  }
+
+/*======================================================================*/
+/*!
+ *   Compute the weights of the given frames from the sample pdf codes and
+ *   the cached distance maps. The planes are processed in parallel, the
+ *   distance maps of a plane are only read from the open distance map
+ *   cache when it is processed.
+ *
+ *   \param frames The frames to compute weights for
+ *   \param model The model defining the weight parameters
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ */
+/*======================================================================*/
+  private void computeWeights(
+      boolean[] frames, ModelDefinition model, ProgressMonitor pr)
+      throws InterruptedException {
+    final ModelDefinition weightModel = model;
+    final IHDF5Writer cache = _distanceCache;
+    final int C = (int)cache.object().getDataSetInformation(
+        "/min1Dist").getDimensions()[1];
+    int D = _weights.getNSlices();
+    final int[] blockDims =
+        { 1, 1, 1, _weights.getHeight(), _weights.getWidth() };
+
+    Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+    for (int t = 0; t < frames.length; ++t) {
+      if (!frames[t]) continue;
+      for (int z = 0; z < D; ++z) {
+        final int stackIdx = _weights.getStackIndex(1, z + 1, t + 1);
+        final short[] w = (short[])_weights.getStack().getPixels(stackIdx);
+        final byte[] pdf = (byte[])_samplePdf.getStack().getPixels(stackIdx);
+        final long[] offset = { t, 0, z, 0, 0 };
+        tasks.add(
+            new Callable<Void>() {
+              @Override
+              public Void call() {
+                short[][] d1 = new short[C][];
+                short[][] d2 = new short[C][];
+                long[] planeOffset = offset.clone();
+                synchronized (cache) {
+                  for (int c = 0; c < C; ++c) {
+                    planeOffset[1] = c;
+                    d1[c] = cache.uint16().readMDArrayBlockWithOffset(
+                        "/min1Dist", blockDims, planeOffset)
+                        .getAsFlatArray();
+                    d2[c] = cache.uint16().readMDArrayBlockWithOffset(
+                        "/min2Dist", blockDims, planeOffset)
+                        .getAsFlatArray();
+                  }
+                }
+                computePlaneWeights(pdf, d1, d2, weightModel, w);
+                return null;
+              }
+            });
+      }
+    }
+
+    if (pr != null) pr.init(tasks.size());
+    int nThreads = Math.min(
+        Runtime.getRuntime().availableProcessors(), tasks.size());
+    if (nThreads == 0) return;
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    try {
+      Vector<Future<Void>> futures = new Vector<Future<Void>>();
+      for (Callable<Void> task : tasks) futures.add(pool.submit(task));
+      for (Future<Void> f : futures) {
+        try {
+          f.get();
+        }
+        catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
         }
         if (pr != null && !pr.count(1)) throw new InterruptedException();
       }
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
 
-      if (pr != null) {
-        pr.pop();
-        pr.pop();
+/*======================================================================*/
+/*!
+ *   Compute a key for all parameters besides the model parameters checked
+ *   in wasConvertedWithModel() that influence label and weight generation.
+ *   If the key changes, all frames must be re-processed.
+ */
+/*======================================================================*/
+  private long labelsConversionKey(
+      ModelDefinition model, boolean labelsAreClasses) {
+    long key = labelsAreClasses ? 1 : 0;
+    key = 31 * key + Arrays.hashCode(model.classNames);
+    key = 31 * key + model.diskRadiusPx;
+    key = 31 * key + _imp.getWidth();
+    key = 31 * key + _imp.getHeight();
+    key = 31 * key + _imp.getNSlices();
+    key = 31 * key + _imp.getNFrames();
+    key = 31 * key + Arrays.hashCode(getRawElementSizeUm());
+    return key;
+  }
+
+/*======================================================================*/
+/*!
+ *   Compute one fingerprint per output frame of all annotations affecting
+ *   that frame. For ROI annotations the fingerprint covers name, type,
+ *   position and outline of all ROIs in overlay order, for mask
+ *   annotations it covers the mask pixels.
+ *
+ *   \param model The ModelDefinition to use for conversion
+ *   \param masks If true, the image contains mask annotations, otherwise
+ *     ROI annotations
+ *
+ *   \return The per-frame fingerprints
+ */
+/*======================================================================*/
+  private long[] annotationFingerprints(
+      ModelDefinition model, boolean masks) {
+    int T = (model.nDims() == 2 && _imp.getNSlices() > 1) ?
+        _imp.getNSlices() * _imp.getNFrames() : _imp.getNFrames();
+    double scaleZ =
+        (model.nDims() == 3) ?
+        getRawElementSizeUm()[0] / model.elementSizeUm()[0] : 1.0;
+    int Ds = (model.nDims() == 3) ?
+        (int)Math.round(_imp.getNSlices() * scaleZ) : 1;
+
+    long[] fingerprints = new long[T];
+    Arrays.fill(fingerprints, 17);
+    for (Roi roi : _imp.getOverlay().toArray()) {
+      if ((roi instanceof ImageRoi) != masks) continue;
+      int t = 0;
+      int z = 0;
+      long h = 0;
+      if (masks) {
+        int tRoi = 1;
+        int zRoi = 1;
+        if (roi.getPosition() != 0) {
+          int[] pos = _imp.convertIndexToPosition(roi.getPosition());
+          tRoi = pos[2];
+          zRoi = pos[1];
+        }
+        else {
+          if (roi.getTPosition() != 0) tRoi = roi.getTPosition();
+          if (roi.getZPosition() != 0) zRoi = roi.getZPosition();
+        }
+        t = (T == _imp.getNFrames()) ?
+            tRoi - 1 : (tRoi - 1) * _imp.getNSlices() + zRoi - 1;
+        z = zRoi;
+        Object pixels = ((ImageRoi)roi).getProcessor().getPixels();
+        if (pixels instanceof byte[]) h = Arrays.hashCode((byte[])pixels);
+        else if (pixels instanceof short[])
+            h = Arrays.hashCode((short[])pixels);
+        else if (pixels instanceof float[])
+            h = Arrays.hashCode((float[])pixels);
+        else if (pixels instanceof int[]) h = Arrays.hashCode((int[])pixels);
+      }
+      else {
+        RoiPosition p = getROIPosition(roi, Ds, scaleZ);
+        t = p.t - 1;
+        z = p.z;
+        h = roi.getClass().getName().hashCode();
+        h = 31 * h + ((roi.getName() != null) ? roi.getName().hashCode() : 0);
+        FloatPolygon poly = roi.getFloatPolygon();
+        for (int i = 0; i < poly.npoints; ++i) {
+          h = 31 * h + Float.floatToIntBits(poly.xpoints[i]);
+          h = 31 * h + Float.floatToIntBits(poly.ypoints[i]);
+        }
       }
+      if (t < 0 || t >= T) continue;
+      h = 31 * h + z;
+      h = 31 * h + roi.getBounds().hashCode();
+      fingerprints[t] = 31 * fingerprints[t] + h;
     }
+    return fingerprints;
+  }
 
-    if (pr != null) {
-      pr.pop();
-      pr.push("Set final weights", 0.99f, 1.0f);
-      pr.init(D);
+/*======================================================================*/
+/*!
+ *   Create a PlaneSource providing the unscaled planes of the given image
+ *   as float. Color images are split into red, green and blue channels.
+ */
+/*======================================================================*/
+  private static PlaneSource rawPlaneSource(final ImagePlus imp) {
+    if (imp.getType() != ImagePlus.COLOR_256 &&
+        imp.getType() != ImagePlus.COLOR_RGB) return Tools.planeSource(imp);
+    final double[] elSize = Tools.getElementSizeUm(imp);
+    final float[] plane = new float[imp.getHeight() * imp.getWidth()];
+    return new PlaneSource() {
+      // The last decoded color plane, all three channels are read from it
+      private int _cachedIndex = -1;
+      private ColorProcessor _cachedPlane = null;
+
+      @Override
+      public int nFrames() {
+        return imp.getNFrames();
+      }
+      @Override
+      public int nChannels() {
+        return 3;
+      }
+      @Override
+      public int nSlices() {
+        return imp.getNSlices();
+      }
+      @Override
+      public int height() {
+        return imp.getHeight();
+      }
+      @Override
+      public int width() {
+        return imp.getWidth();
+      }
+      @Override
+      public double[] elementSizeUm() {
+        return elSize;
+      }
+      @Override
+      public float[] getPlane(int t, int z, int c) {
+        int index = imp.getStackIndex(1, z + 1, t + 1);
+        if (index != _cachedIndex) {
+          ImageProcessor ip = imp.getStack().getProcessor(index);
+          _cachedPlane = (ip instanceof ColorProcessor) ?
+              (ColorProcessor)ip : (ColorProcessor)ip.convertToRGB();
+          _cachedIndex = index;
+        }
+        byte[] channel = _cachedPlane.getChannel(c + 1);
+        for (int i = 0; i < plane.length; ++i) plane[i] = channel[i] & 0xff;
+        return plane;
+      }
+    };
+  }
+
+/*======================================================================*/
+/*!
+ *   Create a view of the given PlaneSource with modified element size.
+ */
+/*======================================================================*/
+  private static PlaneSource withElementSizeUm(
+      final PlaneSource src, final double[] elementSizeUm) {
+    return new PlaneSource() {
+      @Override
+      public int nFrames() {
+        return src.nFrames();
+      }
+      @Override
+      public int nChannels() {
+        return src.nChannels();
+      }
+      @Override
+      public int nSlices() {
+        return src.nSlices();
+      }
+      @Override
+      public int height() {
+        return src.height();
+      }
+      @Override
+      public int width() {
+        return src.width();
+      }
+      @Override
+      public double[] elementSizeUm() {
+        return elementSizeUm;
+      }
+      @Override
+      public float[] getPlane(int t, int z, int c) {
+        return src.getPlane(t, z, c);
+      }
+    };
+  }
+
+/*======================================================================*/
+/*!
+ *   A PlaneSource view of all tiles of a sample. Frame n of the view is
+ *   frame n % T of tile n / T, tiles are numbered with x running fastest.
+ *   Tile (iz, iy, ix) covers the positions starting at
+ *   (iz, iy, ix) * stride - offset. Positions outside the sample are
+ *   mirrored at the sample boundary. If zeroOutside is set, they are set
+ *   to zero instead. The view reads the stack pixel arrays directly, so
+ *   copyPlane() may be called concurrently.
+ */
+/*======================================================================*/
+  private static class TiledSource implements ConcurrentPlaneSource {
+
+    private final ImagePlus _imp;
+    private final Object[] _pixels;
+    private final float[] _lut;
+    private final double[] _elementSizeUm;
+    private final int _T, _Z, _H, _W;
+    private final int[] _shape;
+    private final int[] _stride;
+    private final int[] _offset;
+    private final int[] _tiling;
+    private final boolean _zeroOutside;
+    private final float[] _plane;
+
+    // lut maps 8-Bit and 16-Bit codes to values, if null the codes are
+    // converted as they are
+    public TiledSource(
+        ImagePlus imp, float[] lut, int[] shape, int[] stride, int[] offset,
+        int[] tiling, boolean zeroOutside) {
+      _imp = imp;
+      _pixels = imp.getStack().getImageArray();
+      _lut = lut;
+      _elementSizeUm = Tools.getElementSizeUm(imp);
+      _T = imp.getNFrames();
+      _Z = imp.getNSlices();
+      _H = imp.getHeight();
+      _W = imp.getWidth();
+      _shape = shape;
+      _stride = stride;
+      _offset = offset;
+      _tiling = tiling;
+      _zeroOutside = zeroOutside;
+      _plane = new float[shape[1] * shape[2]];
     }
 
-    for (int z = 0; z < D; ++z) {
-      float[] w = (float[])_weights.getStack().getProcessor(
-          _weights.getStackIndex(1, z + 1, t + 1)).getPixels();
-      for (int i = 0; i < W * H; ++i) {
-        if (w[i] >= 0.0f) continue;
-        w[i] = (float)foregroundBackgroundRatio + extraWeights[z * H * W + i];
+    @Override
+    public int nFrames() {
+      return _T * _tiling[0] * _tiling[1] * _tiling[2];
+    }
+
+    @Override
+    public int nChannels() {
+      return _imp.getNChannels();
+    }
+
+    @Override
+    public int nSlices() {
+      return _shape[0];
+    }
+
+    @Override
+    public int height() {
+      return _shape[1];
+    }
+
+    @Override
+    public int width() {
+      return _shape[2];
+    }
+
+    @Override
+    public double[] elementSizeUm() {
+      return _elementSizeUm;
+    }
+
+    @Override
+    public float[] getPlane(int n, int z, int c) {
+      copyPlane(n, z, c, _plane, 0);
+      return _plane;
+    }
+
+    @Override
+    public void copyPlane(int n, int z, int c, float[] out, int offset) {
+      int t = n % _T;
+      int tileIdx = n / _T;
+      int xIdx = tileIdx % _tiling[2];
+      int yIdx = (tileIdx / _tiling[2]) % _tiling[1];
+      int zIdx = tileIdx / (_tiling[2] * _tiling[1]);
+
+      int zPos = zIdx * _stride[0] - _offset[0] + z;
+      int zR = mirror(zPos, _Z);
+      if (_zeroOutside && zR != zPos) {
+        Arrays.fill(out, offset, offset + _shape[1] * _shape[2], 0.0f);
+        return;
+      }
+      Object in = _pixels[_imp.getStackIndex(c + 1, zR + 1, t + 1) - 1];
+
+      // Rows and columns map to themselves in the interior of the sample,
+      // only the reflected borders are gathered through the index maps
+      int yStart = yIdx * _stride[1] - _offset[1];
+      int xStart = xIdx * _stride[2] - _offset[2];
+      int[] yMap = mirrorMap(yStart, _shape[1], _H);
+      int[] xMap = mirrorMap(xStart, _shape[2], _W);
+      int x0 = Math.min(Math.max(-xStart, 0), _shape[2]);
+      int x1 = Math.min(Math.max(_W - xStart, x0), _shape[2]);
+      for (int y = 0; y < _shape[1]; y++) {
+        int rowOut = offset + y * _shape[2];
+        if (yMap[y] < 0) {
+          Arrays.fill(out, rowOut, rowOut + _shape[2], 0.0f);
+          continue;
+        }
+        int rowIn = yMap[y] * _W;
+        if (x1 > x0)
+            copyValues(in, rowIn + xStart + x0, out, rowOut + x0, x1 - x0);
+        for (int x = 0; x < x0; x++)
+            out[rowOut + x] =
+                (xMap[x] < 0) ? 0.0f : value(in, rowIn + xMap[x]);
+        for (int x = x1; x < _shape[2]; x++)
+            out[rowOut + x] =
+                (xMap[x] < 0) ? 0.0f : value(in, rowIn + xMap[x]);
       }
-      if (pr != null && !pr.count(1)) throw new InterruptedException();
     }
 
-    if (pr != null) pr.pop();
+    // Source positions of the positions start to start + length - 1 along
+    // an axis of the given extent, -1 marks positions to set to zero
+    private int[] mirrorMap(int start, int length, int extent) {
+      int[] map = new int[length];
+      for (int i = 0; i < length; i++) {
+        int r = mirror(start + i, extent);
+        map[i] = (_zeroOutside && r != start + i) ? -1 : r;
+      }
+      return map;
+    }
+
+    private void copyValues(
+        Object pixels, int from, float[] out, int to, int length) {
+      if (pixels instanceof float[]) {
+        System.arraycopy((float[])pixels, from, out, to, length);
+        return;
+      }
+      for (int i = 0; i < length; i++) out[to + i] = value(pixels, from + i);
+    }
+
+/*======================================================================*/
+/*!
+ *   Check whether all values of the given frame inside the sample are
+ *   zero. For views with zeroOutside set this means the whole frame is
+ *   zero.
+ */
+/*======================================================================*/
+    public boolean isZero(int n) {
+      int t = n % _T;
+      int tileIdx = n / _T;
+      int[] idx = {
+          tileIdx / (_tiling[2] * _tiling[1]),
+          (tileIdx / _tiling[2]) % _tiling[1], tileIdx % _tiling[2] };
+      int[] extent = { _Z, _H, _W };
+      int[] lower = new int[3];
+      int[] upper = new int[3];
+      for (int d = 0; d < 3; d++) {
+        lower[d] = Math.max(0, idx[d] * _stride[d] - _offset[d]);
+        upper[d] = Math.min(
+            extent[d], idx[d] * _stride[d] - _offset[d] + _shape[d]);
+      }
+      for (int c = 0; c < nChannels(); c++)
+          for (int z = lower[0]; z < upper[0]; z++) {
+            Object in = _pixels[_imp.getStackIndex(c + 1, z + 1, t + 1) - 1];
+            for (int y = lower[1]; y < upper[1]; y++)
+                for (int x = lower[2]; x < upper[2]; x++)
+                    if (value(in, y * _W + x) != 0.0f) return false;
+          }
+      return true;
+    }
+
+    private float value(Object pixels, int i) {
+      if (pixels instanceof float[]) return ((float[])pixels)[i];
+      int code = (pixels instanceof byte[]) ?
+          (((byte[])pixels)[i] & 0xff) : (((short[])pixels)[i] & 0xffff);
+      return (_lut != null) ? _lut[code] : code;
+    }
+
+    // Mirror position i into [0, n) without repeating the boundary values
+    private static int mirror(int i, int n) {
+      if (n == 1) return 0;
+      if (i < 0) i = -i;
+      int k = i / (n - 1);
+      return (k % 2 == 0) ? (i - k * (n - 1)) : ((k + 1) * (n - 1) - i);
+    }
+
+  }
+
+/*======================================================================*/
+/*!
+ *   PlaneSource converting planes of an ImagePlus to U-Net format on
+ *   demand. The conversion is equivalent to the sequence makeComposite(),
+ *   convertToFloat(), fixStackLayout(), rescaleXY(), rescaleZ() and
+ *   normalizeValues() used by createDataBlob(), but only holds the last
+ *   two rescaled input planes in memory.
+ */
+/*======================================================================*/
+  private static class StreamedDataSource implements PlaneSource {
+
+    private final PlaneSource _raw;
+    private final int _Hin, _Win;
+    private final boolean _foldZ;
+    private final int _T, _C, _Zin, _Z, _H, _W;
+    private final double[] _scalesXY;
+    private final double _scaleZ;
+    private final double[] _elementSizeUm;
+
+    private float[] _scales = null;
+    private float[] _offsets = null;
+
+    // Cache of the last two rescaled input planes
+    private final long[] _cacheKeys = { -1, -1 };
+    private final float[][] _cachePlanes = new float[2][];
+    private int _nextCacheSlot = 0;
+
+    private final float[] _plane;
+
+    // raw provides the unscaled input planes with color images already
+    // split into channels. Its element size must be given in micrometers.
+    public StreamedDataSource(PlaneSource raw, ModelDefinition model) {
+      _raw = raw;
+      _Hin = raw.height();
+      _Win = raw.width();
+      _foldZ = model.nDims() == 2 && raw.nSlices() > 1;
+      _T = _foldZ ? raw.nSlices() * raw.nFrames() : raw.nFrames();
+      _C = raw.nChannels();
+      _Zin = _foldZ ? 1 : raw.nSlices();
+
+      double[] elSizeRaw = raw.elementSizeUm();
+      double[] elSizeModel = model.elementSizeUm();
+      int offsRaw = elSizeRaw.length - 2;
+      int offsModel = elSizeModel.length - 2;
+      _scalesXY = new double[] {
+          elSizeRaw[offsRaw] / elSizeModel[offsModel],
+          elSizeRaw[offsRaw + 1] / elSizeModel[offsModel + 1] };
+      _H = (int)Math.round(_Hin * _scalesXY[0]);
+      _W = (int)Math.round(_Win * _scalesXY[1]);
+      _scaleZ = (model.nDims() == 3 && _Zin > 1) ?
+          elSizeRaw[0] / elSizeModel[0] : 1.0;
+      _Z = (_scaleZ == 1) ? _Zin : (int)Math.round(_Zin * _scaleZ);
+      _elementSizeUm = elSizeModel;
+      _plane = new float[_H * _W];
+    }
+
+    public void setNormalization(float[] scales, float[] offsets) {
+      _scales = scales;
+      _offsets = offsets;
+    }
+
+    @Override
+    public int nFrames() {
+      return _T;
+    }
+
+    @Override
+    public int nChannels() {
+      return _C;
+    }
+
+    @Override
+    public int nSlices() {
+      return _Z;
+    }
+
+    @Override
+    public int height() {
+      return _H;
+    }
+
+    @Override
+    public int width() {
+      return _W;
+    }
+
+    @Override
+    public double[] elementSizeUm() {
+      return _elementSizeUm;
+    }
+
+    @Override
+    public float[] getPlane(int t, int z, int c) {
+      if (_scaleZ == 1) System.arraycopy(
+          rescaledInputPlane(t, z, c), 0, _plane, 0, _H * _W);
+      else {
+        // Same slice mapping as rescaleZ() with 1-based slice indices
+        double zTmp = z / _scaleZ + 1;
+        int zIn = (int)Math.floor(zTmp);
+        double lambda = zTmp - zIn;
+        int zIn2 = zIn + 1;
+        if (zIn >= _Zin) zIn = 2 * (_Zin - 1) - zIn;
+        if (zIn2 >= _Zin) zIn2 = 2 * (_Zin - 1) - zIn2;
+        float[] in = rescaledInputPlane(t, zIn - 1, c);
+        if (lambda == 0) System.arraycopy(in, 0, _plane, 0, _H * _W);
+        else {
+          for (int i = 0; i < _H * _W; ++i)
+              _plane[i] = (float)((1 - lambda) * in[i]);
+          float[] in2 = rescaledInputPlane(t, zIn2 - 1, c);
+          for (int i = 0; i < _H * _W; ++i) _plane[i] += lambda * in2[i];
+        }
+      }
+      if (_scales != null) {
+        for (int i = 0; i < _H * _W; ++i)
+            _plane[i] = (_plane[i] + _offsets[t]) * _scales[t];
+      }
+      return _plane;
+    }
+
+    // Read the input plane at the given position (in model stack layout),
+    // convert it to float and rescale it in xy. The returned array must not
+    // be modified.
+    private float[] rescaledInputPlane(int t, int z, int c) {
+      long key = ((long)t * _Zin + z) * _C + c;
+      for (int i = 0; i < 2; ++i)
+          if (_cacheKeys[i] == key) return _cachePlanes[i];
+
+      int tIn = _foldZ ? t / _raw.nSlices() : t;
+      int zIn = _foldZ ? t % _raw.nSlices() : z;
+      float[] in = _raw.getPlane(tIn, zIn, c);
+      float[] out = null;
+      if (_scalesXY[0] != 1 || _scalesXY[1] != 1) {
+        FloatProcessor ipOut = new FloatProcessor(_W, _H);
+        rescalePlaneXY(
+            new FloatProcessor(_Win, _Hin, in), ipOut, _scalesXY,
+            ImageProcessor.BILINEAR);
+        out = (float[])ipOut.getPixels();
+      }
+      else out = Arrays.copyOf(in, in.length);
+
+      _cacheKeys[_nextCacheSlot] = key;
+      _cachePlanes[_nextCacheSlot] = out;
+      _nextCacheSlot = 1 - _nextCacheSlot;
+      return out;
+    }
+
+  }
+
+/*======================================================================*/
+/*!
+ *   Set all pixels of the W x H plane starting at data[offset] that are
+ *   covered by the given ROI to value. Only the pixels within the ROI's
+ *   bounding box are visited. This gives the same result as
+ *   ImageProcessor.fill(roi).
+ */
+/*======================================================================*/
+  private static void fillRoi(
+      int[] data, int offset, int W, int H, Roi roi, int value) {
+    Rectangle r = roi.getBounds();
+    ImageProcessor mask = null;
+    if (roi.isLine()) {
+      // Lines are drawn instead of filled, let ImageJ render them
+      mask = new ByteProcessor(W, H);
+      mask.setValue(255);
+      mask.fill(roi);
+      r = new Rectangle(0, 0, W, H);
+    }
+    else mask = roi.getMask();
+    int x0 = Math.max(r.x, 0);
+    int x1 = Math.min(r.x + r.width, W);
+    int y0 = Math.max(r.y, 0);
+    int y1 = Math.min(r.y + r.height, H);
+    for (int y = y0; y < y1; ++y) {
+      int rowOffset = offset + y * W;
+      if (mask == null) {
+        if (x0 < x1) Arrays.fill(data, rowOffset + x0, rowOffset + x1, value);
+        continue;
+      }
+      for (int x = x0; x < x1; ++x)
+          if (mask.get(x - r.x, y - r.y) != 0) data[rowOffset + x] = value;
+    }
+  }
+
+/*======================================================================*/
+/*!
+ *   Coarse sampling tables for the sample pdf (weights2). Samples are
+ *   split into tiles of at most SAMPLING_TILE_SIZE pixels per dimension.
+ *   Per tile, the number of annotated (not ignored) pixels and the sum of
+ *   the sample pdf are accumulated. save() writes
+ *
+ *   weights2_tileCounts (int32): The annotated pixel count per tile
+ *   weights2_tileCdf (float64): The cumulative pdf mass over all tiles of
+ *     all samples in row-major order, normalized to [0, 1]
+ *
+ *   Both have shape (N, [tz,] ty, tx) and a tileShape attribute. This
+ *   allows to draw tiles with probability proportional to their pdf mass
+ *   by binary search and to skip unannotated tiles without scanning the
+ *   full resolution weights2 dataset.
+ */
+/*======================================================================*/
+  private static class SamplingTables {
+
+    private final int _D, _H, _W;
+    private final int[] _tileShape;
+    private final int[] _gridShape;
+    private final int[] _counts;
+    private final double[] _mass;
+
+    public SamplingTables(int T, int D, int H, int W) {
+      _D = D;
+      _H = H;
+      _W = W;
+      _tileShape = new int[] {
+          Math.min(D, SAMPLING_TILE_SIZE), Math.min(H, SAMPLING_TILE_SIZE),
+          Math.min(W, SAMPLING_TILE_SIZE) };
+      _gridShape = new int[] {
+          T, (D + _tileShape[0] - 1) / _tileShape[0],
+          (H + _tileShape[1] - 1) / _tileShape[1],
+          (W + _tileShape[2] - 1) / _tileShape[2] };
+      _counts = new int[T * _gridShape[1] * _gridShape[2] * _gridShape[3]];
+      _mass = new double[_counts.length];
+    }
+
+    public void addPlane(int t, int z, byte[] codes, float[] pdfValues) {
+      int rowOffset =
+          (t * _gridShape[1] + z / _tileShape[0]) * _gridShape[2];
+      for (int y = 0; y < _H; ++y) {
+        int tileOffset =
+            (rowOffset + y / _tileShape[1]) * _gridShape[3];
+        for (int x = 0; x < _W; ++x) {
+          int code = codes[y * _W + x];
+          if (code == SAMPLE_PDF_IGNORE) continue;
+          int tile = tileOffset + x / _tileShape[2];
+          _counts[tile]++;
+          _mass[tile] += pdfValues[code];
+        }
+      }
+    }
+
+    public void save(IHDF5Writer writer) {
+      double[] cdf = new double[_mass.length];
+      double sum = 0.0;
+      for (int i = 0; i < _mass.length; ++i) {
+        sum += _mass[i];
+        cdf[i] = sum;
+      }
+      if (sum > 0.0) for (int i = 0; i < cdf.length; ++i) cdf[i] /= sum;
+
+      int[] dims = (_D == 1) ?
+          new int[] { _gridShape[0], _gridShape[2], _gridShape[3] } :
+          _gridShape;
+      int[] tileShape = (_D == 1) ?
+          new int[] { _tileShape[1], _tileShape[2] } : _tileShape;
+      writer.int32().writeMDArray(
+          "weights2_tileCounts", new MDIntArray(_counts, dims));
+      writer.int32().setArrayAttr(
+          "weights2_tileCounts", "tileShape", tileShape);
+      writer.float64().writeMDArray(
+          "weights2_tileCdf", new MDDoubleArray(cdf, dims));
+      writer.int32().setArrayAttr("weights2_tileCdf", "tileShape", tileShape);
+      writer.float64().setAttr("weights2_tileCdf", "totalMass", sum);
+    }
+
   }
 
   private static class RoiPosition {
@@ -1649,6 +3403,13 @@ public class TrainingSample
     public int z = 1;
   }
 
+  private static class IndexedRoi {
+    public Roi roi = null;
+    public RoiPosition position = null;
+    public RoiLabel label = null;
+    public int classLabel = 1;
+  }
+
   private RoiPosition getROIPosition(Roi roi, int Ds, double scaleZ) {
     RoiPosition p = new RoiPosition();
     if (roi.getPosition() != 0)
@@ -0,0 +1,116 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+import de.unifreiburg.unet.SegmentationJob;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestClassifyPlane {
+
+  private static int _nFailures = 0;
+
+  public static void main(String[] args) {
+    Random random = new Random(0);
+    int planeSize = 257;
+
+    for (int nClasses : new int[] { 1, 2, 5 }) {
+      // Blocks hold several planes, classes of a plane are planeSize or
+      // more values apart
+      for (int classStride : new int[] { planeSize, 3 * planeSize }) {
+        int offset = planeSize + 13;
+        float[] block = new float[offset + nClasses * classStride];
+        for (int i = 0; i < block.length; ++i)
+            block[i] = (float)(100.0 * random.nextGaussian());
+        // Huge scores must not overflow the softmax
+        block[offset] = 1.0e4f;
+        // Ties are resolved to the smaller class
+        if (nClasses > 1) {
+          block[offset + 1] = 1.0e5f;
+          block[offset + classStride + 1] = 1.0e5f;
+        }
+
+        String name = nClasses + " classes, stride " + classStride;
+        byte[] byteLabels = new byte[planeSize];
+        short[] shortLabels = new short[planeSize];
+        float[][] softmax = new float[nClasses][planeSize];
+        float[][] scratch = new float[2][planeSize];
+        SegmentationJob.classifyPlane(
+            FloatBuffer.wrap(block), offset, classStride, nClasses,
+            byteLabels, softmax, scratch);
+        // Dirty scratch buffers and labels must not influence the result
+        Arrays.fill(shortLabels, (short)-1);
+        Arrays.fill(scratch[0], Float.NaN);
+        Arrays.fill(scratch[1], Float.NaN);
+        SegmentationJob.classifyPlane(
+            FloatBuffer.wrap(block), offset, classStride, nClasses,
+            shortLabels, null, scratch);
+
+        boolean labelsMatch = true;
+        boolean softmaxMatches = true;
+        for (int i = 0; i < planeSize; ++i) {
+          int argmax = 0;
+          double max = block[offset + i];
+          for (int c = 1; c < nClasses; ++c) {
+            if (block[offset + c * classStride + i] > max) {
+              max = block[offset + c * classStride + i];
+              argmax = c;
+            }
+          }
+          labelsMatch &= byteLabels[i] == argmax && shortLabels[i] == argmax;
+          double sum = 0.0;
+          for (int c = 0; c < nClasses; ++c)
+              sum += Math.exp(block[offset + c * classStride + i] - max);
+          for (int c = 0; c < nClasses; ++c) {
+            double expected =
+                Math.exp(block[offset + c * classStride + i] - max) / sum;
+            softmaxMatches &= Math.abs(softmax[c][i] - expected) <= 1.0e-5;
+          }
+        }
+        check(name + ": labels", labelsMatch);
+        check(name + ": softmax", softmaxMatches);
+      }
+    }
+
+    if (_nFailures > 0) {
+      System.out.println(_nFailures + " test(s) failed");
+      System.exit(1);
+    }
+    System.out.println("All tests passed");
+  }
+
+  private static void check(String name, boolean passed) {
+    if (passed) return;
+    System.out.println("FAILED: " + name);
+    _nFailures++;
+  }
+
+}
@@ -0,0 +1,112 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+import de.unifreiburg.unet.IntIntMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class TestIntIntMap {
+
+  private static int _nFailures = 0;
+
+  public static void main(String[] args) {
+
+    // Empty map
+    IntIntMap map = new IntIntMap(16);
+    check("empty size", map.size() == 0);
+    check("empty dense lookup", !map.containsKey(3) && map.get(3, -7) == -7);
+    check("empty hashed lookup",
+          !map.containsKey(1000) && map.get(1000, -7) == -7);
+
+    // Dense and hashed keys, overwriting existing keys
+    map.put(0, 10);
+    map.put(15, 11);
+    map.put(16, 12);
+    map.put(-1, 13);
+    map.put(15, 14);
+    map.put(-1, 15);
+    check("size after overwrite", map.size() == 4);
+    check("dense values", map.get(0, -1) == 10 && map.get(15, -1) == 14);
+    check("hashed values", map.get(16, -1) == 12 && map.get(-1, -1) == 15);
+    check("absent neighbours", !map.containsKey(1) && !map.containsKey(17));
+
+    // Random keys including negative, extreme and colliding keys compared
+    // against a HashMap, the hash table grows several times
+    for (int denseRange : new int[] { 0, 1, 1000 }) {
+      Random random = new Random(denseRange);
+      map = new IntIntMap(denseRange);
+      Map<Integer,Integer> reference = new HashMap<Integer,Integer>();
+      for (int i = 0; i < 20000; ++i) {
+        int key = 0;
+        switch (i % 4) {
+        case 0: key = random.nextInt(2000); break;
+        case 1: key = random.nextInt(); break;
+        case 2: key = (random.nextInt(64) << 16); break;
+        default:
+          key = (random.nextBoolean()) ?
+              Integer.MIN_VALUE + random.nextInt(4) :
+              Integer.MAX_VALUE - random.nextInt(4);
+        }
+        int value = random.nextInt();
+        map.put(key, value);
+        reference.put(key, value);
+      }
+      String name = "random keys (denseRange=" + denseRange + ")";
+      check(name + ": size", map.size() == reference.size());
+      boolean valuesMatch = true;
+      for (Map.Entry<Integer,Integer> e : reference.entrySet())
+          valuesMatch &= map.containsKey(e.getKey()) &&
+              map.get(e.getKey(), ~e.getValue()) == e.getValue();
+      check(name + ": values", valuesMatch);
+      boolean absentMatch = true;
+      for (int i = 0; i < 20000; ++i) {
+        int key = random.nextInt();
+        if (reference.containsKey(key)) continue;
+        absentMatch &= !map.containsKey(key) && map.get(key, 42) == 42;
+      }
+      check(name + ": absent keys", absentMatch);
+    }
+
+    if (_nFailures > 0) {
+      System.out.println(_nFailures + " test(s) failed");
+      System.exit(1);
+    }
+    System.out.println("All tests passed");
+  }
+
+  private static void check(String name, boolean passed) {
+    if (passed) return;
+    System.out.println("FAILED: " + name);
+    _nFailures++;
+  }
+
+}
@@ -0,0 +1,162 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+import de.unifreiburg.unet.StreamingHistogram;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestStreamingHistogram {
+
+  private static final int N_BINS = 1024;
+
+  private static int _nFailures = 0;
+
+  public static void main(String[] args) {
+
+    // Leading chunk of zeros (e.g. black border) followed by a value range
+    StreamingHistogram h = new StreamingHistogram(N_BINS);
+    float[] ramp = new float[256];
+    for (int i = 0; i < ramp.length; ++i) ramp[i] = i;
+    h.add(new float[1000], 0, 1000);
+    h.add(ramp, 0, ramp.length);
+    checkPercentiles("zero leading chunk", h, concat(new float[1000], ramp));
+
+    // Constant non-zero leading chunk
+    float[] constant = new float[500];
+    Arrays.fill(constant, 42.0f);
+    h = new StreamingHistogram(N_BINS);
+    h.add(constant, 0, constant.length);
+    h.add(ramp, 0, ramp.length);
+    checkPercentiles("constant leading chunk", h, concat(constant, ramp));
+
+    // Subnormal leading chunk
+    float[] subnormal = new float[100];
+    Arrays.fill(subnormal, Float.MIN_VALUE);
+    h = new StreamingHistogram(N_BINS);
+    h.add(subnormal, 0, subnormal.length);
+    h.add(ramp, 0, ramp.length);
+    checkPercentiles("subnormal leading chunk", h, concat(subnormal, ramp));
+
+    // Tiny constant leading chunk followed by huge values
+    float[] tiny = new float[100];
+    Arrays.fill(tiny, 1.0e-30f);
+    float[] huge = new float[100];
+    for (int i = 0; i < huge.length; ++i) huge[i] = (i + 1) * 1.0e30f;
+    h = new StreamingHistogram(N_BINS);
+    h.add(tiny, 0, tiny.length);
+    h.add(huge, 0, huge.length);
+    checkPercentiles("tiny then huge values", h, concat(tiny, huge));
+
+    // Merging per-chunk histograms, some of them all zero or constant,
+    // must give the same result as a single histogram
+    Random random = new Random(0);
+    float[] data = new float[100000];
+    for (int i = 0; i < data.length; ++i)
+        data[i] = (i < 20000) ? 0.0f : (i < 30000) ? 7.0f :
+            (float)(1000.0 * random.nextGaussian());
+    StreamingHistogram single = new StreamingHistogram(N_BINS);
+    single.add(data, 0, data.length);
+    StreamingHistogram merged = new StreamingHistogram(N_BINS);
+    for (int from = 0; from < data.length; from += 5000) {
+      StreamingHistogram chunk = new StreamingHistogram(N_BINS);
+      chunk.add(data, from, from + 5000);
+      merged.merge(chunk);
+    }
+    checkPercentiles("merge", merged, data);
+    check("merge count", merged.count() == data.length);
+    for (double p : new double[] { 0.1, 1.0, 50.0, 99.0, 99.9 })
+        check("merge equals single histogram at " + p + "%",
+              Math.abs(merged.percentile(p) - single.percentile(p)) <=
+              tolerance(data));
+
+    // Merging into a histogram that only contains zeros
+    StreamingHistogram zeros = new StreamingHistogram(N_BINS);
+    zeros.add(new float[1000], 0, 1000);
+    StreamingHistogram values = new StreamingHistogram(N_BINS);
+    values.add(ramp, 0, ramp.length);
+    zeros.merge(values);
+    checkPercentiles("merge into zeros", zeros, concat(new float[1000], ramp));
+
+    // Non-finite values are ignored
+    h = new StreamingHistogram(N_BINS);
+    h.add(new float[] { Float.NaN, Float.POSITIVE_INFINITY, 1.0f, 2.0f },
+          0, 4);
+    check("non-finite values ignored", h.count() == 2);
+
+    if (_nFailures > 0) {
+      System.out.println(_nFailures + " test(s) failed");
+      System.exit(1);
+    }
+    System.out.println("All tests passed");
+  }
+
+  private static void checkPercentiles(
+      String name, StreamingHistogram h, float[] values) {
+    float[] sorted = values.clone();
+    Arrays.sort(sorted);
+    for (double p : new double[] { 0.0, 0.1, 1.0, 25.0, 50.0, 99.0, 100.0 }) {
+      // The percentile lies between the order statistics around its rank
+      int rank = (int)Math.min(
+          sorted.length - 1, Math.floor(p / 100.0 * sorted.length));
+      float lower = sorted[Math.max(0, rank - 1)];
+      float upper = sorted[rank];
+      double value = h.percentile(p);
+      check(name + ": " + p + "% percentile " + value + " expected [" +
+            lower + ", " + upper + "]",
+            value >= lower - tolerance(values) &&
+            value <= upper + tolerance(values));
+    }
+  }
+
+  // The bin width is at most four times (max - min) / nBins
+  private static double tolerance(float[] values) {
+    float min = Float.POSITIVE_INFINITY;
+    float max = Float.NEGATIVE_INFINITY;
+    for (float v : values) {
+      min = Math.min(min, v);
+      max = Math.max(max, v);
+    }
+    return 4.0 * ((double)max - (double)min) / N_BINS;
+  }
+
+  private static float[] concat(float[] a, float[] b) {
+    float[] res = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, res, a.length, b.length);
+    return res;
+  }
+
+  private static void check(String name, boolean passed) {
+    if (passed) return;
+    System.out.println("FAILED: " + name);
+    _nFailures++;
+  }
+
+}
@@ -0,0 +1,147 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+import de.unifreiburg.unet.TiffPlaneSource;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ColorProcessor;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TestTiffPlaneSource {
+
+  private static int _nFailures = 0;
+
+  public static void main(String[] args) throws IOException {
+
+    // Hyperstack with channels, slices and frames
+    ImagePlus imp = IJ.createHyperStack("hyperstack", 5, 7, 2, 3, 4, 16);
+    fillPositions(imp);
+    imp.getCalibration().setUnit("mm");
+    imp.getCalibration().pixelWidth = 0.5;
+    imp.getCalibration().pixelHeight = 0.25;
+    imp.getCalibration().pixelDepth = 2.0;
+    TiffPlaneSource src = new TiffPlaneSource(save(imp, true));
+    checkShape("hyperstack", src, 4, 2, 3, 7, 5);
+    checkElementSize(
+        "hyperstack", src, new double[] { 2000.0, 250.0, 500.0 });
+    checkPositions("hyperstack", src);
+
+    // Time series without slices gives 2-D element sizes
+    imp = IJ.createHyperStack("time series", 6, 4, 1, 1, 5, 16);
+    fillPositions(imp);
+    src = new TiffPlaneSource(save(imp, true));
+    checkShape("time series", src, 5, 1, 1, 4, 6);
+    checkElementSize("time series", src, new double[] { 1.0, 1.0 });
+    checkPositions("time series", src);
+
+    // Plain stack without hyperstack dimensions is treated as slices
+    for (int bitDepth : new int[] { 8, 32 }) {
+      imp = IJ.createHyperStack("stack", 3, 3, 1, 6, 1, bitDepth);
+      fillPositions(imp);
+      src = new TiffPlaneSource(save(imp, true));
+      checkShape(bitDepth + "-Bit stack", src, 1, 1, 6, 3, 3);
+      checkPositions(bitDepth + "-Bit stack", src);
+    }
+
+    // RGB images are split into three channels
+    ColorProcessor cp = new ColorProcessor(4, 2);
+    cp.set(1, 1, (10 << 16) | (20 << 8) | 30);
+    imp = new ImagePlus("rgb", cp);
+    src = new TiffPlaneSource(save(imp, false));
+    checkShape("rgb", src, 1, 3, 1, 2, 4);
+    check("rgb channels",
+          src.getPlane(0, 0, 0)[5] == 10 && src.getPlane(0, 0, 1)[5] == 20 &&
+          src.getPlane(0, 0, 2)[5] == 30 && src.getPlane(0, 0, 2)[0] == 0);
+
+    if (_nFailures > 0) {
+      System.out.println(_nFailures + " test(s) failed");
+      System.exit(1);
+    }
+    System.out.println("All tests passed");
+  }
+
+  // Set all pixels of plane (c, z, t) to 100 * t + 10 * z + c
+  private static void fillPositions(ImagePlus imp) {
+    for (int t = 0; t < imp.getNFrames(); ++t)
+        for (int z = 0; z < imp.getNSlices(); ++z)
+            for (int c = 0; c < imp.getNChannels(); ++c)
+                imp.getStack().getProcessor(
+                    imp.getStackIndex(c + 1, z + 1, t + 1)).set(
+                        100 * t + 10 * z + c);
+  }
+
+  private static void checkPositions(String name, TiffPlaneSource src) {
+    boolean valid = true;
+    for (int t = 0; t < src.nFrames(); ++t)
+        for (int z = 0; z < src.nSlices(); ++z)
+            for (int c = 0; c < src.nChannels(); ++c)
+                for (float v : src.getPlane(t, z, c))
+                    valid &= v == 100 * t + 10 * z + c;
+    check(name + ": plane order", valid);
+  }
+
+  private static void checkShape(
+      String name, TiffPlaneSource src, int T, int C, int Z, int H, int W) {
+    check(name + ": shape " + src.nFrames() + "x" + src.nChannels() + "x" +
+          src.nSlices() + "x" + src.height() + "x" + src.width(),
+          src.nFrames() == T && src.nChannels() == C &&
+          src.nSlices() == Z && src.height() == H && src.width() == W);
+  }
+
+  private static void checkElementSize(
+      String name, TiffPlaneSource src, double[] expected) {
+    double[] elSize = src.elementSizeUm();
+    boolean valid = elSize.length == expected.length;
+    for (int d = 0; valid && d < elSize.length; ++d)
+        valid = Math.abs(elSize[d] - expected[d]) <= 1.0e-6 * expected[d];
+    check(name + ": element size", valid);
+  }
+
+  private static File save(ImagePlus imp, boolean stack) throws IOException {
+    File file = File.createTempFile("unet-test-", ".tif");
+    file.deleteOnExit();
+    boolean saved = stack ?
+        new FileSaver(imp).saveAsTiffStack(file.getAbsolutePath()) :
+        new FileSaver(imp).saveAsTiff(file.getAbsolutePath());
+    if (!saved) throw new IOException("Could not write " + file);
+    return file;
+  }
+
+  private static void check(String name, boolean passed) {
+    if (passed) return;
+    System.out.println("FAILED: " + name);
+    _nFailures++;
+  }
+
+}
@@ -0,0 +1,143 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+import de.unifreiburg.unet.Tools;
+
+import java.util.Random;
+
+public class TestTools {
+
+  private static int _nFailures = 0;
+
+  public static void main(String[] args) {
+
+    testHalfPrecision();
+    testPlanesPerBlock();
+
+    if (_nFailures > 0) {
+      System.out.println(_nFailures + " test(s) failed");
+      System.exit(1);
+    }
+    System.out.println("All tests passed");
+  }
+
+  private static void testHalfPrecision() {
+    // Known bit patterns
+    float[] values = {
+        0.0f, -0.0f, 1.0f, -2.0f, 0.1f, 65504.0f, 65520.0f, 1.0e6f,
+        Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+        (float)Math.pow(2, -14), (float)Math.pow(2, -24),
+        (float)Math.pow(2, -26) };
+    int[] halves = {
+        0x0000, 0x8000, 0x3c00, 0xc000, 0x2e66, 0x7bff, 0x7c00, 0x7c00,
+        0x7c00, 0xfc00, 0x0400, 0x0001, 0x0000 };
+    for (int i = 0; i < values.length; ++i)
+        check("floatToHalf(" + values[i] + ")",
+              (Tools.floatToHalf(values[i]) & 0xffff) == halves[i]);
+    check("NaN", Float.isNaN(Tools.halfToFloat(Tools.floatToHalf(Float.NaN))));
+
+    // All half precision values survive a round trip through float
+    boolean roundTrip = true;
+    for (int h = 0; h < 65536; ++h) {
+      float v = Tools.halfToFloat((short)h);
+      if (Float.isNaN(v)) continue;
+      roundTrip &= (Tools.floatToHalf(v) & 0xffff) == h;
+    }
+    check("half -> float -> half round trip", roundTrip);
+
+    // halfToFloatLUT() agrees with halfToFloat()
+    float[] lut = Tools.halfToFloatLUT();
+    boolean lutMatches = lut.length == 65536;
+    for (int h = 0; lutMatches && h < 65536; ++h)
+        lutMatches = Float.floatToIntBits(lut[h]) ==
+            Float.floatToIntBits(Tools.halfToFloat((short)h));
+    check("halfToFloatLUT", lutMatches);
+
+    // Conversion rounds to the nearest half precision value, including
+    // subnormal results
+    Random random = new Random(0);
+    boolean nearest = true;
+    for (int i = 0; i < 100000; ++i) {
+      float v = (float)(random.nextDouble() *
+                        Math.pow(2, random.nextInt(44) - 28));
+      if (random.nextBoolean()) v = -v;
+      if (Math.abs(v) >= 65504.0f) continue;
+      int h = Tools.floatToHalf(v) & 0xffff;
+      double error = Math.abs(Tools.halfToFloat((short)h) - (double)v);
+      // Neighbours of the same sign, the magnitude grows with the pattern
+      for (int n : new int[] { h - 1, h + 1 }) {
+        if ((n & 0x7fff) == 0x7fff || (n & 0x8000) != (h & 0x8000))
+            continue;
+        nearest &= error <=
+            Math.abs(Tools.halfToFloat((short)n) - (double)v);
+      }
+    }
+    check("round to nearest", nearest);
+  }
+
+  private static void testPlanesPerBlock() {
+    long budget = Tools.BLOCK_BUDGET_BYTES;
+    check("planes within budget",
+          Tools.planesPerBlock(budget / 16, 100, 1) == 16);
+    check("limited by number of planes",
+          Tools.planesPerBlock(budget / 16, 5, 1) == 5);
+    check("rounded down to multiple",
+          Tools.planesPerBlock(budget / 16, 100, 5) == 15);
+    check("plane exceeding budget",
+          Tools.planesPerBlock(4 * budget, 10, 1) == 1);
+    check("at least multiple",
+          Tools.planesPerBlock(4 * budget, 10, 4) == 4);
+    check("at most number of planes",
+          Tools.planesPerBlock(4 * budget, 2, 4) == 2);
+
+    // Blocks are multiples of the given multiple unless they span all
+    // planes, and stay within the budget unless a single multiple does not
+    // fit
+    Random random = new Random(0);
+    boolean valid = true;
+    for (int i = 0; i < 10000; ++i) {
+      long bytesPerPlane = 1 + (long)(random.nextDouble() * 2 * budget);
+      int nPlanes = 1 + random.nextInt(1000);
+      int multiple = 1 + random.nextInt(16);
+      int B = Tools.planesPerBlock(bytesPerPlane, nPlanes, multiple);
+      valid &= B >= 1 && B <= nPlanes;
+      valid &= B == nPlanes || B % multiple == 0;
+      valid &= B * bytesPerPlane <= budget || B == Math.min(multiple, nPlanes);
+    }
+    check("random block sizes", valid);
+  }
+
+  private static void check(String name, boolean passed) {
+    if (passed) return;
+    System.out.println("FAILED: " + name);
+    _nFailures++;
+  }
+
+}